@@ -0,0 +1,153 @@
+package de.spacedon.simpleosmparser.filter;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether an element is wanted, based on its tags. Filters are built
+ * once from the factory methods and combinators below and can then be applied
+ * to millions of elements: patterns are compiled when the filter is created,
+ * never per element.
+ * <p>
+ * Example: <code>TagFilter.hasKey("highway").and(TagFilter.is("area", "yes").negate())</code>
+ *
+ * @author Philipp Thöricht
+ */
+@FunctionalInterface
+public interface TagFilter {
+
+    /**
+     * @param ele
+     * @return true if the element passes the filter
+     */
+    boolean matches(OSMElement ele);
+
+    /**
+     * @param other
+     * @return filter which matches if this and the other filter match
+     */
+    default TagFilter and(TagFilter other) {
+        return ele -> this.matches(ele) && other.matches(ele);
+    }
+
+    /**
+     * @param other
+     * @return filter which matches if this or the other filter matches
+     */
+    default TagFilter or(TagFilter other) {
+        return ele -> this.matches(ele) || other.matches(ele);
+    }
+
+    /**
+     * @return filter which matches if this filter doesn't
+     */
+    default TagFilter negate() {
+        return ele -> !this.matches(ele);
+    }
+
+    /**
+     * @return filter which matches every element
+     */
+    static TagFilter any() {
+        return ele -> true;
+    }
+
+    /**
+     * @return filter which matches elements with at least one tag
+     */
+    static TagFilter tagged() {
+        return OSMElement::hasTags;
+    }
+
+    /**
+     * @param key
+     * @return filter which matches elements having the key, whatever the value
+     */
+    static TagFilter hasKey(String key) {
+        return ele -> ele.getTag(key) != null;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return filter which matches elements with exactly that key and value
+     */
+    static TagFilter is(String key, String value) {
+        return ele -> value.equals(ele.getTag(key));
+    }
+
+    /**
+     * @param key
+     * @param prefix
+     * @return filter which matches elements whose value for key starts with
+     * the prefix
+     */
+    static TagFilter prefix(String key, String prefix) {
+        return ele -> {
+            String v = ele.getTag(key);
+            return v != null && v.startsWith(prefix);
+        };
+    }
+
+    /**
+     * @param key
+     * @param values
+     * @return filter which matches elements whose value for key is one of the
+     * given values
+     */
+    static TagFilter oneOf(String key, String... values) {
+        final Set<String> set = new HashSet<>(Arrays.asList(values));
+        return ele -> {
+            String v = ele.getTag(key);
+            return v != null && set.contains(v);
+        };
+    }
+
+    /**
+     * @param key
+     * @param regex java regex the whole value has to match
+     * @return filter which matches elements whose value for key matches the
+     * regex
+     */
+    static TagFilter regex(String key, String regex) {
+        final Pattern pattern = Pattern.compile(regex);
+        return ele -> {
+            String v = ele.getTag(key);
+            return v != null && pattern.matcher(v).matches();
+        };
+    }
+
+    /**
+     * @param filters
+     * @return filter which matches if all filters match
+     */
+    static TagFilter allOf(TagFilter... filters) {
+        final TagFilter[] copy = filters.clone();
+        return ele -> {
+            for (TagFilter f : copy) {
+                if (!f.matches(ele))
+                    return false;
+            }
+            return true;
+        };
+    }
+
+    /**
+     * @param filters
+     * @return filter which matches if at least one filter matches
+     */
+    static TagFilter anyOf(TagFilter... filters) {
+        final TagFilter[] copy = filters.clone();
+        return ele -> {
+            for (TagFilter f : copy) {
+                if (f.matches(ele))
+                    return true;
+            }
+            return false;
+        };
+    }
+}
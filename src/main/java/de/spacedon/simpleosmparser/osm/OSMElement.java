@@ -1,9 +1,16 @@
 package de.spacedon.simpleosmparser.osm;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * @author Philipp Thöricht
@@ -13,13 +20,21 @@ public abstract class OSMElement {
     public static final int WAY = 1;
     public static final int RELATION = 2;
 
+    private static final String[] NO_TAGS = new String[0];
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+    // compiled patterns of hasTag(), for filtering use TagFilter instead
+    private static final ConcurrentHashMap<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+    private static final int MAX_PATTERNS = 256;
+
     private long id;
-    protected HashMap<String, String> tags;
+    // keys and values alternating, sorted by key: k0, v0, k1, v1, ...
+    private String[] tags = NO_TAGS;
     private int version;
     private boolean visible;
     // adds the possibility to know the way/relation this node belongs to,
-    // or to know the relation this node/way/relation belongs to
-    private ArrayList<OSMElement> belongsto = new ArrayList<>();
+    // or to know the relation this node/way/relation belongs to,
+    // created on first use as most elements belong to nothing
+    private ArrayList<OSMElement> belongsto;
     private final int elementtype;
     private Date timestamp;
     private String user;
@@ -28,7 +43,6 @@ public abstract class OSMElement {
     public OSMElement(long id, int elementtype) {
         this.id = id;
         this.elementtype = elementtype;
-        this.tags = new HashMap<>();
     }
 
     /**
@@ -41,20 +55,41 @@ public abstract class OSMElement {
      */
     public boolean hasTag(String key, String value) {
         if (key != null && value != null) {
-            Iterator<String> iter = this.tags.keySet().iterator();
-            while (iter.hasNext()) {
-                String k = iter.next();
-                if (key.equals(k) && this.tags.get(k).matches(value))
-                    return true;
-            }
+            String v = this.getTag(key);
+            if (v == null)
+                return false;
+            if (isLiteral(value))
+                return v.equals(value);
+            return pattern(value).matcher(v).matches();
         }
         return false;
     }
 
+    private static boolean isLiteral(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (REGEX_META.indexOf(value.charAt(i)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static Pattern pattern(String regex) {
+        Pattern p = PATTERNS.get(regex);
+        if (p == null) {
+            if (PATTERNS.size() >= MAX_PATTERNS)
+                PATTERNS.clear();
+            p = Pattern.compile(regex);
+            PATTERNS.put(regex, p);
+        }
+        return p;
+    }
+
     /**
      * @param ele
      */
     public void addBelongsTo(OSMElement ele) {
+        if (this.belongsto == null)
+            this.belongsto = new ArrayList<>(2);
         this.belongsto.add(ele);
     }
 
@@ -62,14 +97,25 @@ public abstract class OSMElement {
      * @return
      */
     public ArrayList<OSMElement> getBelongsTo() {
+        if (this.belongsto == null)
+            this.belongsto = new ArrayList<>(2);
         return this.belongsto;
     }
 
+    /**
+     * @return number of elements this one belongs to, without creating the
+     * list
+     */
+    public int getBelongsToCount() {
+        return this.belongsto == null ? 0 : this.belongsto.size();
+    }
+
     /**
      * @param ele
      */
     public void removeBelongsTo(OSMElement ele) {
-        this.belongsto.remove(ele);
+        if (this.belongsto != null)
+            this.belongsto.remove(ele);
     }
 
     /**
@@ -87,10 +133,10 @@ public abstract class OSMElement {
     }
 
     /**
-     * @return a hashmap with all tags
+     * @return a live map view on all tags
      */
-    public HashMap<String, String> getTags() {
-        return tags;
+    public Map<String, String> getTags() {
+        return new TagMap();
     }
 
     /**
@@ -101,14 +147,17 @@ public abstract class OSMElement {
      * @return the value or null if no mapping for that key
      */
     public String getTag(String key) {
-        return this.tags.get(key);
+        int i = this.indexOfKey(key);
+        return i < 0 ? null : this.tags[2 * i + 1];
     }
 
     /**
      * @param tags set all tags at once
      */
-    public void setTags(HashMap<String, String> tags) {
-        this.tags = tags;
+    public void setTags(Map<String, String> tags) {
+        this.tags = NO_TAGS;
+        for (Map.Entry<String, String> tag : tags.entrySet())
+            this.setTag(tag.getKey(), tag.getValue());
     }
 
     /**
@@ -118,16 +167,107 @@ public abstract class OSMElement {
      * @param value
      */
     public void setTag(String key, String value) {
-        if (!this.tags.containsKey(key))
-            this.tags.put(key, value);
+        int i = this.indexOfKey(key);
+        if (i >= 0)
+            return;
+        int pos = -(i + 1) * 2;
+        String[] grown = new String[this.tags.length + 2];
+        System.arraycopy(this.tags, 0, grown, 0, pos);
+        System.arraycopy(this.tags, pos, grown, pos + 2, this.tags.length - pos);
+        grown[pos] = key;
+        grown[pos + 1] = value;
+        this.tags = grown;
     }
 
     /**
+     * Sets all tags of the map whose keys aren't present yet.
+     *
      * @param tag
      */
-    public void setTag(HashMap<String, String> tag) {
-        if (!this.tags.containsKey(tag.keySet().iterator().next()))
-            this.tags.putAll(tag);
+    public void setTag(Map<String, String> tag) {
+        for (Map.Entry<String, String> t : tag.entrySet())
+            this.setTag(t.getKey(), t.getValue());
+    }
+
+    /**
+     * @param key
+     * @return the removed value or null if there was no such key
+     */
+    public String removeTag(String key) {
+        int i = this.indexOfKey(key);
+        if (i < 0)
+            return null;
+        String value = this.tags[2 * i + 1];
+        if (this.tags.length == 2) {
+            this.tags = NO_TAGS;
+        } else {
+            String[] shrunk = new String[this.tags.length - 2];
+            System.arraycopy(this.tags, 0, shrunk, 0, 2 * i);
+            System.arraycopy(this.tags, 2 * i + 2, shrunk, 2 * i, this.tags.length - 2 * i - 2);
+            this.tags = shrunk;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the element has at least one tag
+     */
+    public boolean hasTags() {
+        return this.tags.length > 0;
+    }
+
+    /**
+     * Together with getTagKey() and getTagValue() this allows to iterate over
+     * the tags without creating objects.
+     *
+     * @return number of tags
+     */
+    public int getTagCount() {
+        return this.tags.length / 2;
+    }
+
+    /**
+     * @param index 0-based, tags are sorted by key
+     * @return the key of the tag at index
+     */
+    public String getTagKey(int index) {
+        if (index < 0 || index >= this.getTagCount())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.getTagCount());
+        return this.tags[2 * index];
+    }
+
+    /**
+     * @param index 0-based, tags are sorted by key
+     * @return the value of the tag at index
+     */
+    public String getTagValue(int index) {
+        if (index < 0 || index >= this.getTagCount())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.getTagCount());
+        return this.tags[2 * index + 1];
+    }
+
+    /**
+     * Binary search over the sorted keys.
+     *
+     * @param key
+     * @return the tag index or -(insertion point) - 1 if the key isn't present
+     */
+    private int indexOfKey(String key) {
+        if (key == null)
+            return -1;
+        int low = 0;
+        int high = this.tags.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = this.tags[2 * mid].compareTo(key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
     /**
@@ -206,4 +346,147 @@ public abstract class OSMElement {
     public void setUid(long uid) {
         this.uid = uid;
     }
+
+    /**
+     * Map view on the tag array.
+     */
+    private class TagMap extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? getTag((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOfKey((String) key) >= 0;
+        }
+
+        /**
+         * Unlike setTag() this overwrites the value of an existing key.
+         */
+        @Override
+        public String put(String key, String value) {
+            if (key == null)
+                throw new NullPointerException("key must not be null");
+            int i = indexOfKey(key);
+            if (i >= 0) {
+                String old = tags[2 * i + 1];
+                tags[2 * i + 1] = value;
+                return old;
+            }
+            setTag(key, value);
+            return null;
+        }
+
+        @Override
+        public String remove(Object key) {
+            return key instanceof String ? removeTag((String) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            tags = NO_TAGS;
+        }
+
+        @Override
+        public int size() {
+            return getTagCount();
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    // removeTag() replaces the array, so the snapshot stays
+                    // valid while tags are removed through the iterator
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private final String[] snapshot = tags;
+                        private int next = 0;
+                        private String last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.next < this.snapshot.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (this.next >= this.snapshot.length)
+                                throw new NoSuchElementException();
+                            this.last = this.snapshot[this.next];
+                            Map.Entry<String, String> e = new TagEntry(this.last, this.snapshot[this.next + 1]);
+                            this.next += 2;
+                            return e;
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (this.last == null)
+                                throw new IllegalStateException();
+                            removeTag(this.last);
+                            this.last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return getTagCount();
+                }
+            };
+        }
+
+        /**
+         * Entry whose setValue() writes through to the tag array.
+         */
+        private class TagEntry implements Map.Entry<String, String> {
+            private final String key;
+            private String value;
+
+            TagEntry(String key, String value) {
+                this.key = key;
+                this.value = value;
+            }
+
+            @Override
+            public String getKey() {
+                return this.key;
+            }
+
+            @Override
+            public String getValue() {
+                return this.value;
+            }
+
+            @Override
+            public String setValue(String value) {
+                int i = indexOfKey(this.key);
+                if (i < 0)
+                    throw new IllegalStateException("tag was removed: " + this.key);
+                tags[2 * i + 1] = value;
+                String old = this.value;
+                this.value = value;
+                return old;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                return Objects.equals(this.key, e.getKey()) && Objects.equals(this.value, e.getValue());
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hashCode(this.key) ^ Objects.hashCode(this.value);
+            }
+
+            @Override
+            public String toString() {
+                return this.key + "=" + this.value;
+            }
+        }
+    }
 }
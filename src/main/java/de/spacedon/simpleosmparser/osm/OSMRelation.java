@@ -116,7 +116,7 @@ public class OSMRelation extends OSMElement {
      */
     public void replaceMember(long old_id, long new_id, int elementtype) throws NoSuchFieldError {
         if (this.hasMember(old_id, elementtype)) {
-            String old_role = this.getMembersByElementType(OSMElement.NODE).get(old_id);
+            String old_role = this.getMembersByElementType(elementtype).get(old_id);
             this.delMember(old_id, elementtype);
             this.addMember(elementtype, new_id, old_role);
         } else {
@@ -1,15 +1,23 @@
 package de.spacedon.simpleosmparser.osm;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.LongConsumer;
 
 
 public class OSMWay extends OSMElement {
+    private static final long[] NO_REFS = new long[0];
+
     private String action;
-    private ArrayList<Long> refs;
+    // node ids in sequence, only the first refcount entries are used
+    private long[] refs;
+    private int refcount;
 
     public OSMWay(long id) {
         super(id, OSMElement.WAY);
-        this.refs = new ArrayList<>();
+        this.refs = NO_REFS;
     }
 
     /**
@@ -20,7 +28,13 @@ public class OSMWay extends OSMElement {
     public void addRef(long ref, int sequence) throws IndexOutOfBoundsException {
         if (sequence < 1)
             sequence = 1;
-        this.getRefs().add(sequence - 1, ref);
+        int index = sequence - 1;
+        if (index > this.refcount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.refcount);
+        this.ensureRefCapacity(this.refcount + 1);
+        System.arraycopy(this.refs, index, this.refs, index + 1, this.refcount - index);
+        this.refs[index] = ref;
+        this.refcount++;
     }
 
     /**
@@ -29,7 +43,30 @@ public class OSMWay extends OSMElement {
      * @param ref
      */
     public void addRefToEnd(long ref) {
-        this.getRefs().add(ref);
+        if (this.refcount == this.refs.length)
+            this.ensureRefCapacity(this.refcount + 1);
+        this.refs[this.refcount++] = ref;
+    }
+
+    /**
+     * Makes room for the given number of refs, so that parsers knowing the
+     * number of refs in advance can append without growing the array.
+     *
+     * @param capacity
+     */
+    public void ensureRefCapacity(int capacity) {
+        if (capacity > this.refs.length) {
+            int grown = this.refs.length + (this.refs.length >> 1) + 1;
+            this.refs = Arrays.copyOf(this.refs, Math.max(capacity, grown));
+        }
+    }
+
+    /**
+     * Releases unused capacity, parsers call this once a way is complete.
+     */
+    public void trimRefs() {
+        if (this.refcount < this.refs.length)
+            this.refs = this.refcount == 0 ? NO_REFS : Arrays.copyOf(this.refs, this.refcount);
     }
 
     /**
@@ -47,10 +84,68 @@ public class OSMWay extends OSMElement {
     }
 
     /**
+     * Live view on the refs. Prefer getRefCount() and getRef() to iterate
+     * without boxing.
+     *
      * @return the refs
      */
-    public ArrayList<Long> getRefs() {
-        return refs;
+    public List<Long> getRefs() {
+        return new RefList();
+    }
+
+    /**
+     * @return number of refs
+     */
+    public int getRefCount() {
+        return this.refcount;
+    }
+
+    /**
+     * @param index 0-based
+     * @return the node id at index
+     * @throws IndexOutOfBoundsException if index is out of range
+     */
+    public long getRef(int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= this.refcount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.refcount);
+        return this.refs[index];
+    }
+
+    /**
+     * @param ref
+     * @return 0-based index of the first occurrence of ref or -1
+     */
+    public int indexOfRef(long ref) {
+        for (int i = 0; i < this.refcount; i++) {
+            if (this.refs[i] == ref)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param ref
+     * @return true if this way references the node
+     */
+    public boolean containsRef(long ref) {
+        return this.indexOfRef(ref) >= 0;
+    }
+
+    /**
+     * Calls the consumer for every ref in sequence.
+     *
+     * @param consumer
+     */
+    public void forEachRef(LongConsumer consumer) {
+        for (int i = 0; i < this.refcount; i++)
+            consumer.accept(this.refs[i]);
+    }
+
+    /**
+     * @return a copy of the refs
+     */
+    public long[] getRefArray() {
+        return Arrays.copyOf(this.refs, this.refcount);
     }
 
     /**
@@ -58,40 +153,118 @@ public class OSMWay extends OSMElement {
      *
      * @param refs the refs to set
      */
-    public void setRefs(ArrayList<Long> refs) {
-        this.refs = refs;
+    public void setRefs(List<Long> refs) {
+        this.refs = new long[refs.size()];
+        this.refcount = 0;
+        for (Long ref : refs)
+            this.refs[this.refcount++] = ref;
     }
 
     /**
-     * @param sequence
+     * @param refs the refs to set, in appropriate order
+     */
+    public void setRefs(long[] refs) {
+        this.refs = refs.length == 0 ? NO_REFS : refs.clone();
+        this.refcount = refs.length;
+    }
+
+    /**
+     * @param sequence 0-based
      * @return the deleted node id
      * @throws IndexOutOfBoundsException if sequence is out of range
      */
-    public Long delRef(int sequence) throws IndexOutOfBoundsException {
-        return this.getRefs().remove(sequence);
+    public long delRef(int sequence) throws IndexOutOfBoundsException {
+        long ref = this.getRef(sequence);
+        System.arraycopy(this.refs, sequence + 1, this.refs, sequence, this.refcount - sequence - 1);
+        this.refcount--;
+        return ref;
     }
 
     /**
      * Replace a ref at the given sequence position with the given new ref.
      *
      * @param ref      new reference
-     * @param sequence position of reference to be replaced
+     * @param sequence 0-based position of reference to be replaced
      * @throws IndexOutOfBoundsException if sequence is out of range
      */
     public void replaceRef(long ref, int sequence) throws IndexOutOfBoundsException {
-        this.delRef(sequence);
-        this.addRef(ref, sequence);
+        this.getRef(sequence);
+        this.refs[sequence] = ref;
     }
 
     /**
-     * Replace old ref with new ref while retaining position of reference.
+     * Replace old ref with new ref while retaining position of reference. Does
+     * nothing if old ref isn't referenced.
      *
      * @param old_ref
      * @param new_ref
      */
     public void replaceRef(long old_ref, long new_ref) {
-        int pos = this.refs.indexOf(old_ref);
-        this.refs.remove(pos);
-        this.refs.add(pos, new_ref);
+        int pos = this.indexOfRef(old_ref);
+        if (pos >= 0)
+            this.refs[pos] = new_ref;
+    }
+
+    /**
+     * Replace every occurrence of old ref with new ref, e.g. both ends of a
+     * closed way, while retaining the positions.
+     *
+     * @param old_ref
+     * @param new_ref
+     * @return number of replaced refs
+     */
+    public int replaceRefs(long old_ref, long new_ref) {
+        int count = 0;
+        for (int i = 0; i < this.refcount; i++) {
+            if (this.refs[i] == old_ref) {
+                this.refs[i] = new_ref;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * List view on the ref array.
+     */
+    private class RefList extends AbstractList<Long> implements RandomAccess {
+        @Override
+        public Long get(int index) {
+            return getRef(index);
+        }
+
+        @Override
+        public Long set(int index, Long element) {
+            long old = getRef(index);
+            refs[index] = element;
+            return old;
+        }
+
+        @Override
+        public void add(int index, Long element) {
+            addRef(element, index + 1);
+            this.modCount++;
+        }
+
+        @Override
+        public Long remove(int index) {
+            this.modCount++;
+            return delRef(index);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return o instanceof Long ? indexOfRef((Long) o) : -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return this.indexOf(o) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return refcount;
+        }
     }
 }
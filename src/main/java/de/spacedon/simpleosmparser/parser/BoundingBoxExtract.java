@@ -0,0 +1,236 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.LongHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts the part within a bounding box out of a file: the nodes inside, the
+ * ways having at least one of them, and the relations having one of these
+ * nodes, ways or relations as member. Optionally the ways are completed with
+ * their nodes outside the box. Like OSMNode.isInBB() the border itself is
+ * outside.
+ * <p>
+ * The passes are nodes, ways, the missing nodes of the ways if they are to
+ * be completed, then relations, repeated while parents of new relations come
+ * before them in the file. Only ids and the result are held in memory.
+ * Nodes are passed on to the target while they are read, ways and relations
+ * after the last pass, then onEnd() is called once.
+ *
+ * @author Philipp Thöricht
+ */
+public class BoundingBoxExtract implements MultiPassHandler {
+    // steps, NODES can't tell the two node passes apart
+    private static final int INSIDE = 1;
+    private static final int TOUCHING = 2;
+    private static final int COMPLETING = 3;
+    private static final int CONTAINING = 4;
+
+    private final double minLat;
+    private final double minLon;
+    private final double maxLat;
+    private final double maxLon;
+    private final boolean completeWays;
+    private final OsmHandler target;
+    private final LongHashSet insideNodes = new LongHashSet();
+    private final LongHashSet missingNodes = new LongHashSet();
+    private final LongHashSet keptWays = new LongHashSet();
+    private final LongHashSet keptRelations = new LongHashSet();
+    // relations referenced by relations not kept in the current pass
+    private final LongHashSet parentless = new LongHashSet();
+    private final List<OSMWay> ways = new ArrayList<>();
+    // kept relations, one list per relation pass
+    private final List<List<OSMRelation>> relations = new ArrayList<>();
+    private int step;
+    private int passes;
+
+    /**
+     * @param minLat
+     * @param minLon
+     * @param maxLat
+     * @param maxLon
+     * @param completeWays true to keep all nodes of the kept ways, false to
+     *                     keep only the ones inside
+     * @param target       receives the kept elements
+     */
+    public BoundingBoxExtract(double minLat, double minLon, double maxLat, double maxLon, boolean completeWays,
+                              OsmHandler target) {
+        if (!(minLat <= maxLat && minLon <= maxLon))
+            throw new IllegalArgumentException("invalid bounding box: " + minLat + ", " + minLon + ", "
+                    + maxLat + ", " + maxLon);
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+        this.completeWays = completeWays;
+        this.target = target;
+    }
+
+    @Override
+    public int nextPass() {
+        int next;
+        switch (this.step) {
+            case 0:
+                next = INSIDE;
+                break;
+            case INSIDE:
+                next = TOUCHING;
+                break;
+            case TOUCHING:
+                next = this.missingNodes.isEmpty() ? CONTAINING : COMPLETING;
+                break;
+            case COMPLETING:
+                next = CONTAINING;
+                break;
+            case CONTAINING:
+                next = this.hasLateParents() ? CONTAINING : 0;
+                break;
+            default:
+                return 0;
+        }
+        if (next == 0) {
+            this.finish();
+            return 0;
+        }
+        if (next == CONTAINING) {
+            this.relations.add(new ArrayList<>());
+            this.parentless.clear();
+        }
+        this.step = next;
+        this.passes++;
+        return next == CONTAINING ? RELATIONS : next == TOUCHING ? WAYS : NODES;
+    }
+
+    /**
+     * @return true if a relation kept in the current pass is a member of a
+     * relation seen before it
+     */
+    private boolean hasLateParents() {
+        if (this.parentless.isEmpty())
+            return false;
+        for (OSMRelation r : this.relations.get(this.relations.size() - 1)) {
+            if (this.parentless.contains(r.getId()))
+                return true;
+        }
+        return false;
+    }
+
+    private void finish() {
+        this.step = -1;
+        for (OSMWay w : this.ways)
+            this.target.onWay(w);
+        this.ways.clear();
+        // members first, their parents were found in later passes
+        for (List<OSMRelation> pass : this.relations) {
+            for (OSMRelation r : pass)
+                this.target.onRelation(r);
+        }
+        this.relations.clear();
+        this.target.onEnd();
+    }
+
+    /**
+     * @return number of passes started so far
+     */
+    public int getPasses() {
+        return this.passes;
+    }
+
+    /**
+     * @param lat
+     * @param lon
+     * @return true if the position is inside the bounding box
+     */
+    public boolean contains(double lat, double lon) {
+        return lat > this.minLat && lat < this.maxLat && lon > this.minLon && lon < this.maxLon;
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        if (this.keepNode(node.getId(), node.getLat(), node.getLon()))
+            this.target.onNode(node);
+    }
+
+    @Override
+    public void onCoordinate(long id, double lat, double lon) {
+        if (this.keepNode(id, lat, lon))
+            this.target.onCoordinate(id, lat, lon);
+    }
+
+    private boolean keepNode(long id, double lat, double lon) {
+        if (this.step == INSIDE && this.contains(lat, lon)) {
+            this.insideNodes.add(id);
+            return true;
+        }
+        return this.step == COMPLETING && this.missingNodes.contains(id);
+    }
+
+    /**
+     * The box only needs the coordinates, so this depends on the target.
+     */
+    @Override
+    public boolean isCoordinateOnly() {
+        return this.target.isCoordinateOnly();
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        if (this.step != TOUCHING)
+            return;
+        boolean touching = false;
+        for (int i = 0; i < way.getRefCount() && !touching; i++)
+            touching = this.insideNodes.contains(way.getRef(i));
+        if (!touching)
+            return;
+        if (this.completeWays) {
+            for (int i = 0; i < way.getRefCount(); i++) {
+                long ref = way.getRef(i);
+                if (!this.insideNodes.contains(ref))
+                    this.missingNodes.add(ref);
+            }
+        }
+        this.keptWays.add(way.getId());
+        this.ways.add(way);
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        if (this.step != CONTAINING || this.keptRelations.contains(relation.getId()))
+            return;
+        if (!this.hasKeptMember(relation)) {
+            for (long ref : relation.getMembersByElementType(OSMElement.RELATION).keySet())
+                this.parentless.add(ref);
+            return;
+        }
+        this.keptRelations.add(relation.getId());
+        this.relations.get(this.relations.size() - 1).add(relation);
+    }
+
+    private boolean hasKeptMember(OSMRelation relation) {
+        for (long ref : relation.getMembersByElementType(OSMElement.NODE).keySet()) {
+            if (this.insideNodes.contains(ref))
+                return true;
+        }
+        for (long ref : relation.getMembersByElementType(OSMElement.WAY).keySet()) {
+            if (this.keptWays.contains(ref))
+                return true;
+        }
+        for (long ref : relation.getMembersByElementType(OSMElement.RELATION).keySet()) {
+            if (this.keptRelations.contains(ref))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends a pass, nextPass() decides what comes next.
+     */
+    @Override
+    public void onEnd() {
+    }
+}
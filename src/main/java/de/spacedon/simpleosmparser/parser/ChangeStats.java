@@ -0,0 +1,84 @@
+package de.spacedon.simpleosmparser.parser;
+
+/**
+ * Figures of an applied OsmChange file, see OsmChangeReader. The time is
+ * spent on reading and applying the changes only, so it grows with the size
+ * of the diff and not with the size of the dataset.
+ *
+ * @author Philipp Thöricht
+ */
+public class ChangeStats {
+    long created;
+    long modified;
+    long deleted;
+    long skipped;
+    long errors;
+    long nanos;
+
+    ChangeStats() {
+    }
+
+    /**
+     * @return number of elements from create blocks
+     */
+    public long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * @return number of elements from modify blocks
+     */
+    public long getModified() {
+        return this.modified;
+    }
+
+    /**
+     * @return number of elements removed by delete blocks
+     */
+    public long getDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * @return number of changes not applied, older than the stored element
+     * or deleting an element which isn't stored
+     */
+    public long getSkipped() {
+        return this.skipped;
+    }
+
+    /**
+     * @return number of broken elements in the file
+     */
+    public long getErrors() {
+        return this.errors;
+    }
+
+    /**
+     * @return number of changes read, applied or skipped
+     */
+    public long getElements() {
+        return this.created + this.modified + this.deleted + this.skipped;
+    }
+
+    /**
+     * @return time taken to read and apply the file
+     */
+    public long getNanos() {
+        return this.nanos;
+    }
+
+    /**
+     * @return changes per second, 0 if no time was measured
+     */
+    public double getElementsPerSecond() {
+        return this.nanos == 0 ? 0 : this.getElements() * 1e9 / this.nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChangeStats[created=%d, modified=%d, deleted=%d, skipped=%d, errors=%d, time=%d ms, %.0f elements/s]",
+                this.created, this.modified, this.deleted, this.skipped, this.errors, this.nanos / 1000000,
+                this.getElementsPerSecond());
+    }
+}
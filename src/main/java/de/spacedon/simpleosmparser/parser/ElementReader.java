@@ -0,0 +1,30 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+import java.io.IOException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Pulls the elements of an *.osm file one at a time, implemented by the StAX
+ * based OsmXmlReader and the byte level OsmXmlScanner.
+ *
+ * @author Philipp Thöricht
+ */
+interface ElementReader extends AutoCloseable {
+
+    /**
+     * @return the next node, way or relation, or null at the end of the file
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    OSMElement read() throws IOException, XMLStreamException;
+
+    /**
+     * @return number of broken elements skipped so far
+     */
+    long getErrorCount();
+
+    @Override
+    void close() throws IOException, XMLStreamException;
+}
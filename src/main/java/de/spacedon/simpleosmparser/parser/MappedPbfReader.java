@@ -0,0 +1,410 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+
+/**
+ * Reads *.pbf files through a memory mapping instead of a stream. The blob
+ * framing is scanned right on the mapped buffer. On Java 11 and later
+ * compressed data is inflated from it without copying the blob first, older
+ * runtimes lack Inflater.setInput(ByteBuffer) and inflate from a copy.
+ * <p>
+ * Opening the reader scans the headers of all blobs, which only touches a
+ * few bytes per blob, and keeps their offsets in an index. The index also
+ * remembers which element types a blob contains once it was decoded, so a
+ * second pass over e.g. only the ways skips the node blocks without
+ * inflating them.
+ *
+ * @author Philipp Thöricht
+ */
+public class MappedPbfReader implements AutoCloseable {
+    // content mask bits, combine them for read(handler, types)
+    public static final int NODES = PbfBlockDecoder.NODES;
+    public static final int WAYS = PbfBlockDecoder.WAYS;
+    public static final int RELATIONS = PbfBlockDecoder.RELATIONS;
+    public static final int ALL = PbfBlockDecoder.ALL;
+    // content of a blob which wasn't decoded yet
+    private static final byte UNKNOWN = -1;
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final byte[] OSM_DATA = "OSMData".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OSM_HEADER = "OSMHeader".getBytes(StandardCharsets.US_ASCII);
+    // Inflater.setInput(ByteBuffer), only available since Java 11; cleared
+    // if invoking it fails
+    private static volatile MethodHandle setInputBuffer = findSetInputBuffer();
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final PbfBlockDecoder decoder;
+    private boolean nativeDecoding = true;
+    private final Inflater inflater = new Inflater();
+    // blob index
+    private long[] offsets = new long[64];
+    private int[] sizes = new int[64];
+    private byte[] contents = new byte[64];
+    private boolean[] headers = new boolean[64];
+    private int count;
+    // current mapping
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+    // reused buffers
+    private byte[] raw = new byte[0];
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Maps the file and builds the blob index.
+     *
+     * @param file
+     * @param dictionary shares tag strings, roles and user names, may be null
+     * @throws IOException if the file can't be read or its framing is broken
+     */
+    public MappedPbfReader(File file, StringDictionary dictionary) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = this.channel.size();
+        this.decoder = new PbfBlockDecoder(dictionary);
+        try {
+            this.scan();
+        } catch (IOException | RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Walks the BlobHeaders and records where the blobs are.
+     *
+     * @throws IOException
+     */
+    private void scan() throws IOException {
+        long pos = 0;
+        while (pos < this.fileSize) {
+            if (pos + 4 > this.fileSize)
+                throw new IOException("Truncated blob header at " + pos);
+            int headerSize = this.map(pos, 4).getInt();
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE || pos + 4 + headerSize > this.fileSize)
+                throw new IOException("Invalid blob header size " + headerSize + " at " + pos);
+            ByteBuffer header = this.map(pos + 4, headerSize);
+            boolean data = false;
+            boolean osmHeader = false;
+            int dataSize = -1;
+            while (header.hasRemaining()) {
+                int tag = (int) readVarint(header);
+                if (tag == (1 << 3 | 2)) {
+                    // type
+                    int len = (int) readVarint(header);
+                    ByteBuffer type = slice(header, len);
+                    data = type.equals(ByteBuffer.wrap(OSM_DATA));
+                    osmHeader = type.equals(ByteBuffer.wrap(OSM_HEADER));
+                } else if (tag == (3 << 3)) {
+                    dataSize = (int) readVarint(header);
+                } else {
+                    skipField(header, tag);
+                }
+            }
+            long blobStart = pos + 4 + headerSize;
+            if (dataSize < 0 || dataSize > MAX_BLOB_SIZE || blobStart + dataSize > this.fileSize)
+                throw new IOException("Invalid blob size " + dataSize + " at " + pos);
+            // unknown blob types are skipped as the specification demands
+            if (data || osmHeader)
+                this.addBlob(blobStart, dataSize, osmHeader);
+            pos = blobStart + dataSize;
+        }
+    }
+
+    private void addBlob(long offset, int size, boolean header) {
+        if (this.count == this.offsets.length) {
+            int capacity = this.count * 2;
+            this.offsets = Arrays.copyOf(this.offsets, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+            this.contents = Arrays.copyOf(this.contents, capacity);
+            this.headers = Arrays.copyOf(this.headers, capacity);
+        }
+        this.offsets[this.count] = offset;
+        this.sizes[this.count] = size;
+        this.contents[this.count] = header ? 0 : UNKNOWN;
+        this.headers[this.count] = header;
+        this.count++;
+    }
+
+    /**
+     * @param nativeDecoding false to decode DenseNodes through Osmosis like
+     *                       all other blocks, true by default
+     */
+    public void setNativeDecoding(boolean nativeDecoding) {
+        this.nativeDecoding = nativeDecoding;
+        this.decoder.setNativeDecoding(nativeDecoding);
+    }
+
+    /**
+     * @return true if DenseNodes are decoded by PbfBlockDecoder itself
+     */
+    public boolean isNativeDecoding() {
+        return this.nativeDecoding;
+    }
+
+    /**
+     * @return number of blobs in the index, including the header blob
+     */
+    public int getBlobCount() {
+        return this.count;
+    }
+
+    /**
+     * @param index
+     * @return file offset of the serialized blob
+     */
+    public long getBlobOffset(int index) {
+        this.checkIndex(index);
+        return this.offsets[index];
+    }
+
+    /**
+     * @param index
+     * @return size of the serialized blob in bytes
+     */
+    public int getBlobSize(int index) {
+        this.checkIndex(index);
+        return this.sizes[index];
+    }
+
+    /**
+     * @param index
+     * @return content mask of the blob, ALL if it wasn't decoded yet
+     */
+    public int getBlobContent(int index) {
+        this.checkIndex(index);
+        return this.contents[index] == UNKNOWN ? ALL : this.contents[index];
+    }
+
+    /**
+     * Reads all elements, then calls onEnd().
+     *
+     * @param handler
+     * @throws IOException
+     */
+    public void read(OsmHandler handler) throws IOException {
+        this.read(handler, ALL);
+    }
+
+    /**
+     * Reads the elements of the given types, then calls onEnd(). Blobs known
+     * to contain none of them are skipped.
+     *
+     * @param handler
+     * @param types   content mask, e.g. WAYS | RELATIONS
+     * @throws IOException
+     */
+    public void read(OsmHandler handler, int types) throws IOException {
+        for (int i = 0; i < this.count; i++)
+            this.readBlob(i, handler, types);
+        handler.onEnd();
+    }
+
+    /**
+     * Decodes a single blob.
+     *
+     * @param index   position in the index
+     * @param handler
+     * @param types   content mask of the wanted element types
+     * @throws IOException
+     */
+    public void readBlob(int index, OsmHandler handler, int types) throws IOException {
+        this.checkIndex(index);
+        boolean header = this.headers[index];
+        if (!header && this.contents[index] != UNKNOWN && (this.contents[index] & types) == 0)
+            return;
+        int size = this.inflate(this.map(this.offsets[index], this.sizes[index]));
+        if (header)
+            this.decoder.decodeHeader(this.raw, 0, size);
+        else
+            this.contents[index] = (byte) this.decoder.decode(this.raw, 0, size, handler, types);
+    }
+
+    /**
+     * Inflates a serialized Fileformat.Blob into the raw buffer.
+     *
+     * @param blob
+     * @return size of the content
+     * @throws IOException
+     */
+    private int inflate(ByteBuffer blob) throws IOException {
+        ByteBuffer rawData = null;
+        ByteBuffer zlibData = null;
+        int rawSize = -1;
+        while (blob.hasRemaining()) {
+            int tag = (int) readVarint(blob);
+            switch (tag) {
+                case 1 << 3 | 2:
+                    rawData = slice(blob, (int) readVarint(blob));
+                    break;
+                case 2 << 3:
+                    rawSize = (int) readVarint(blob);
+                    break;
+                case 3 << 3 | 2:
+                    zlibData = slice(blob, (int) readVarint(blob));
+                    break;
+                default:
+                    skipField(blob, tag);
+            }
+        }
+        if (rawData != null) {
+            this.ensureRaw(rawData.remaining());
+            int size = rawData.remaining();
+            rawData.get(this.raw, 0, size);
+            return size;
+        }
+        if (zlibData == null)
+            throw new IOException("Unsupported blob compression");
+        if (rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+            throw new IOException("Invalid raw size " + rawSize);
+
+        this.ensureRaw(rawSize);
+        this.inflater.reset();
+        this.setInput(zlibData);
+        try {
+            int n = this.inflater.inflate(this.raw, 0, rawSize);
+            if (n != rawSize || !this.inflater.finished())
+                throw new IOException("Blob size mismatch: " + n + " instead of " + rawSize);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return rawSize;
+    }
+
+    /**
+     * Hands the mapped data to the inflater, without a copy where the
+     * runtime allows it.
+     *
+     * @param data
+     */
+    private void setInput(ByteBuffer data) {
+        MethodHandle handle = setInputBuffer;
+        if (handle != null) {
+            try {
+                handle.invokeExact(this.inflater, data);
+                return;
+            } catch (WrongMethodTypeException | ClassCastException e) {
+                setInputBuffer = null;
+                Logger.getLogger(MappedPbfReader.class.getName()).log(Level.WARNING,
+                        "Inflater.setInput(ByteBuffer) failed, blobs are copied from now on", e);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                // setInput() declares no checked exceptions
+                throw new IllegalStateException(e);
+            }
+        }
+        int len = data.remaining();
+        if (this.scratch.length < len)
+            this.scratch = new byte[len];
+        data.get(this.scratch, 0, len);
+        this.inflater.setInput(this.scratch, 0, len);
+    }
+
+    private void ensureRaw(int size) {
+        if (this.raw.length < size)
+            this.raw = new byte[Math.max(size, this.raw.length + (this.raw.length >> 1))];
+    }
+
+    /**
+     * @param offset
+     * @param length
+     * @return buffer over the given range of the file
+     * @throws IOException
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (this.window == null || offset < this.windowStart || offset + length > this.windowEnd) {
+            long size = Math.min(Math.max(WINDOW_SIZE, length), this.fileSize - offset);
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            this.windowStart = offset;
+            this.windowEnd = offset + size;
+        }
+        // called through Buffer and ByteBuffer, the covariant overrides
+        // of newer JDKs don't exist on Java 8
+        ByteBuffer b = ((ByteBuffer) this.window).duplicate();
+        ((Buffer) b).position((int) (offset - this.windowStart));
+        ((Buffer) b).limit(b.position() + length);
+        return b.slice();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.window = null;
+        this.inflater.end();
+        this.channel.close();
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int len) throws IOException {
+        if (len < 0 || len > b.remaining())
+            throw new IOException("Invalid field length " + len);
+        ByteBuffer s = b.slice();
+        ((Buffer) s).limit(len);
+        ((Buffer) b).position(b.position() + len);
+        return s;
+    }
+
+    private static long readVarint(ByteBuffer b) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!b.hasRemaining())
+                throw new IOException("Truncated varint");
+            byte x = b.get();
+            result |= (long) (x & 0x7f) << shift;
+            if (x >= 0)
+                return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void skipField(ByteBuffer b, int tag) throws IOException {
+        switch (tag & 7) {
+            case 0:
+                readVarint(b);
+                break;
+            case 1:
+                slice(b, 8);
+                break;
+            case 2:
+                slice(b, (int) readVarint(b));
+                break;
+            case 5:
+                slice(b, 4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + (tag & 7));
+        }
+    }
+
+    private static MethodHandle findSetInputBuffer() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Inflater.class, "setInput",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
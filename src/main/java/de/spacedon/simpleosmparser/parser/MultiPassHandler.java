@@ -0,0 +1,27 @@
+package de.spacedon.simpleosmparser.parser;
+
+/**
+ * A handler which needs to see the file several times, each time for one
+ * element type. The reader asks for the next pass, feeds the whole file
+ * (onEnd() included) and asks again until 0 is returned. Elements of other
+ * types than the pass may be skipped by the reader, but needn't be.
+ *
+ * @author Philipp Thöricht
+ * @see OsmFileParser#parseInPasses(java.io.File, MultiPassHandler)
+ * @see PbfFileParser#parseInPasses(java.io.File, MultiPassHandler)
+ */
+public interface MultiPassHandler extends OsmHandler {
+    // content mask bits, the same as the ones of MappedPbfReader
+    int NODES = PbfBlockDecoder.NODES;
+    int WAYS = PbfBlockDecoder.WAYS;
+    int RELATIONS = PbfBlockDecoder.RELATIONS;
+    int ALL = PbfBlockDecoder.ALL;
+
+    /**
+     * Ends the current pass and decides on the next one.
+     *
+     * @return content mask of the element type the next pass reads, 0 if
+     * all passes are done
+     */
+    int nextPass();
+}
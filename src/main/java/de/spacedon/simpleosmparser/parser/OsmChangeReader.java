@@ -0,0 +1,228 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
+import de.spacedon.simpleosmparser.store.ElementStore;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Applies OsmChange files (*.osc, e.g. the minutely or hourly diffs) to the
+ * stores of a parser in place. Created and modified elements replace the
+ * stored ones, deleted ones are removed. Only the changed elements are
+ * touched: their back-references (see OSMElement.getBelongsTo()) are moved
+ * from the old to the new element and the spatial and reference indexes of
+ * the parser are updated through putNode(), removeNode() and so on.
+ * <p>
+ * Changes are applied in file order, as the API and Osmosis write them:
+ * nodes before the ways and relations created with them and deleted after
+ * them. A change older than the stored element is skipped, so overlapping
+ * diffs can be applied. The element filter of the parser isn't applied.
+ *
+ * @author Philipp Thöricht
+ */
+public class OsmChangeReader {
+    private final OsmParser parser;
+
+    /**
+     * @param parser the parser whose stores are changed
+     */
+    public OsmChangeReader(OsmParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Files ending in .gz or .bz2 are decompressed.
+     *
+     * @param file
+     * @return figures of the applied changes
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public ChangeStats apply(File file) throws IOException, XMLStreamException {
+        try (InputStream in = open(file)) {
+            return this.apply(in);
+        }
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz"))
+                return new GZIPInputStream(in, 1 << 16);
+            if (file.getName().endsWith(".bz2"))
+                return new BZip2CompressorInputStream(new BufferedInputStream(in, 1 << 16), true);
+            return new BufferedInputStream(in, 1 << 16);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Elements outside of create, modify and delete blocks, e.g. of a plain
+     * *.osm file, are applied like modified ones.
+     *
+     * @param in the stream is not closed
+     * @return figures of the applied changes
+     * @throws XMLStreamException
+     */
+    public ChangeStats apply(InputStream in) throws XMLStreamException {
+        ChangeStats stats = new ChangeStats();
+        long start = System.nanoTime();
+        OsmXmlReader reader = new OsmXmlReader(in, this.parser.getStringDictionary());
+        try {
+            OSMElement ele;
+            while ((ele = reader.read()) != null)
+                this.apply(ele, reader.getAction(), stats);
+            stats.errors = reader.getErrorCount();
+        } finally {
+            reader.close();
+        }
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private void apply(OSMElement ele, String action, ChangeStats stats) {
+        OSMElement old = this.get(ele.getElementtype(), ele.getId());
+        if (old != null && ele.getVersion() > 0 && old.getVersion() > ele.getVersion()) {
+            stats.skipped++;
+            return;
+        }
+        boolean link = this.parser.isReverseLinks();
+        if ("delete".equals(action)) {
+            if (old == null) {
+                stats.skipped++;
+                return;
+            }
+            if (link)
+                this.unlink(old);
+            this.remove(old);
+            stats.deleted++;
+            return;
+        }
+        if (link && old != null) {
+            this.unlink(old);
+            // the parents still reference the id, they now hold the new element
+            for (OSMElement parent : old.getBelongsTo())
+                ele.addBelongsTo(parent);
+        }
+        this.put(ele);
+        if (link)
+            this.link(ele);
+        if ("create".equals(action))
+            stats.created++;
+        else
+            stats.modified++;
+    }
+
+    private OSMElement get(int type, long id) {
+        switch (type) {
+            case OSMElement.NODE:
+                return this.parser.getNode(id);
+            case OSMElement.WAY:
+                return this.parser.getWay(id);
+            default:
+                return this.parser.getRelation(id);
+        }
+    }
+
+    private void put(OSMElement ele) {
+        switch (ele.getElementtype()) {
+            case OSMElement.NODE:
+                this.parser.putNode((OSMNode) ele);
+                break;
+            case OSMElement.WAY:
+                this.parser.putWay((OSMWay) ele);
+                break;
+            default:
+                this.parser.putRelation((OSMRelation) ele);
+        }
+    }
+
+    private void remove(OSMElement ele) {
+        switch (ele.getElementtype()) {
+            case OSMElement.NODE:
+                this.parser.removeNode(ele.getId());
+                break;
+            case OSMElement.WAY:
+                this.parser.removeWay(ele.getId());
+                break;
+            default:
+                this.parser.removeRelation(ele.getId());
+        }
+    }
+
+    /**
+     * Removes the element from the back-references of its refs and members.
+     */
+    private void unlink(OSMElement ele) {
+        if (ele instanceof OSMWay) {
+            OSMWay w = (OSMWay) ele;
+            // closed ways are linked twice to their first node
+            for (int i = 0; i < w.getRefCount(); i++)
+                unlink(this.linkable(w.getRef(i)), w);
+        } else if (ele instanceof OSMRelation) {
+            OSMRelation r = (OSMRelation) ele;
+            for (long ref : r.getMembersByElementType(OSMElement.NODE).keySet())
+                unlink(this.linkable(ref), r);
+            for (long ref : r.getMembersByElementType(OSMElement.WAY).keySet())
+                unlink(this.parser.getWay(ref), r);
+            for (long ref : r.getMembersByElementType(OSMElement.RELATION).keySet())
+                unlink(this.parser.getRelation(ref), r);
+        }
+    }
+
+    private static void unlink(OSMElement member, OSMElement parent) {
+        if (member != null)
+            member.removeBelongsTo(parent);
+    }
+
+    /**
+     * Adds the element to the back-references of its refs and members, like
+     * ReverseLinker does after reading a file.
+     */
+    private void link(OSMElement ele) {
+        if (ele instanceof OSMWay) {
+            OSMWay w = (OSMWay) ele;
+            for (int i = 0; i < w.getRefCount(); i++)
+                link(this.linkable(w.getRef(i)), w);
+        } else if (ele instanceof OSMRelation) {
+            OSMRelation r = (OSMRelation) ele;
+            for (long ref : r.getMembersByElementType(OSMElement.NODE).keySet())
+                link(this.linkable(ref), r);
+            for (long ref : r.getMembersByElementType(OSMElement.WAY).keySet())
+                link(this.parser.getWay(ref), r);
+            for (long ref : r.getMembersByElementType(OSMElement.RELATION).keySet())
+                link(this.parser.getRelation(ref), r);
+        }
+    }
+
+    private static void link(OSMElement member, OSMElement parent) {
+        if (member != null)
+            member.addBelongsTo(parent);
+    }
+
+    /**
+     * @param id
+     * @return the node if it can hold links, without creating objects for
+     * compact nodes
+     */
+    private OSMNode linkable(long id) {
+        ElementStore<OSMNode> nodes = this.parser.getNodes();
+        if (nodes instanceof CompactNodeStore && ((CompactNodeStore) nodes).isCompact(id))
+            return null;
+        return nodes.get(id);
+    }
+}
@@ -1,43 +1,99 @@
 package de.spacedon.simpleosmparser.parser;
 
+import de.spacedon.simpleosmparser.filter.TagFilter;
 import de.spacedon.simpleosmparser.osm.OSMElement;
 import de.spacedon.simpleosmparser.osm.OSMNode;
 import de.spacedon.simpleosmparser.osm.OSMRelation;
 import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.ElementStoreFactory;
+import de.spacedon.simpleosmparser.util.ParallelBZip2InputStream;
+import de.spacedon.simpleosmparser.util.ReadAheadInputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.FactoryConfigurationError;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
-import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 
 /**
- * Reads and writes *.osm files (XML format).
+ * Reads and writes *.osm files (XML format). Files ending in .gz or .bz2 are
+ * decompressed on the fly, on a thread of their own, and compressed when
+ * written.
  *
  * @author Philipp Thöricht
  */
 public class OsmFileParser extends OsmParser {
-    private XMLStreamReader reader;
+    private int threads = 1;
+    private boolean byteScanner;
 
     public OsmFileParser() {
 
     }
 
     /**
+     * @param storeFactory creates the stores for nodes, ways and relations
+     */
+    public OsmFileParser(ElementStoreFactory storeFactory) {
+        super(storeFactory);
+    }
+
+    /**
+     * With more than one thread the file is cut into chunks which are parsed
+     * on a pool of workers, see ParallelXmlReader. Compressed files can't be
+     * cut; *.bz2 files are decompressed by that many threads instead, see
+     * ParallelBZip2InputStream. writeOsmFile() serializes with as many
+     * threads.
+     *
+     * @param threads number of parsing threads, 1 by default
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of parsing threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Reads the XML with OsmXmlScanner, which tokenizes the bytes itself,
+     * instead of the StAX based OsmXmlReader.
+     *
+     * @param byteScanner true to use the scanner, false by default
+     */
+    public void setByteScanner(boolean byteScanner) {
+        this.byteScanner = byteScanner;
+    }
+
+    /**
+     * @return true if files are read with OsmXmlScanner
+     */
+    public boolean isByteScanner() {
+        return this.byteScanner;
+    }
+
+    /**
+     * Reads the file into the stores of this parser, or opens its snapshot
+     * if a parse cache is set and has one.
+     *
      * @param file
      * @return number of errors while reading
      * @throws IOException
@@ -45,363 +101,253 @@ public class OsmFileParser extends OsmParser {
      * @throws FactoryConfigurationError
      */
     public long parseOsmFile(File file) throws IOException, XMLStreamException, FactoryConfigurationError {
-        long numErrors = 0;
-        InputStream in = new FileInputStream(file);
-        try {
-            reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
-            int event = reader.getEventType();
-            while (true) {
-                if (event == XMLStreamConstants.START_ELEMENT) {
-                    if ("osm".equals(reader.getLocalName())) {
-                        numErrors = readOsm();
-                    } else {
-                        jumpToEnd();
-                    }
-                } else if (event == XMLStreamConstants.END_ELEMENT)
-                    return numErrors;
-
-                if (reader.hasNext())
-                    event = reader.next();
-                else
-                    break;
-            }
-            reader.close();
-        } finally {
-            in.close();
-        }
-        return numErrors;
+        String key = this.cacheKey(file);
+        if (this.loadCached(key))
+            return 0;
+        long errors = this.parseOsmFile(file, this.storeHandler());
+        if (errors == 0)
+            this.storeCached(key);
+        return errors;
     }
 
     /**
+     * Reads the file and hands every element to the handler instead of
+     * storing it. Only the element being read is held in memory.
+     *
      * @param file
-     * @throws javax.xml.stream.XMLStreamException
+     * @param handler
+     * @return number of errors while reading
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws FactoryConfigurationError
      */
-    public void writeOsmFile(File file) throws XMLStreamException {
-        XMLStreamWriter writer;
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        String timestamp = sdf.format(cal.getTime());
-        try {
-            OutputStream out = new FileOutputStream(file);
-            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
-            writer.writeStartDocument();
-
-            writer.writeStartElement("osm");
-            writer.writeAttribute("version", "0.6");
-            writer.writeAttribute("upload", "false");
-            writer.writeAttribute("generator", "CN");
-            for (OSMNode n : this.nodes.values()) {
-                writer.writeStartElement("node");
-                writer.writeAttribute("id", String.valueOf(n.getId()));
-                if (n.getTimestamp() != null)
-                    writer.writeAttribute("timestamp", sdf.format(n.getTimestamp()));
-                else
-                    writer.writeAttribute("timestamp", timestamp);
-                writer.writeAttribute("version", String.valueOf(n.getVersion()));
-                writer.writeAttribute("lat", String.valueOf(n.getLat()));
-                writer.writeAttribute("lon", String.valueOf(n.getLon()));
-                this.writeTags(writer, n);
-                writer.writeEndElement();
-                writer.writeCharacters(System.getProperty("line.separator"));
-            }
-            for (OSMWay w : this.ways.values()) {
-                writer.writeStartElement("way");
-                writer.writeAttribute("id", String.valueOf(w.getId()));
-                if (w.getTimestamp() != null)
-                    writer.writeAttribute("timestamp", sdf.format(w.getTimestamp()));
-                else
-                    writer.writeAttribute("timestamp", timestamp);
-                writer.writeAttribute("version", String.valueOf(w.getVersion()));
-                for (long nid : w.getRefs()) {
-                    writer.writeEmptyElement("nd");
-                    writer.writeAttribute("ref", String.valueOf(nid));
-                }
-                this.writeTags(writer, w);
-                writer.writeEndElement();
-                writer.writeCharacters(System.getProperty("line.separator"));
-            }
-            for (OSMRelation r : this.relations.values()) {
-                writer.writeStartElement("relation");
-                writer.writeAttribute("id", String.valueOf(r.getId()));
-                if (r.getTimestamp() != null)
-                    writer.writeAttribute("timestamp", sdf.format(r.getTimestamp()));
-                else
-                    writer.writeAttribute("timestamp", timestamp);
-                writer.writeAttribute("version", String.valueOf(r.getVersion()));
-                for (int i = 0; i < r.getAllMembers().size(); i++) {
-                    HashMap<Long, String> element_map = r.getAllMembers().get(i);
-                    for (Long id : element_map.keySet()) {
-                        writer.writeEmptyElement("member");
-                        switch (i) {
-                            case 0:
-                                writer.writeAttribute("type", "node");
-                                break;
-                            case 1:
-                                writer.writeAttribute("type", "way");
-                                break;
-                            case 2:
-                                writer.writeAttribute("type", "relation");
-                                break;
-                        }
-                        writer.writeAttribute("ref", String.valueOf(id));
-                        writer.writeAttribute("role", element_map.get(id));
-                    }
-                }
-                this.writeTags(writer, r);
-                writer.writeEndElement();
-                writer.writeCharacters(System.getProperty("line.separator"));
-            }
-            writer.writeEndElement();
-            writer.writeCharacters(System.getProperty("line.separator"));
-
-            writer.flush();
-            writer.close();
-            out.close();
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(SimpleOsmParser.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(OsmFileParser.class.getName()).log(Level.SEVERE, null, ex);
+    public long parseOsmFile(File file, OsmHandler handler) throws IOException, XMLStreamException, FactoryConfigurationError {
+        if (this.threads > 1 && !isCompressed(file)) {
+            ParallelXmlReader reader = new ParallelXmlReader(this.threads, this.dictionary);
+            reader.setByteScanner(this.byteScanner);
+            return reader.read(file, handler);
+        }
+        try (InputStream in = this.open(file);
+             ElementReader xml = this.createReader(in)) {
+            OSMElement ele;
+            while ((ele = xml.read()) != null)
+                handler.onElement(ele);
+            handler.onEnd();
+            return xml.getErrorCount();
         }
     }
 
     /**
-     * @param writer
-     * @param ele
+     * Reads the file once for each pass the handler asks for.
+     *
+     * @param file
+     * @param handler
+     * @return number of errors while reading
+     * @throws IOException
      * @throws XMLStreamException
      */
-    private void writeTags(XMLStreamWriter writer, OSMElement ele) throws XMLStreamException {
-        for (String key : ele.getTags().keySet()) {
-            writer.writeEmptyElement("tag");
-            writer.writeAttribute("k", key);
-            writer.writeAttribute("v", ele.getTag(key));
-        }
+    public long parseInPasses(File file, MultiPassHandler handler) throws IOException, XMLStreamException {
+        long errors = 0;
+        // every pass sees the same errors
+        while (handler.nextPass() != 0)
+            errors = this.parseOsmFile(file, handler);
+        return errors;
     }
 
     /**
+     * Reads only the elements of the given types matching the filter plus
+     * the elements they reference into the stores of this parser, see
+     * ReferenceClosure. The element filter of the parser isn't applied.
+     *
+     * @param file
+     * @param filter null to keep all elements of the given types
+     * @param types  content mask of ReferenceClosure, e.g. ReferenceClosure.WAYS
      * @return number of errors while reading
+     * @throws IOException
+     * @throws XMLStreamException
      */
-    private long readOsm() throws XMLStreamException {
-        String version = reader.getAttributeValue(null, "version");
-        if (version != null)
-            ;
-        String upload = reader.getAttributeValue(null, "upload");
-        if (upload != null)
-            ;
-        String generator = reader.getAttributeValue(null, "generator");
-
-        long numErrors = 0;
-        while (true) {
-            int event = reader.next();
-            if (event == XMLStreamConstants.START_ELEMENT) {
-                switch (reader.getLocalName()) {
-//                    case "bounds":
-//                        readBounds(generator);
-//                        break;
-                    case "node":
-                        OSMNode n = readNode();
-                        if (n == null) {
-                            numErrors++;
-                            continue;
-                        }
-                        this.nodes.put(n.getId(), n);
-                        break;
-                    case "way":
-                        OSMWay w = readWay();
-                        if (w == null) {
-                            numErrors++;
-                            continue;
-                        }
-                        this.ways.put(w.getId(), w);
-                        break;
-                    case "relation":
-                        OSMRelation r = readRelation();
-                        if (r == null) {
-                            numErrors++;
-                            continue;
-                        }
-                        this.relations.put(r.getId(), r);
-                        break;
-//                    case "changeset":
-//                        readChangeset(uploadChangesetId);
-//                        break;
-                    default:
-                        jumpToEnd();
-                }
-            } else if (event == XMLStreamConstants.END_ELEMENT) {
-                return numErrors;
-            }
-        }
+    public long parseOsmFile(File file, TagFilter filter, int types) throws IOException, XMLStreamException {
+        return this.parseInPasses(file, new ReferenceClosure(filter, types, this.storeHandler(null)));
     }
 
     /**
-     * @return
+     * Reads the part of the file within the bounding box into the stores of
+     * this parser, see BoundingBoxExtract. The element filter of the parser
+     * isn't applied.
+     *
+     * @param file
+     * @param minLat
+     * @param minLon
+     * @param maxLat
+     * @param maxLon
+     * @param completeWays true to keep all nodes of the ways crossing the
+     *                     border, false to keep only the ones inside
+     * @return number of errors while reading
+     * @throws IOException
      * @throws XMLStreamException
      */
-    private OSMNode readNode() throws XMLStreamException {
-        OSMNode n = null;
-        String id = reader.getAttributeValue(null, "id");
-        String lat = reader.getAttributeValue(null, "lat");
-        String lon = reader.getAttributeValue(null, "lon");
-        if (id != null && lat != null && lon != null) {
-            n = new OSMNode(Long.valueOf(id), Double.valueOf(lat), Double.valueOf(lon));
-        }
-        String version = reader.getAttributeValue(null, "version");
-        if (n != null && version != null)
-            n.setVersion(Integer.valueOf(version));
-        String visible = reader.getAttributeValue(null, "visible");
-        if (n != null && visible != null)
-            n.setVisible(Boolean.valueOf(visible));
-        String user = reader.getAttributeValue(null, "user");
-        if (n != null && user != null)
-            n.setUser(user);
-
-        while (true) {
-            int event = reader.next();
-            if (event == XMLStreamConstants.START_ELEMENT) {
-                if ("tag".equals(reader.getLocalName()))
-                    n.setTag(readTag());
-                else
-                    jumpToEnd();
-            } else if (event == XMLStreamConstants.END_ELEMENT)
-                return n;
-        }
+    public long extractOsmFile(File file, double minLat, double minLon, double maxLat, double maxLon,
+                               boolean completeWays) throws IOException, XMLStreamException {
+        return this.parseInPasses(file, new BoundingBoxExtract(minLat, minLon, maxLat, maxLon, completeWays,
+                this.storeHandler(null)));
     }
 
     /**
-     * @return
+     * Reads the file lazily. The caller has to close the iterator unless it
+     * is consumed to the end.
+     *
+     * @param file
+     * @return iterator over the nodes, ways and relations in file order
+     * @throws IOException
      * @throws XMLStreamException
      */
-    private OSMWay readWay() throws XMLStreamException {
-        OSMWay w = null;
-
-        String id = reader.getAttributeValue(null, "id");
-        if (id != null)
-            w = new OSMWay(Long.valueOf(id));
-        String version = reader.getAttributeValue(null, "version");
-        if (w != null && version != null)
-            w.setVersion(Integer.valueOf(version));
-        String visible = reader.getAttributeValue(null, "visible");
-        if (w != null && visible != null)
-            w.setVisible(Boolean.valueOf(visible));
-        String user = reader.getAttributeValue(null, "user");
-        if (w != null && user != null)
-            w.setUser(user);
-
-        while (true) {
-            int event = reader.next();
-            if (event == XMLStreamConstants.START_ELEMENT) {
-                switch (reader.getLocalName()) {
-                    case "nd":
-                        String ref = reader.getAttributeValue(null, "ref");
-                        if (w != null && ref != null) {
-                            w.addRefToEnd(Long.valueOf(ref));
-                            // add a reverse link (inverse to "ref") to the nodes of
-                            // this way
-                            this.nodes.get(Long.valueOf(ref)).addBelongsTo(w);
-                        }
-                        jumpToEnd();
-                        break;
-                    case "tag":
-                        w.setTag(readTag());
-                        break;
-                    default:
-                        jumpToEnd();
-                }
-            } else if (event == XMLStreamConstants.END_ELEMENT)
-                return w;
+    public OsmIterator iterator(File file) throws IOException, XMLStreamException {
+        InputStream in = this.open(file);
+        try {
+            return new XmlIterator(in, this.createReader(in));
+        } catch (XMLStreamException | RuntimeException e) {
+            in.close();
+            throw e;
         }
     }
 
     /**
-     * @return
-     * @throws XMLStreamException
+     * @param file
+     * @return the decompressed content of the file
+     * @throws IOException
      */
-    private OSMRelation readRelation() throws XMLStreamException {
-        OSMRelation r = null;
+    private InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz"))
+                return new ReadAheadInputStream(new GZIPInputStream(in, 1 << 16));
+            if (file.getName().endsWith(".bz2")) {
+                if (this.threads > 1)
+                    return new ParallelBZip2InputStream(in, this.threads);
+                return new ReadAheadInputStream(new BZip2CompressorInputStream(new BufferedInputStream(in, 1 << 16), true));
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
 
-        String id = reader.getAttributeValue(null, "id");
-        if (id != null)
-            r = new OSMRelation(Long.valueOf(id), "");
-        String version = reader.getAttributeValue(null, "version");
-        if (r != null && version != null)
-            r.setVersion(Integer.valueOf(version));
-        String visible = reader.getAttributeValue(null, "visible");
-        if (r != null && visible != null)
-            r.setVisible(Boolean.valueOf(visible));
-        String user = reader.getAttributeValue(null, "user");
-        if (r != null && user != null)
-            r.setUser(user);
+    private static boolean isCompressed(File file) {
+        return file.getName().endsWith(".gz") || file.getName().endsWith(".bz2");
+    }
 
-        while (true) {
-            int event = reader.next();
-            if (r != null && event == XMLStreamConstants.START_ELEMENT) {
-                switch (reader.getLocalName()) {
-                    case "member":
-                        String type = reader.getAttributeValue(null, "type");
-                        String ref = reader.getAttributeValue(null, "ref");
-                        String role = reader.getAttributeValue(null, "role");
-                        if (type != null && ref != null && role != null) {
-                            // add a reverse link (inverse to "member" attribute) to
-                            // the members of this relation
-                            switch (type) {
-                                case "node":
-                                    r.addMember(OSMElement.NODE, Long.valueOf(ref), role);
-                                    if (Long.valueOf(ref) != null && this.nodes.containsKey(Long.valueOf(ref)))
-                                        this.nodes.get(Long.valueOf(ref)).addBelongsTo(r);
-                                    break;
-                                case "way":
-                                    r.addMember(OSMElement.WAY, Long.valueOf(ref), role);
-                                    if (Long.valueOf(ref) != null && this.ways.containsKey(Long.valueOf(ref)))
-                                        this.ways.get(Long.valueOf(ref)).addBelongsTo(r);
-                                    break;
-                                case "relation":
-                                    r.addMember(OSMElement.RELATION, Long.valueOf(ref), role);
-                                    if (Long.valueOf(ref) != null && this.relations.containsKey(Long.valueOf(ref)))
-                                        this.relations.get(Long.valueOf(ref)).addBelongsTo(r);
-                                    break;
-                                default:
-                                    break;
-                            }
-                        }
-                        jumpToEnd();
-                        break;
-                    case "tag":
-                        r.setTag(readTag());
-                        break;
-                    default:
-                        jumpToEnd();
-                }
-            } else if (event == XMLStreamConstants.END_ELEMENT)
-                return r;
-        }
+    private ElementReader createReader(InputStream in) throws XMLStreamException {
+        if (this.byteScanner)
+            return new OsmXmlScanner(in, this.dictionary);
+        return new OsmXmlReader(in, this.dictionary);
     }
 
     /**
-     * @return
+     * Like iterator(), use it in a try-with-resources block.
+     *
+     * @param file
+     * @return stream over the nodes, ways and relations in file order
+     * @throws IOException
      * @throws XMLStreamException
      */
-    private HashMap<String, String> readTag() throws XMLStreamException {
-        HashMap<String, String> hm = new HashMap<>();
-        String key = reader.getAttributeValue(null, "k");
-        String value = reader.getAttributeValue(null, "v");
-        if (key == null || value == null)
-            ;   // error
+    public Stream<OSMElement> stream(File file) throws IOException, XMLStreamException {
+        return this.iterator(file).stream();
+    }
 
-        hm.put(key, value);
-        jumpToEnd();
-        return hm;
+    /**
+     * Writes all stored elements, nodes first, then ways, then relations.
+     * Files ending in .gz or .bz2 are compressed. Uses as many threads as
+     * set for parsing, see OsmXmlWriter.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeOsmFile(File file) throws IOException {
+        this.writeOsmFile(file, this.threads);
     }
 
     /**
-     * @throws XMLStreamException
+     * @param file
+     * @param threads number of threads serializing and compressing the XML
+     * @throws IOException
+     * @see #writeOsmFile(File)
+     */
+    public void writeOsmFile(File file, int threads) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        OsmXmlWriter xml;
+        try {
+            if (file.getName().endsWith(".bz2"))
+                out = new BZip2CompressorOutputStream(new BufferedOutputStream(out, 1 << 16));
+            xml = new OsmXmlWriter(out, threads);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+        try (OsmXmlWriter writer = xml) {
+            writer.setGzip(file.getName().endsWith(".gz"));
+            for (OSMNode n : this.nodes.values())
+                writer.write(n);
+            for (OSMWay w : this.ways.values())
+                writer.write(w);
+            for (OSMRelation r : this.relations.values())
+                writer.write(r);
+        }
+    }
+
+    /**
+     * Pulls the elements straight from the StAX reader.
      */
-    private void jumpToEnd() throws XMLStreamException {
-        while (true) {
-            int event = reader.next();
-            if (event == XMLStreamConstants.START_ELEMENT)
-                jumpToEnd();
-            else if (event == XMLStreamConstants.END_ELEMENT)
+    private static class XmlIterator implements OsmIterator {
+        private final InputStream in;
+        private final ElementReader xml;
+        private OSMElement next;
+        private boolean closed;
+
+        XmlIterator(InputStream in, ElementReader xml) {
+            this.in = in;
+            this.xml = xml;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.next == null && !this.closed) {
+                try {
+                    this.next = this.xml.read();
+                } catch (XMLStreamException e) {
+                    this.close();
+                    throw new IllegalStateException(e);
+                } catch (IOException e) {
+                    this.close();
+                    throw new UncheckedIOException(e);
+                }
+                if (this.next == null)
+                    this.close();
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public OSMElement next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            OSMElement ele = this.next;
+            this.next = null;
+            return ele;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed)
                 return;
+            this.closed = true;
+            this.next = null;
+            try {
+                this.xml.close();
+                this.in.close();
+            } catch (XMLStreamException | IOException ex) {
+                Logger.getLogger(OsmFileParser.class.getName()).log(Level.WARNING, null, ex);
+            }
         }
     }
 }
@@ -0,0 +1,80 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+/**
+ * Receives the elements of a file one by one while it is read, so a file can
+ * be processed in a single pass without keeping it in memory. Elements are
+ * handed over in file order, usually nodes first, then ways, then relations.
+ * <p>
+ * All methods do nothing by default, implement the ones you need.
+ *
+ * @author Philipp Thöricht
+ * @see OsmFileParser#parseOsmFile(java.io.File, OsmHandler)
+ * @see PbfFileParser#parsePbfFile(java.io.File, OsmHandler)
+ */
+public interface OsmHandler {
+
+    /**
+     * @param node
+     */
+    default void onNode(OSMNode node) {
+    }
+
+    /**
+     * @param way
+     */
+    default void onWay(OSMWay way) {
+    }
+
+    /**
+     * @param relation
+     */
+    default void onRelation(OSMRelation relation) {
+    }
+
+    /**
+     * Receives an untagged node as its bare coordinate if isCoordinateOnly()
+     * is true. Readers decoding the coordinates themselves then save the
+     * OSMNode; others call onNode() anyway.
+     *
+     * @param id
+     * @param lat
+     * @param lon
+     */
+    default void onCoordinate(long id, double lat, double lon) {
+        this.onNode(new OSMNode(id, lat, lon));
+    }
+
+    /**
+     * @return true if id and coordinate are all this handler needs of
+     * untagged nodes, false by default
+     */
+    default boolean isCoordinateOnly() {
+        return false;
+    }
+
+    /**
+     * Passes the element on to onNode(), onWay() or onRelation(). Readers
+     * call those directly, override them rather than this method.
+     *
+     * @param ele
+     */
+    default void onElement(OSMElement ele) {
+        if (ele instanceof OSMNode)
+            this.onNode((OSMNode) ele);
+        else if (ele instanceof OSMWay)
+            this.onWay((OSMWay) ele);
+        else if (ele instanceof OSMRelation)
+            this.onRelation((OSMRelation) ele);
+    }
+
+    /**
+     * Called once after the last element of a file.
+     */
+    default void onEnd() {
+    }
+}
@@ -0,0 +1,37 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily reads the elements of a file. The file is only read as far as
+ * elements are requested; close the iterator to stop early and release the
+ * file. Reaching the end closes it as well.
+ *
+ * @author Philipp Thöricht
+ * @see OsmFileParser#iterator(java.io.File)
+ * @see PbfFileParser#iterator(java.io.File)
+ */
+public interface OsmIterator extends Iterator<OSMElement>, AutoCloseable {
+
+    /**
+     * Releases the file, further calls to hasNext() return false.
+     */
+    @Override
+    void close();
+
+    /**
+     * @return sequential stream over the remaining elements, closing the
+     * stream closes this iterator
+     */
+    default Stream<OSMElement> stream() {
+        Spliterator<OSMElement> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+}
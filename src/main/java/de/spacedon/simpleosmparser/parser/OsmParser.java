@@ -1,32 +1,71 @@
 package de.spacedon.simpleosmparser.parser;
 
+import de.spacedon.simpleosmparser.filter.TagFilter;
 import de.spacedon.simpleosmparser.osm.OSMElement;
 import de.spacedon.simpleosmparser.osm.OSMNode;
 import de.spacedon.simpleosmparser.osm.OSMRelation;
 import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
+import de.spacedon.simpleosmparser.store.ElementStore;
+import de.spacedon.simpleosmparser.store.ElementStoreFactory;
+import de.spacedon.simpleosmparser.store.GridIndex;
+import de.spacedon.simpleosmparser.store.ReferenceIndex;
+import de.spacedon.simpleosmparser.store.ReverseLinker;
+import de.spacedon.simpleosmparser.store.Snapshot;
+import de.spacedon.simpleosmparser.util.LongList;
+import de.spacedon.simpleosmparser.util.StringDictionary;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
 
 /**
  * @author Philipp Thöricht
  */
 public abstract class OsmParser {
 
-    protected HashMap<Long, OSMNode> nodes;
-    protected HashMap<Long, OSMWay> ways;
-    protected HashMap<Long, OSMRelation> relations;
+    protected final ElementStoreFactory storeFactory;
+    protected ElementStore<OSMNode> nodes;
+    protected ElementStore<OSMWay> ways;
+    protected ElementStore<OSMRelation> relations;
+    private boolean compactNodes;
+    private GridIndex spatialIndex;
+    private int spatialIndexModCount;
+    private double spatialCellSize = GridIndex.DEFAULT_CELL_SIZE;
+    private ReferenceIndex referenceIndex;
+    protected StringDictionary dictionary = new StringDictionary();
+    protected TagFilter elementFilter;
+    private boolean reverseLinks = true;
+    private int linkThreads = 1;
+    private ParseCache parseCache;
+    private int refIndexWaysModCount;
+    private int refIndexRelationsModCount;
 
     /**
-     *
+     * Uses open addressing stores with primitive long keys.
      */
     public OsmParser() {
-        this.nodes = new HashMap<>();
-        this.ways = new HashMap<>();
-        this.relations = new HashMap<>();
+        this(ElementStoreFactory.openAddressing());
+    }
+
+    /**
+     * @param storeFactory creates the stores for nodes, ways and relations
+     */
+    public OsmParser(ElementStoreFactory storeFactory) {
+        this.storeFactory = storeFactory;
+        this.nodes = this.createNodeStore();
+        this.ways = storeFactory.createStore(OSMElement.WAY);
+        this.relations = storeFactory.createStore(OSMElement.RELATION);
     }
 
     /**
@@ -50,11 +89,12 @@ public abstract class OsmParser {
         long min_id = 0L;
         long max_id = 0L;
         if (!this.nodes.isEmpty() && !parser.nodes.isEmpty()) {
-            min_id = Math.min(Collections.min(this.nodes.keySet()), Collections.min(parser.nodes.keySet()));
-            max_id = Math.max(Collections.max(this.nodes.keySet()), Collections.max(parser.nodes.keySet()));
+            min_id = Math.min(this.nodes.minId(), parser.nodes.minId());
+            max_id = Math.max(this.nodes.maxId(), parser.nodes.maxId());
         }
         changed_ids.put(OSMElement.NODE, new HashMap<Long, Long>());
-        for (Long id : parser.getNodes().keySet()) {
+        for (PrimitiveIterator.OfLong iter = parser.getNodes().idIterator(); iter.hasNext(); ) {
+            long id = iter.nextLong();
             if (this.nodes.containsKey(id)) {
                 OSMNode n = parser.getNode(id);
                 remove_nodes.add(id);
@@ -75,7 +115,8 @@ public abstract class OsmParser {
         }
         this.nodes.putAll(parser.getNodes());
 
-        for (Long id : parser.getNodes().keySet()) {
+        for (PrimitiveIterator.OfLong iter = parser.getNodes().idIterator(); iter.hasNext(); ) {
+            long id = iter.nextLong();
             if (nodetags_to_merge != null && !nodetags_to_merge.isEmpty()) {
                 long same_node = this.samePos(id, parser.getNode(id).getLat(), parser.getNode(id).getLon(), 0);
                 if (same_node != 0) {
@@ -97,37 +138,27 @@ public abstract class OsmParser {
             }
         }
 
-        // refresh refs in all ways:
-        for (OSMWay w : parser.getWays().values()) {
-            for (int i = 0; i < remove_nodes.size(); i++) {
-                long old_id = remove_nodes.get(i);
-                if (w.getRefs().contains(old_id)) {
-                    int pos = w.getRefs().indexOf(old_id);
-                    w.replaceRef(new_nodes.get(i).getId(), pos);
-                }
-            }
+        // refresh refs in all ways and relations:
+        for (int i = 0; i < remove_nodes.size(); i++) {
+            parser.replaceNodeRefs(remove_nodes.get(i), new_nodes.get(i).getId());
         }
         for (Long this_n_id : merge_nodes.keySet()) {
             long parser_n_id = merge_nodes.get(this_n_id);
             this.nodes.remove(parser_n_id);
-            for (OSMWay w : parser.getWays().values()) {
-                if (w.getRefs().contains(parser_n_id)) {
-                    w.replaceRef(parser_n_id, this_n_id);
-                }
-            }
+            parser.replaceNodeRefs(parser_n_id, this_n_id);
         }
 
-        //TODO refresh refs in all relations
         ArrayList<Long> remove_ways = new ArrayList<>();
         ArrayList<OSMWay> new_ways = new ArrayList<>();
         min_id = 0L;
         max_id = 0L;
         if (!this.ways.isEmpty() && !parser.ways.isEmpty()) {
-            min_id = Math.min(Collections.min(this.ways.keySet()), Collections.min(parser.ways.keySet()));
-            max_id = Math.max(Collections.max(this.ways.keySet()), Collections.max(parser.ways.keySet()));
+            min_id = Math.min(this.ways.minId(), parser.ways.minId());
+            max_id = Math.max(this.ways.maxId(), parser.ways.maxId());
         }
         changed_ids.put(OSMElement.WAY, new HashMap<Long, Long>());
-        for (Long id : parser.getWays().keySet()) {
+        for (PrimitiveIterator.OfLong iter = parser.getWays().idIterator(); iter.hasNext(); ) {
+            long id = iter.nextLong();
             if (this.ways.containsKey(id)) {
                 OSMWay w = parser.getWay(id);
                 remove_ways.add(id);
@@ -154,11 +185,12 @@ public abstract class OsmParser {
         min_id = 0L;
         max_id = 0L;
         if (!this.relations.isEmpty() && !parser.relations.isEmpty()) {
-            min_id = Math.min(Collections.min(this.relations.keySet()), Collections.min(parser.relations.keySet()));
-            max_id = Math.max(Collections.max(this.relations.keySet()), Collections.max(parser.relations.keySet()));
+            min_id = Math.min(this.relations.minId(), parser.relations.minId());
+            max_id = Math.max(this.relations.maxId(), parser.relations.maxId());
         }
         changed_ids.put(OSMElement.RELATION, new HashMap<Long, Long>());
-        for (Long id : parser.getRelations().keySet()) {
+        for (PrimitiveIterator.OfLong iter = parser.getRelations().idIterator(); iter.hasNext(); ) {
+            long id = iter.nextLong();
             if (this.relations.containsKey(id)) {
                 OSMRelation r = parser.getRelation(id);
                 remove_relations.add(id);
@@ -189,12 +221,16 @@ public abstract class OsmParser {
      * no node was found.
      */
     public long sameNode(double lat, double lon) {
-        for (OSMNode node : this.nodes.values()) {
-            if (node.getLat() == lat && node.getLon() == lon) {
-                return node.getId();
+        final long[] found = new long[1];
+        this.spatialIndex().query(lat, lon, lat, lon, id -> {
+            OSMNode node = this.nodes.get(id);
+            if (node != null && node.getLat() == lat && node.getLon() == lon) {
+                found[0] = id;
+                return false;
             }
-        }
-        return 0;
+            return true;
+        });
+        return found[0];
     }
 
     /**
@@ -208,14 +244,72 @@ public abstract class OsmParser {
      * found.
      */
     public long samePos(long n_id, double lat, double lon, double tolerance) {
-        for (OSMNode node : this.nodes.values()) {
-            if (n_id != node.getId() && lat - tolerance <= node.getLat()
+        final long[] found = new long[1];
+        this.spatialIndex().query(lat - tolerance, lon - tolerance, lat + tolerance, lon + tolerance, id -> {
+            if (id == n_id)
+                return true;
+            OSMNode node = this.nodes.get(id);
+            if (node != null && lat - tolerance <= node.getLat()
                     && node.getLat() <= lat + tolerance
                     && lon - tolerance <= node.getLon() && node.getLon() <= lon + tolerance) {
-                return node.getId();
+                found[0] = id;
+                return false;
             }
+            return true;
+        });
+        return found[0];
+    }
+
+    /**
+     * The spatial index behind sameNode() and samePos(). It is kept up to date
+     * by putNode() and replaceNode() and rebuilt on the next query if the
+     * node store was changed in any other way. Changing the coordinates of a
+     * stored node requires to put it again.
+     *
+     * @return the index over all node positions
+     */
+    protected GridIndex spatialIndex() {
+        if (this.spatialIndex == null || this.spatialIndexModCount != this.nodes.modCount()) {
+            GridIndex index = new GridIndex(this.spatialCellSize);
+            for (OSMNode n : this.nodes.values())
+                index.add(n.getId(), n.getLat(), n.getLon());
+            this.spatialIndex = index;
+            this.spatialIndexModCount = this.nodes.modCount();
         }
-        return 0;
+        return this.spatialIndex;
+    }
+
+    /**
+     * @param cellSize edge length of the spatial index cells in degrees, should
+     *                 be in the order of the tolerances used with samePos()
+     */
+    public void setSpatialCellSize(double cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+        this.spatialCellSize = cellSize;
+        this.spatialIndex = null;
+    }
+
+    /**
+     * Applies a change of the node store, that was just made, to the spatial
+     * index.
+     *
+     * @param synced   whether the index was up to date before the change
+     * @param old_node the node that was removed or replaced, may be null
+     * @param new_node the node that was added, may be null
+     */
+    private void updateSpatialIndex(boolean synced, OSMNode old_node, OSMNode new_node) {
+        if (!synced)
+            return;
+        if (old_node != null)
+            this.spatialIndex.remove(old_node.getId(), old_node.getLat(), old_node.getLon());
+        if (new_node != null)
+            this.spatialIndex.add(new_node.getId(), new_node.getLat(), new_node.getLon());
+        this.spatialIndexModCount = this.nodes.modCount();
+    }
+
+    private boolean isSpatialIndexSynced() {
+        return this.spatialIndex != null && this.spatialIndexModCount == this.nodes.modCount();
     }
 
     /**
@@ -228,19 +322,15 @@ public abstract class OsmParser {
      * nodes at the same index are different based on their coordinates.
      */
     public boolean samePathway(long w1_id, long w2_id) {
-        if (this.ways.get(w1_id).getRefs().size() != this.ways.get(w2_id).getRefs().size()) {
+        OSMWay w1 = this.ways.get(w1_id);
+        OSMWay w2 = this.ways.get(w2_id);
+        if (w1.getRefCount() != w2.getRefCount()) {
             return false;
         }
-        ArrayList<Double> latlist = new ArrayList<>();
-        ArrayList<Double> lonlist = new ArrayList<>();
-        for (Long n1_id : this.ways.get(w1_id).getRefs()) {
-            latlist.add(this.nodes.get(n1_id).getLat());
-            lonlist.add(this.nodes.get(n1_id).getLon());
-        }
-        for (Long n2_id : this.ways.get(w2_id).getRefs()) {
-            int index = this.ways.get(w2_id).getRefs().indexOf(n2_id);
-            if (latlist.get(index) != this.nodes.get(n2_id).getLat()
-                    || lonlist.get(index) != this.nodes.get(n2_id).getLon()) {
+        for (int i = 0; i < w1.getRefCount(); i++) {
+            OSMNode n1 = this.nodes.get(w1.getRef(i));
+            OSMNode n2 = this.nodes.get(w2.getRef(i));
+            if (n1.getLat() != n2.getLat() || n1.getLon() != n2.getLon()) {
                 return false;
             }
         }
@@ -254,24 +344,405 @@ public abstract class OsmParser {
      * @param parser
      */
     public void setParser(OsmParser parser) {
-        this.nodes = new HashMap<>();
+        this.nodes = this.createNodeStore();
+        this.spatialIndex = null;
         for (OSMNode n : parser.getNodes().values()) {
             this.putNode(n);
         }
-        this.ways = new HashMap<>();
+        this.ways = this.storeFactory.createStore(OSMElement.WAY);
+        this.referenceIndex = null;
         for (OSMWay w : parser.getWays().values()) {
             this.putWay(w);
         }
-        this.relations = new HashMap<>();
+        this.relations = this.storeFactory.createStore(OSMElement.RELATION);
         for (OSMRelation r : parser.getRelations().values()) {
             this.putRelation(r);
         }
     }
 
+    /**
+     * In compact mode nodes without tags are only stored as id and fixed-point
+     * coordinate. getNode() creates a new OSMNode for them on every call, which
+     * has no version, timestamp, user or back-references. Put such a node
+     * back with putNode() to keep changes on it.
+     * <p>
+     * Switching the mode converts the already stored nodes.
+     *
+     * @param compact
+     */
+    public void setCompactNodes(boolean compact) {
+        if (compact == this.compactNodes)
+            return;
+        this.compactNodes = compact;
+        ElementStore<OSMNode> old = this.nodes;
+        this.nodes = this.createNodeStore();
+        this.spatialIndex = null;
+        for (OSMNode n : old.values())
+            this.storeNode(n);
+    }
+
+    /**
+     * @return true if untagged nodes are stored as coordinates only
+     */
+    public boolean isCompactNodes() {
+        return this.compactNodes;
+    }
+
+    private ElementStore<OSMNode> createNodeStore() {
+        ElementStore<OSMNode> store = this.storeFactory.createStore(OSMElement.NODE);
+        return this.compactNodes ? new CompactNodeStore(store) : store;
+    }
+
+    /**
+     * Stores a node read from a file. In compact mode untagged nodes are
+     * reduced to their coordinate.
+     *
+     * @param node
+     */
+    protected void storeNode(OSMNode node) {
+        if (this.nodes instanceof CompactNodeStore && !node.hasTags())
+            this.storeCoordinate(node.getId(), node.getLat(), node.getLon());
+        else
+            this.putNode(node);
+    }
+
+    /**
+     * Stores an untagged node in the CompactNodeStore and keeps the spatial
+     * index up to date.
+     *
+     * @param id
+     * @param lat
+     * @param lon
+     */
+    protected void storeCoordinate(long id, double lat, double lon) {
+        CompactNodeStore store = (CompactNodeStore) this.nodes;
+        if (!this.isSpatialIndexSynced()) {
+            store.putCoordinate(id, lat, lon);
+            return;
+        }
+        OSMNode old = store.get(id);
+        store.putCoordinate(id, lat, lon);
+        if (old != null)
+            this.spatialIndex.remove(old.getId(), old.getLat(), old.getLon());
+        this.spatialIndex.add(id, lat, lon);
+        this.spatialIndexModCount = this.nodes.modCount();
+    }
+
+    /**
+     * Tag keys and values, member roles and user names read by this parser
+     * are shared through the dictionary. Its statistics tell how much heap
+     * that saved.
+     *
+     * @param dictionary null to disable deduplication
+     */
+    public void setStringDictionary(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return the dictionary or null if deduplication is disabled
+     */
+    public StringDictionary getStringDictionary() {
+        return this.dictionary;
+    }
+
+    /**
+     * @param s
+     * @return the shared instance of s if a dictionary is set, otherwise s
+     */
+    protected String intern(String s) {
+        return this.dictionary == null ? s : this.dictionary.intern(s);
+    }
+
+    /**
+     * Only elements matching the filter are kept while reading a file. The
+     * filter is applied to each element on its own: ways and relations
+     * still reference the nodes and members which were dropped. To keep
+     * those as well, read the file with a ReferenceClosure instead.
+     *
+     * @param filter null to keep every element
+     */
+    public void setElementFilter(TagFilter filter) {
+        this.elementFilter = filter;
+    }
+
+    /**
+     * @return the filter applied while reading or null
+     */
+    public TagFilter getElementFilter() {
+        return this.elementFilter;
+    }
+
+    /**
+     * @return handler which puts the elements read from a file into the
+     * stores of this parser, applying the element filter
+     */
+    protected OsmHandler storeHandler() {
+        return this.storeHandler(this.elementFilter);
+    }
+
+    /**
+     * @param filter only matching elements are stored, null to store all
+     * @return handler which puts the elements read from a file into the
+     * stores of this parser
+     */
+    protected OsmHandler storeHandler(TagFilter filter) {
+        StoreHandler handler = new StoreHandler(this.nodes, this.ways, this.relations) {
+            @Override
+            protected void storeNode(OSMNode node) {
+                OsmParser.this.storeNode(node);
+            }
+
+            @Override
+            protected void storeCoordinate(long id, double lat, double lon) {
+                OsmParser.this.storeCoordinate(id, lat, lon);
+            }
+        };
+        handler.setFilter(filter);
+        handler.setReverseLinks(this.reverseLinks);
+        handler.setLinkThreads(this.linkThreads);
+        return handler;
+    }
+
+    /**
+     * After a file was read into the stores, its nodes, ways and relations
+     * are linked to the ways and relations they belong to, see
+     * OSMElement.getBelongsTo(). Skipping that saves time and memory if
+     * nobody asks for the links; linkElements() can still add them later.
+     *
+     * @param reverseLinks false to skip linking, true by default
+     */
+    public void setReverseLinks(boolean reverseLinks) {
+        this.reverseLinks = reverseLinks;
+    }
+
+    /**
+     * @return true if elements are linked after reading a file
+     */
+    public boolean isReverseLinks() {
+        return this.reverseLinks;
+    }
+
+    /**
+     * @param linkThreads number of threads linking the elements after a file
+     *                    was read, 1 by default
+     */
+    public void setLinkThreads(int linkThreads) {
+        if (linkThreads < 1)
+            throw new IllegalArgumentException("linkThreads < 1: " + linkThreads);
+        this.linkThreads = linkThreads;
+    }
+
+    /**
+     * @return number of linking threads
+     */
+    public int getLinkThreads() {
+        return this.linkThreads;
+    }
+
+    /**
+     * Links all stored elements to the ways and relations they belong to.
+     * Meant for files read with setReverseLinks(false), elements linked
+     * before get their links twice.
+     */
+    public void linkElements() {
+        ReverseLinker linker = new ReverseLinker(this.nodes, this.ways, this.relations);
+        linker.setThreads(this.linkThreads);
+        linker.linkAll();
+    }
+
+    /**
+     * Applies an OsmChange file (*.osc, also .gz or .bz2) to the stores, see
+     * OsmChangeReader.
+     *
+     * @param file
+     * @return figures of the applied changes
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public ChangeStats applyChange(File file) throws IOException, XMLStreamException {
+        return new OsmChangeReader(this).apply(file);
+    }
+
+    /**
+     * Writes all stored elements as *.pbf, sorted by type and id.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writePbfFile(File file) throws IOException {
+        this.writePbfFile(file, 1);
+    }
+
+    /**
+     * Writes all stored elements as *.pbf, sorted by type and id.
+     *
+     * @param file
+     * @param threads number of threads encoding and compressing blocks
+     * @throws IOException
+     */
+    public void writePbfFile(File file, int threads) throws IOException {
+        try (OutputStream out = new FileOutputStream(file);
+             PbfWriter writer = new PbfWriter(out, threads)) {
+            writer.setSorted(true);
+            writeSorted(this.nodes, writer);
+            writeSorted(this.ways, writer);
+            writeSorted(this.relations, writer);
+        }
+    }
+
+    private static void writeSorted(ElementStore<? extends OSMElement> store, PbfWriter writer) throws IOException {
+        LongList ids = new LongList(Math.max(16, store.size()));
+        PrimitiveIterator.OfLong iter = store.idIterator();
+        while (iter.hasNext())
+            ids.add(iter.nextLong());
+        long[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        for (long id : sorted)
+            writer.write(store.get(id));
+    }
+
+    /**
+     * With a cache, a file read into an empty parser without element filter
+     * is stored as snapshot, and the next time the same file is read this
+     * way the snapshot is opened instead, see openSnapshot(). Files with
+     * errors aren't cached. Compact mode bypasses the cache: its nodes lack
+     * metadata and links, and a snapshot would replace the compact store.
+     *
+     * @param parseCache null to always parse, the default
+     */
+    public void setParseCache(ParseCache parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    /**
+     * @return the cache or null
+     */
+    public ParseCache getParseCache() {
+        return this.parseCache;
+    }
+
+    /**
+     * @param file
+     * @return the cache key of the file, or null if reading it now can't
+     * be cached
+     */
+    protected String cacheKey(File file) {
+        if (this.parseCache == null || this.elementFilter != null || this.compactNodes || !this.isEmpty())
+            return null;
+        try {
+            return this.parseCache.fingerprint(file) + (this.reverseLinks ? "" : "-unlinked");
+        } catch (IOException ex) {
+            Logger.getLogger(OsmParser.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param key from cacheKey(), may be null
+     * @return true if the snapshot of the file was opened
+     */
+    protected boolean loadCached(String key) {
+        if (key == null)
+            return false;
+        File snapshot = this.parseCache.lookup(key);
+        if (snapshot == null)
+            return false;
+        try {
+            this.openSnapshot(snapshot);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(OsmParser.class.getName()).log(Level.WARNING, "Broken cache entry " + snapshot, ex);
+            this.parseCache.invalidate(key);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the contents of the parser as cache entry. Failures are only
+     * logged, the file was read anyway.
+     *
+     * @param key from cacheKey(), may be null
+     */
+    protected void storeCached(String key) {
+        if (key == null)
+            return;
+        try {
+            this.parseCache.store(key, this);
+        } catch (IOException ex) {
+            Logger.getLogger(OsmParser.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Dumps the stored elements and their back-references into a snapshot,
+     * which openSnapshot() maps again without parsing.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeSnapshot(File file) throws IOException {
+        Snapshot.write(file, this.nodes, this.ways, this.relations);
+    }
+
+    /**
+     * Replaces the stored elements by those of a snapshot. The file is only
+     * mapped, elements are read from it when they are accessed; changes are
+     * kept in memory, see SnapshotStore.
+     *
+     * @param file written by writeSnapshot()
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public void openSnapshot(File file) throws IOException {
+        Snapshot snapshot = Snapshot.open(file);
+        this.nodes = snapshot.getNodes();
+        this.ways = snapshot.getWays();
+        this.relations = snapshot.getRelations();
+        this.spatialIndex = null;
+        this.referenceIndex = null;
+    }
+
+    /**
+     * @param filter
+     * @return all nodes matching the filter
+     */
+    public List<OSMNode> findNodes(TagFilter filter) {
+        Iterable<OSMNode> candidates = this.nodes.values();
+        // compact nodes are untagged, skip them if the filter wants tags
+        if (this.nodes instanceof CompactNodeStore && !filter.matches(new OSMNode(0, 0, 0)))
+            candidates = ((CompactNodeStore) this.nodes).getFullNodes();
+        return find(candidates, filter);
+    }
+
+    /**
+     * @param filter
+     * @return all ways matching the filter
+     */
+    public List<OSMWay> findWays(TagFilter filter) {
+        return find(this.ways.values(), filter);
+    }
+
+    /**
+     * @param filter
+     * @return all relations matching the filter
+     */
+    public List<OSMRelation> findRelations(TagFilter filter) {
+        return find(this.relations.values(), filter);
+    }
+
+    private static <T extends OSMElement> List<T> find(Iterable<T> elements, TagFilter filter) {
+        List<T> result = new ArrayList<>();
+        for (T ele : elements) {
+            if (filter.matches(ele))
+                result.add(ele);
+        }
+        return result;
+    }
+
     /**
      * @return the nodes
      */
-    public HashMap<Long, OSMNode> getNodes() {
+    public ElementStore<OSMNode> getNodes() {
         return nodes;
     }
 
@@ -289,7 +760,23 @@ public abstract class OsmParser {
      * @param node
      */
     public void putNode(OSMNode node) {
-        this.nodes.put(node.getId(), node);
+        boolean synced = this.isSpatialIndexSynced();
+        OSMNode old = this.nodes.put(node.getId(), node);
+        this.updateSpatialIndex(synced, old, node);
+    }
+
+    /**
+     * Ways and relations referencing the node aren't changed.
+     *
+     * @param id
+     * @return the removed node or null
+     */
+    public OSMNode removeNode(long id) {
+        boolean synced = this.isSpatialIndexSynced();
+        OSMNode old = this.nodes.remove(id);
+        if (old != null)
+            this.updateSpatialIndex(synced, old, null);
+        return old;
     }
 
     /**
@@ -300,28 +787,68 @@ public abstract class OsmParser {
      * @param node
      */
     public void replaceNode(long old_id, OSMNode node) {
-        this.nodes.remove(old_id);
-        this.nodes.put(node.getId(), node);
+        boolean synced = this.isSpatialIndexSynced();
+        OSMNode old = this.nodes.remove(old_id);
+        this.updateSpatialIndex(synced, old, null);
+        this.putNode(node);
+        this.replaceNodeRefs(old_id, node.getId());
+    }
 
-        for (OSMWay w : this.ways.values()) {
-            if (w.getRefs().contains(old_id)) {
-                w.replaceRef(old_id, node.getId());
-            }
+    /**
+     * Replaces all references to a node in ways and relations. Only touches
+     * the ways and relations which actually reference the node.
+     *
+     * @param old_id
+     * @param new_id
+     */
+    public void replaceNodeRefs(long old_id, long new_id) {
+        if (old_id == new_id)
+            return;
+        ReferenceIndex index = this.referenceIndex();
+        for (long w_id : index.getWays(old_id)) {
+            OSMWay w = this.ways.get(w_id);
+            if (w != null)
+                w.replaceRefs(old_id, new_id);
         }
+        for (long r_id : index.getRelations(old_id)) {
+            OSMRelation r = this.relations.get(r_id);
+            if (r != null && r.hasMember(old_id, OSMElement.NODE))
+                r.replaceMember(old_id, new_id, OSMElement.NODE);
+        }
+        index.moveNode(old_id, new_id);
+    }
 
-        for (OSMRelation r : this.relations.values()) {
-            for (Long n_id : r.getAllMembers().get(0).keySet()) {
-                if (n_id.equals(old_id)) {
-                    r.replaceMember(old_id, node.getId(), OSMElement.NODE);
-                }
-            }
+    /**
+     * The reverse index behind replaceNode() and replaceNodeRefs(). It is kept
+     * up to date by putWay() and putRelation() and rebuilt on the next use if
+     * the way or relation store was changed in any other way. Changing the
+     * refs or members of a stored way or relation requires to put it again.
+     *
+     * @return the index from node ids to referencing ways and relations
+     */
+    protected ReferenceIndex referenceIndex() {
+        if (!this.isReferenceIndexSynced()) {
+            ReferenceIndex index = new ReferenceIndex();
+            for (OSMWay w : this.ways.values())
+                index.addWay(w);
+            for (OSMRelation r : this.relations.values())
+                index.addRelation(r);
+            this.referenceIndex = index;
+            this.refIndexWaysModCount = this.ways.modCount();
+            this.refIndexRelationsModCount = this.relations.modCount();
         }
+        return this.referenceIndex;
+    }
+
+    private boolean isReferenceIndexSynced() {
+        return this.referenceIndex != null && this.refIndexWaysModCount == this.ways.modCount()
+                && this.refIndexRelationsModCount == this.relations.modCount();
     }
 
     /**
      * @return the ways
      */
-    public HashMap<Long, OSMWay> getWays() {
+    public ElementStore<OSMWay> getWays() {
         return ways;
     }
 
@@ -337,13 +864,36 @@ public abstract class OsmParser {
      * @param way
      */
     public void putWay(OSMWay way) {
-        this.ways.put(way.getId(), way);
+        boolean synced = this.isReferenceIndexSynced();
+        OSMWay old = this.ways.put(way.getId(), way);
+        if (synced) {
+            if (old != null)
+                this.referenceIndex.removeWay(old);
+            this.referenceIndex.addWay(way);
+            this.refIndexWaysModCount = this.ways.modCount();
+        }
+    }
+
+    /**
+     * Relations having the way as member aren't changed.
+     *
+     * @param id
+     * @return the removed way or null
+     */
+    public OSMWay removeWay(long id) {
+        boolean synced = this.isReferenceIndexSynced();
+        OSMWay old = this.ways.remove(id);
+        if (synced && old != null) {
+            this.referenceIndex.removeWay(old);
+            this.refIndexWaysModCount = this.ways.modCount();
+        }
+        return old;
     }
 
     /**
      * @return the relations
      */
-    public HashMap<Long, OSMRelation> getRelations() {
+    public ElementStore<OSMRelation> getRelations() {
         return relations;
     }
 
@@ -359,7 +909,30 @@ public abstract class OsmParser {
      * @param relation
      */
     public void putRelation(OSMRelation relation) {
-        this.relations.put(relation.getId(), relation);
+        boolean synced = this.isReferenceIndexSynced();
+        OSMRelation old = this.relations.put(relation.getId(), relation);
+        if (synced) {
+            if (old != null)
+                this.referenceIndex.removeRelation(old);
+            this.referenceIndex.addRelation(relation);
+            this.refIndexRelationsModCount = this.relations.modCount();
+        }
+    }
+
+    /**
+     * Relations having the relation as member aren't changed.
+     *
+     * @param id
+     * @return the removed relation or null
+     */
+    public OSMRelation removeRelation(long id) {
+        boolean synced = this.isReferenceIndexSynced();
+        OSMRelation old = this.relations.remove(id);
+        if (synced && old != null) {
+            this.referenceIndex.removeRelation(old);
+            this.refIndexRelationsModCount = this.relations.modCount();
+        }
+        return old;
     }
 
     /**
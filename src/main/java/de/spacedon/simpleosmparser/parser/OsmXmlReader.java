@@ -0,0 +1,307 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls the elements of an *.osm file (XML format) one at a time from a
+ * StAX reader. OsmChange documents (*.osc) are read as well, getAction()
+ * tells which block the last element came from.
+ *
+ * @author Philipp Thöricht
+ */
+public class OsmXmlReader implements ElementReader {
+    private final XMLStreamReader reader;
+    private final StringDictionary dictionary;
+    private boolean inOsm;
+    private boolean inChange;
+    private String action;
+    private boolean finished;
+    private long numErrors;
+
+    /**
+     * @param in         the stream is not closed by this reader
+     * @param dictionary shares tag strings, roles and user names, may be null
+     * @throws XMLStreamException
+     */
+    public OsmXmlReader(InputStream in, StringDictionary dictionary) throws XMLStreamException {
+        this.reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads the next node, way or relation. Other elements are skipped,
+     * broken elements are skipped and counted as errors.
+     *
+     * @return the next element or null at the end of the file
+     * @throws XMLStreamException
+     */
+    @Override
+    public OSMElement read() throws XMLStreamException {
+        if (!this.inOsm && !this.enterOsm())
+            return null;
+        while (!this.finished) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                OSMElement ele;
+                switch (reader.getLocalName()) {
+                    case "create":
+                    case "modify":
+                    case "delete":
+                        if (this.inChange && this.action == null) {
+                            this.action = reader.getLocalName();
+                            continue;
+                        }
+                        jumpToEnd();
+                        continue;
+                    case "node":
+                        ele = readNode();
+                        break;
+                    case "way":
+                        ele = readWay();
+                        break;
+                    case "relation":
+                        ele = readRelation();
+                        break;
+                    default:
+                        jumpToEnd();
+                        continue;
+                }
+                if (ele != null)
+                    return ele;
+                this.numErrors++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (this.action != null)
+                    this.action = null;
+                else
+                    this.finished = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return "create", "modify" or "delete" for an element of an osmChange
+     * document, null for an element of an *.osm file
+     */
+    public String getAction() {
+        return this.action;
+    }
+
+    /**
+     * Moves to the osm root element.
+     *
+     * @return false if the document has no osm element
+     * @throws XMLStreamException
+     */
+    private boolean enterOsm() throws XMLStreamException {
+        if (this.finished)
+            return false;
+        int event = reader.getEventType();
+        while (true) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("osm".equals(reader.getLocalName()) || "osmChange".equals(reader.getLocalName())) {
+                    this.inOsm = true;
+                    this.inChange = "osmChange".equals(reader.getLocalName());
+                    return true;
+                }
+                jumpToEnd();
+            } else if (event == XMLStreamConstants.END_ELEMENT || !reader.hasNext()) {
+                this.finished = true;
+                return false;
+            }
+            event = reader.next();
+        }
+    }
+
+    /**
+     * @return number of broken elements skipped so far
+     */
+    @Override
+    public long getErrorCount() {
+        return this.numErrors;
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        this.reader.close();
+    }
+
+    private String intern(String s) {
+        return this.dictionary == null ? s : this.dictionary.intern(s);
+    }
+
+    /**
+     * @return
+     * @throws XMLStreamException
+     */
+    private OSMNode readNode() throws XMLStreamException {
+        OSMNode n = null;
+        String id = reader.getAttributeValue(null, "id");
+        String lat = reader.getAttributeValue(null, "lat");
+        String lon = reader.getAttributeValue(null, "lon");
+        if (id != null && lat != null && lon != null) {
+            n = new OSMNode(Long.valueOf(id), Double.valueOf(lat), Double.valueOf(lon));
+        } else if (id != null && "delete".equals(this.action)) {
+            // deleted nodes come without coordinates
+            n = new OSMNode(Long.valueOf(id), 0, 0);
+        }
+        String version = reader.getAttributeValue(null, "version");
+        if (n != null && version != null)
+            n.setVersion(Integer.valueOf(version));
+        String visible = reader.getAttributeValue(null, "visible");
+        if (n != null && visible != null)
+            n.setVisible(Boolean.valueOf(visible));
+        String user = reader.getAttributeValue(null, "user");
+        if (n != null && user != null)
+            n.setUser(this.intern(user));
+
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("tag".equals(reader.getLocalName()))
+                    readTag(n);
+                else
+                    jumpToEnd();
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return n;
+        }
+    }
+
+    /**
+     * @return
+     * @throws XMLStreamException
+     */
+    private OSMWay readWay() throws XMLStreamException {
+        OSMWay w = null;
+
+        String id = reader.getAttributeValue(null, "id");
+        if (id != null)
+            w = new OSMWay(Long.valueOf(id));
+        String version = reader.getAttributeValue(null, "version");
+        if (w != null && version != null)
+            w.setVersion(Integer.valueOf(version));
+        String visible = reader.getAttributeValue(null, "visible");
+        if (w != null && visible != null)
+            w.setVisible(Boolean.valueOf(visible));
+        String user = reader.getAttributeValue(null, "user");
+        if (w != null && user != null)
+            w.setUser(this.intern(user));
+
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "nd":
+                        String ref = reader.getAttributeValue(null, "ref");
+                        if (w != null && ref != null) {
+                            w.addRefToEnd(Long.parseLong(ref));
+                        }
+                        jumpToEnd();
+                        break;
+                    case "tag":
+                        readTag(w);
+                        break;
+                    default:
+                        jumpToEnd();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (w != null)
+                    w.trimRefs();
+                return w;
+            }
+        }
+    }
+
+    /**
+     * @return
+     * @throws XMLStreamException
+     */
+    private OSMRelation readRelation() throws XMLStreamException {
+        OSMRelation r = null;
+
+        String id = reader.getAttributeValue(null, "id");
+        if (id != null)
+            r = new OSMRelation(Long.valueOf(id), "");
+        String version = reader.getAttributeValue(null, "version");
+        if (r != null && version != null)
+            r.setVersion(Integer.valueOf(version));
+        String visible = reader.getAttributeValue(null, "visible");
+        if (r != null && visible != null)
+            r.setVisible(Boolean.valueOf(visible));
+        String user = reader.getAttributeValue(null, "user");
+        if (r != null && user != null)
+            r.setUser(this.intern(user));
+
+        while (true) {
+            int event = reader.next();
+            if (r != null && event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "member":
+                        String type = reader.getAttributeValue(null, "type");
+                        String ref = reader.getAttributeValue(null, "ref");
+                        String role = this.intern(reader.getAttributeValue(null, "role"));
+                        if (type != null && ref != null && role != null) {
+                            switch (type) {
+                                case "node":
+                                    r.addMember(OSMElement.NODE, Long.valueOf(ref), role);
+                                    break;
+                                case "way":
+                                    r.addMember(OSMElement.WAY, Long.valueOf(ref), role);
+                                    break;
+                                case "relation":
+                                    r.addMember(OSMElement.RELATION, Long.valueOf(ref), role);
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                        jumpToEnd();
+                        break;
+                    case "tag":
+                        readTag(r);
+                        break;
+                    default:
+                        jumpToEnd();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT)
+                return r;
+        }
+    }
+
+    /**
+     * Reads a tag element and adds it to the given element.
+     *
+     * @param ele the element the tag belongs to, may be null
+     * @throws XMLStreamException
+     */
+    private void readTag(OSMElement ele) throws XMLStreamException {
+        String key = this.intern(reader.getAttributeValue(null, "k"));
+        String value = this.intern(reader.getAttributeValue(null, "v"));
+        if (ele != null && key != null && value != null)
+            ele.setTag(key, value);
+        jumpToEnd();
+    }
+
+    /**
+     * @throws XMLStreamException
+     */
+    private void jumpToEnd() throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                jumpToEnd();
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+        }
+    }
+}
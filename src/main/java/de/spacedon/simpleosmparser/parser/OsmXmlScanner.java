@@ -0,0 +1,729 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pulls the elements of an *.osm file (XML format) one at a time, like
+ * OsmXmlReader, but tokenizes the bytes itself instead of going through
+ * StAX. Ids, coordinates and versions are parsed right from the bytes into
+ * primitives. Tag keys and values, roles and user names are looked up in a
+ * small cache keyed by their bytes first, so a repeated string is neither
+ * decoded nor allocated again; new ones are interned through the
+ * dictionary. The dictionary hence only counts the first occurrence of a
+ * string.
+ * <p>
+ * Only the XML used by OSM files is understood: elements, attributes,
+ * comments, processing instructions and the predefined and numeric
+ * entities. A DOCTYPE is skipped, text content is ignored.
+ *
+ * @author Philipp Thöricht
+ */
+public class OsmXmlScanner implements ElementReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int EOF = 0;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int CACHE_SIZE = 4096;
+    private static final int MAX_CACHED_LENGTH = 32;
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private static final byte[] OSM = bytes("osm");
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] MEMBER = bytes("member");
+    private static final byte[] ID = bytes("id");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] VERSION = bytes("version");
+    private static final byte[] VISIBLE = bytes("visible");
+    private static final byte[] USER = bytes("user");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+
+    private final InputStream in;
+    private final StringDictionary dictionary;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    // current tag
+    private int nameStart;
+    private int nameEnd;
+    private boolean selfClosing;
+    private int attrCount;
+    private int[] attrs = new int[4 * 16];
+    // strings by their bytes
+    private final byte[][] cacheKeys = new byte[CACHE_SIZE][];
+    private final String[] cacheValues = new String[CACHE_SIZE];
+    private boolean inOsm;
+    private boolean finished;
+    private long numErrors;
+
+    /**
+     * @param in         the stream is not closed by this reader
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    public OsmXmlScanner(InputStream in, StringDictionary dictionary) {
+        this.in = in;
+        this.dictionary = dictionary;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Scans a part of a file without the osm root element, as cut by
+     * ParallelXmlReader. The data is used without a copy.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    OsmXmlScanner(byte[] data, int offset, int length, StringDictionary dictionary) {
+        this.in = null;
+        this.dictionary = dictionary;
+        this.buf = data;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.inOsm = true;
+    }
+
+    /**
+     * Reads the next node, way or relation. Other elements are skipped,
+     * broken elements are skipped and counted as errors.
+     *
+     * @return the next element or null at the end of the file
+     * @throws IOException
+     */
+    @Override
+    public OSMElement read() throws IOException {
+        if (!this.inOsm && !this.enterOsm())
+            return null;
+        while (!this.finished) {
+            int token = this.nextTag();
+            if (token == EOF) {
+                // a fragment simply ends, a file has to close its root
+                if (this.in != null)
+                    throw new EOFException("Unexpected end of file, osm element not closed");
+                this.finished = true;
+            } else if (token == END) {
+                this.finished = true;
+            } else {
+                OSMElement ele;
+                if (this.isName(NODE))
+                    ele = this.readNode();
+                else if (this.isName(WAY))
+                    ele = this.readWay();
+                else if (this.isName(RELATION))
+                    ele = this.readRelation();
+                else {
+                    this.skipElement();
+                    continue;
+                }
+                if (ele != null)
+                    return ele;
+                this.numErrors++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves into the osm root element.
+     *
+     * @return false if the document has no osm element
+     * @throws IOException
+     */
+    private boolean enterOsm() throws IOException {
+        while (!this.finished) {
+            int token = this.nextTag();
+            if (token == START && this.isName(OSM)) {
+                if (this.selfClosing)
+                    break;
+                this.inOsm = true;
+                return true;
+            } else if (token == START) {
+                this.skipElement();
+            } else {
+                break;
+            }
+        }
+        this.finished = true;
+        return false;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return this.numErrors;
+    }
+
+    @Override
+    public void close() {
+        this.finished = true;
+    }
+
+    private OSMNode readNode() throws IOException {
+        OSMNode n = null;
+        int id = this.attr(ID);
+        int lat = this.attr(LAT);
+        int lon = this.attr(LON);
+        if (id >= 0 && lat >= 0 && lon >= 0)
+            n = new OSMNode(this.longValue(id), this.doubleValue(lat), this.doubleValue(lon));
+        if (n != null)
+            this.readCommon(n);
+        if (this.selfClosing)
+            return n;
+
+        while (true) {
+            int token = this.nextTag();
+            if (token == START) {
+                if (this.isName(TAG))
+                    this.readTag(n);
+                else
+                    this.skipElement();
+            } else if (token == END) {
+                return n;
+            } else {
+                throw new EOFException("Unexpected end of file in node");
+            }
+        }
+    }
+
+    private OSMWay readWay() throws IOException {
+        OSMWay w = null;
+        int id = this.attr(ID);
+        if (id >= 0) {
+            w = new OSMWay(this.longValue(id));
+            this.readCommon(w);
+        }
+        if (this.selfClosing) {
+            if (w != null)
+                w.trimRefs();
+            return w;
+        }
+
+        while (true) {
+            int token = this.nextTag();
+            if (token == START) {
+                if (this.isName(ND)) {
+                    int ref = this.attr(REF);
+                    if (w != null && ref >= 0)
+                        w.addRefToEnd(this.longValue(ref));
+                    this.skipElement();
+                } else if (this.isName(TAG)) {
+                    this.readTag(w);
+                } else {
+                    this.skipElement();
+                }
+            } else if (token == END) {
+                if (w != null)
+                    w.trimRefs();
+                return w;
+            } else {
+                throw new EOFException("Unexpected end of file in way");
+            }
+        }
+    }
+
+    private OSMRelation readRelation() throws IOException {
+        OSMRelation r = null;
+        int id = this.attr(ID);
+        if (id >= 0) {
+            r = new OSMRelation(this.longValue(id), "");
+            this.readCommon(r);
+        }
+        if (this.selfClosing)
+            return r;
+
+        while (true) {
+            int token = this.nextTag();
+            if (token == START) {
+                if (this.isName(MEMBER)) {
+                    int type = this.attr(TYPE);
+                    int ref = this.attr(REF);
+                    int role = this.attr(ROLE);
+                    if (r != null && type >= 0 && ref >= 0 && role >= 0) {
+                        int t = -1;
+                        if (this.valueEquals(type, NODE))
+                            t = OSMElement.NODE;
+                        else if (this.valueEquals(type, WAY))
+                            t = OSMElement.WAY;
+                        else if (this.valueEquals(type, RELATION))
+                            t = OSMElement.RELATION;
+                        if (t >= 0)
+                            r.addMember(t, this.longValue(ref), this.string(role));
+                    }
+                    this.skipElement();
+                } else if (this.isName(TAG)) {
+                    this.readTag(r);
+                } else {
+                    this.skipElement();
+                }
+            } else if (token == END) {
+                return r;
+            } else {
+                throw new EOFException("Unexpected end of file in relation");
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes OsmXmlReader reads for all element types.
+     *
+     * @param ele
+     * @throws IOException
+     */
+    private void readCommon(OSMElement ele) throws IOException {
+        int version = this.attr(VERSION);
+        if (version >= 0)
+            ele.setVersion(this.intValue(version));
+        int visible = this.attr(VISIBLE);
+        if (visible >= 0)
+            ele.setVisible(this.isTrue(visible));
+        int user = this.attr(USER);
+        if (user >= 0)
+            ele.setUser(this.string(user));
+    }
+
+    /**
+     * @param ele the element the tag belongs to, may be null
+     * @throws IOException
+     */
+    private void readTag(OSMElement ele) throws IOException {
+        int k = this.attr(K);
+        int v = this.attr(V);
+        if (ele != null && k >= 0 && v >= 0)
+            ele.setTag(this.string(k), this.string(v));
+        this.skipElement();
+    }
+
+    /**
+     * Skips the rest of the element whose start tag was just read.
+     *
+     * @throws IOException
+     */
+    private void skipElement() throws IOException {
+        if (this.selfClosing)
+            return;
+        int depth = 1;
+        while (depth > 0) {
+            int token = this.nextTag();
+            if (token == START && !this.selfClosing)
+                depth++;
+            else if (token == END)
+                depth--;
+            else if (token == EOF)
+                throw new EOFException("Unexpected end of file");
+        }
+    }
+
+    /**
+     * Moves to the next start or end tag, skipping text, comments and
+     * processing instructions. The name and attributes of a start tag stay
+     * valid until the next call.
+     *
+     * @return START, END or EOF
+     * @throws IOException
+     */
+    private int nextTag() throws IOException {
+        while (true) {
+            while (true) {
+                while (this.pos < this.limit && this.buf[this.pos] != '<')
+                    this.pos++;
+                if (this.pos < this.limit)
+                    break;
+                this.pos = this.limit;
+                if (!this.fill())
+                    return EOF;
+            }
+            if (!this.ensure(4))
+                throw new EOFException("Unexpected end of file in tag");
+            byte c = this.buf[this.pos + 1];
+            if (c == '!' && this.buf[this.pos + 2] == '-' && this.buf[this.pos + 3] == '-') {
+                this.skipComment();
+                continue;
+            }
+            int end = this.tagEnd();
+            if (c == '?' || c == '!') {
+                this.pos = end + 1;
+                continue;
+            }
+            if (c == '/') {
+                this.pos = end + 1;
+                return END;
+            }
+            this.parseStartTag(end);
+            this.pos = end + 1;
+            return START;
+        }
+    }
+
+    /**
+     * @return position of the '&gt;' closing the tag at pos, quoted values
+     * may contain one
+     * @throws IOException
+     */
+    private int tagEnd() throws IOException {
+        int i = this.pos + 1;
+        byte quote = 0;
+        while (true) {
+            if (i >= this.limit) {
+                int rel = i - this.pos;
+                if (!this.fill())
+                    throw new EOFException("Unexpected end of file in tag");
+                i = this.pos + rel;
+                continue;
+            }
+            byte b = this.buf[i];
+            if (quote != 0) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int i = this.pos + 4;
+        while (true) {
+            if (i + 2 >= this.limit) {
+                int rel = i - this.pos;
+                if (!this.fill())
+                    throw new EOFException("Unexpected end of file in comment");
+                i = this.pos + rel;
+                continue;
+            }
+            if (this.buf[i] == '-' && this.buf[i + 1] == '-' && this.buf[i + 2] == '>') {
+                this.pos = i + 3;
+                return;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Records name and attribute positions of the start tag at pos.
+     *
+     * @param end position of the closing '&gt;'
+     * @throws IOException
+     */
+    private void parseStartTag(int end) throws IOException {
+        byte[] b = this.buf;
+        int i = this.pos + 1;
+        this.nameStart = i;
+        while (i < end && !isSpace(b[i]) && b[i] != '/')
+            i++;
+        this.nameEnd = i;
+        this.selfClosing = b[end - 1] == '/';
+        this.attrCount = 0;
+        while (true) {
+            while (i < end && isSpace(b[i]))
+                i++;
+            if (i >= end || b[i] == '/')
+                return;
+            int ns = i;
+            while (i < end && b[i] != '=' && !isSpace(b[i]))
+                i++;
+            int ne = i;
+            while (i < end && isSpace(b[i]))
+                i++;
+            if (i >= end || b[i] != '=')
+                throw new IOException("Malformed attribute in " + this.name());
+            i++;
+            while (i < end && isSpace(b[i]))
+                i++;
+            if (i >= end || b[i] != '"' && b[i] != '\'')
+                throw new IOException("Unquoted attribute in " + this.name());
+            byte quote = b[i++];
+            int vs = i;
+            while (b[i] != quote)
+                i++;
+            this.addAttr(ns, ne, vs, i);
+            i++;
+        }
+    }
+
+    private void addAttr(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int a = this.attrCount * 4;
+        if (a == this.attrs.length)
+            this.attrs = Arrays.copyOf(this.attrs, a * 2);
+        this.attrs[a] = nameStart;
+        this.attrs[a + 1] = nameEnd;
+        this.attrs[a + 2] = valueStart;
+        this.attrs[a + 3] = valueEnd;
+        this.attrCount++;
+    }
+
+    /**
+     * @param name
+     * @return index of the attribute, or -1 if the tag doesn't have it
+     */
+    private int attr(byte[] name) {
+        for (int a = 0; a < this.attrCount; a++) {
+            if (this.equals(this.attrs[a * 4], this.attrs[a * 4 + 1], name))
+                return a;
+        }
+        return -1;
+    }
+
+    private boolean isName(byte[] name) {
+        return this.equals(this.nameStart, this.nameEnd, name);
+    }
+
+    private boolean valueEquals(int a, byte[] value) {
+        return this.equals(this.attrs[a * 4 + 2], this.attrs[a * 4 + 3], value);
+    }
+
+    private boolean equals(int start, int end, byte[] s) {
+        if (end - start != s.length)
+            return false;
+        for (int i = 0; i < s.length; i++) {
+            if (this.buf[start + i] != s[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String name() {
+        return new String(this.buf, this.nameStart, this.nameEnd - this.nameStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Like Long.valueOf() on the attribute value.
+     */
+    private long longValue(int a) {
+        int i = this.attrs[a * 4 + 2];
+        int end = this.attrs[a * 4 + 3];
+        boolean negative = i < end && this.buf[i] == '-';
+        if (negative || i < end && this.buf[i] == '+')
+            i++;
+        if (i == end || end - i > 18)
+            return Long.parseLong(this.rawString(a));
+        long v = 0;
+        for (; i < end; i++) {
+            int d = this.buf[i] - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException("For input string: \"" + this.rawString(a) + "\"");
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Like Integer.valueOf() on the attribute value.
+     */
+    private int intValue(int a) {
+        long v = this.longValue(a);
+        if (v != (int) v)
+            throw new NumberFormatException("For input string: \"" + this.rawString(a) + "\"");
+        return (int) v;
+    }
+
+    /**
+     * Like Double.valueOf() on the attribute value. Plain decimals of up to
+     * 15 digits, which covers coordinates, are exact as a single division
+     * of two exactly representable doubles; anything else goes through
+     * Double.parseDouble().
+     */
+    private double doubleValue(int a) {
+        int i = this.attrs[a * 4 + 2];
+        int end = this.attrs[a * 4 + 3];
+        boolean negative = i < end && this.buf[i] == '-';
+        if (negative || i < end && this.buf[i] == '+')
+            i++;
+        long m = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            byte b = this.buf[i];
+            if (b == '.' && !dot) {
+                dot = true;
+                continue;
+            }
+            if (b < '0' || b > '9' || ++digits > 15)
+                return Double.parseDouble(this.rawString(a));
+            m = m * 10 + (b - '0');
+            if (dot)
+                scale++;
+        }
+        if (digits == 0)
+            return Double.parseDouble(this.rawString(a));
+        double d = m / POW10[scale];
+        return negative ? -d : d;
+    }
+
+    /**
+     * Like Boolean.valueOf() on the attribute value.
+     */
+    private boolean isTrue(int a) {
+        int i = this.attrs[a * 4 + 2];
+        if (this.attrs[a * 4 + 3] - i != 4)
+            return false;
+        return (this.buf[i] | 0x20) == 't' && (this.buf[i + 1] | 0x20) == 'r'
+                && (this.buf[i + 2] | 0x20) == 'u' && (this.buf[i + 3] | 0x20) == 'e';
+    }
+
+    /**
+     * @param a
+     * @return the decoded and interned attribute value
+     * @throws IOException if the value has a broken entity
+     */
+    private String string(int a) throws IOException {
+        int start = this.attrs[a * 4 + 2];
+        int end = this.attrs[a * 4 + 3];
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = this.buf[i];
+            if (b == '&' || b == '\t' || b == '\n' || b == '\r')
+                return this.intern(this.decode(this.rawString(a)));
+            hash = 31 * hash + b;
+        }
+        if (end - start > MAX_CACHED_LENGTH)
+            return this.intern(this.rawString(a));
+
+        int slot = (hash ^ hash >>> 12) & (CACHE_SIZE - 1);
+        byte[] key = this.cacheKeys[slot];
+        if (key != null && this.equals(start, end, key))
+            return this.cacheValues[slot];
+        String s = this.intern(this.rawString(a));
+        this.cacheKeys[slot] = Arrays.copyOfRange(this.buf, start, end);
+        this.cacheValues[slot] = s;
+        return s;
+    }
+
+    private String rawString(int a) {
+        int start = this.attrs[a * 4 + 2];
+        return new String(this.buf, start, this.attrs[a * 4 + 3] - start, StandardCharsets.UTF_8);
+    }
+
+    private String intern(String s) {
+        return this.dictionary == null ? s : this.dictionary.intern(s);
+    }
+
+    /**
+     * Replaces entities and normalizes white space the way an XML parser
+     * does for attribute values.
+     *
+     * @param raw
+     * @return
+     * @throws IOException if an entity is unterminated, unknown or not a
+     * valid character reference
+     */
+    private String decode(String raw) throws IOException {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < raw.length() && raw.charAt(i + 1) == '\n')
+                    i++;
+                sb.append(' ');
+            } else if (c == '\n' || c == '\t') {
+                sb.append(' ');
+            } else if (c == '&') {
+                int semi = raw.indexOf(';', i);
+                if (semi < 0)
+                    throw new IOException("Unterminated entity in " + this.name());
+                String entity = raw.substring(i + 1, semi);
+                switch (entity) {
+                    case "amp":
+                        sb.append('&');
+                        break;
+                    case "lt":
+                        sb.append('<');
+                        break;
+                    case "gt":
+                        sb.append('>');
+                        break;
+                    case "quot":
+                        sb.append('"');
+                        break;
+                    case "apos":
+                        sb.append('\'');
+                        break;
+                    default:
+                        if (!entity.startsWith("#"))
+                            throw new IOException("Unknown entity &" + entity + "; in " + this.name());
+                        try {
+                            int code = entity.startsWith("#x")
+                                    ? Integer.parseInt(entity.substring(2), 16)
+                                    : Integer.parseInt(entity.substring(1));
+                            sb.appendCodePoint(code);
+                        } catch (IllegalArgumentException e) {
+                            // NumberFormatException or no valid code point
+                            throw new IOException("Malformed character reference &" + entity + "; in " + this.name(), e);
+                        }
+                }
+                i = semi;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param n
+     * @return true if n bytes from pos on are in the buffer
+     * @throws IOException
+     */
+    private boolean ensure(int n) throws IOException {
+        while (this.limit - this.pos < n) {
+            if (!this.fill())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the bytes from pos on to the start of the buffer, growing it if
+     * they fill it, and reads more behind them.
+     *
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (this.in == null)
+            return false;
+        int keep = this.limit - this.pos;
+        if (keep == this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, this.buf.length * 2);
+        else if (this.pos > 0)
+            System.arraycopy(this.buf, this.pos, this.buf, 0, keep);
+        this.pos = 0;
+        this.limit = keep;
+        int n = this.in.read(this.buf, keep, this.buf.length - keep);
+        if (n <= 0)
+            return false;
+        this.limit += n;
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
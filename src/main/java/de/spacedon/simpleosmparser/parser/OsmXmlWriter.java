@@ -0,0 +1,586 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes elements as *.osm (XML). The bytes are put together by hand instead
+ * of going through StAX: numbers, coordinates and timestamps are formatted
+ * without creating strings, text is escaped and encoded as UTF-8 in one go.
+ * <p>
+ * Elements are serialized in chunks. With several threads the chunks are
+ * serialized (and compressed) on a pool of workers while the calling thread
+ * collects the next one; chunks are written in the order they were filled,
+ * so the output is the same for any number of threads. The elements of a
+ * chunk must not be changed until it is written.
+ * <p>
+ * Gzip output consists of one gzip member per chunk, which is a valid gzip
+ * file that GZIPInputStream and gunzip read as a whole.
+ * <p>
+ * Coordinates are written with 7 decimals like in OSM itself, timestamps in
+ * UTC. Elements without timestamp get the time the writer was created.
+ *
+ * @author Philipp Thöricht
+ */
+public class OsmXmlWriter implements OsmHandler, Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final AtomicInteger POOL = new AtomicInteger();
+
+    private final OutputStream out;
+    private final int threads;
+    private final long now = System.currentTimeMillis();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean gzip;
+    private String generator = "SimpleOsmParser";
+
+    private ExecutorService pool;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private List<OSMElement> chunk = new ArrayList<>();
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * @param out     not closed until close() is called
+     * @param threads number of threads serializing chunks, 1 to serialize
+     *                them on the calling thread
+     */
+    public OsmXmlWriter(OutputStream out, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.threads = threads;
+    }
+
+    /**
+     * @param chunkSize number of elements serialized at once, 4096 by default
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize < 1: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return number of elements serialized at once
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Must be set before the first element.
+     *
+     * @param gzip true to write gzip compressed XML, false by default
+     */
+    public void setGzip(boolean gzip) {
+        if (this.started)
+            throw new IllegalStateException("Header already written");
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return true if the output is gzip compressed
+     */
+    public boolean isGzip() {
+        return this.gzip;
+    }
+
+    /**
+     * @param generator written into the osm element, must be set before the
+     *                  first element
+     */
+    public void setGenerator(String generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * Adds an element to the current chunk, the chunk is written once it is
+     * full.
+     *
+     * @param ele
+     * @throws IOException
+     */
+    public void write(OSMElement ele) throws IOException {
+        if (this.finished)
+            throw new IllegalStateException("Writer already finished");
+        this.chunk.add(ele);
+        if (this.chunk.size() >= this.chunkSize)
+            this.flushChunk();
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        this.writeUnchecked(node);
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        this.writeUnchecked(way);
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        this.writeUnchecked(relation);
+    }
+
+    private void writeUnchecked(OSMElement ele) {
+        try {
+            this.write(ele);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Finishes the file, the stream stays open.
+     */
+    @Override
+    public void onEnd() {
+        try {
+            this.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the last chunk and the end of the document and waits for all
+     * chunks to be written. Further elements are rejected.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (this.finished)
+            return;
+        try {
+            this.flushChunk();
+            this.startDocument();
+            while (!this.pending.isEmpty())
+                this.writeNext();
+            XmlBuffer end = new XmlBuffer(16);
+            end.ascii("</osm>\n");
+            this.out.write(this.pack(end));
+            this.out.flush();
+        } finally {
+            this.finished = true;
+            if (this.pool != null)
+                this.pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finishes the file and closes the stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.finish();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    private void startDocument() throws IOException {
+        if (this.started)
+            return;
+        this.started = true;
+        XmlBuffer header = new XmlBuffer(128);
+        header.ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" upload=\"false\"");
+        if (this.generator != null)
+            header.attribute("generator", this.generator);
+        header.ascii(">\n");
+        this.out.write(this.pack(header));
+    }
+
+    private void flushChunk() throws IOException {
+        if (this.chunk.isEmpty())
+            return;
+        this.startDocument();
+        List<OSMElement> elements = this.chunk;
+        this.chunk = new ArrayList<>(this.chunkSize);
+        if (this.threads == 1) {
+            this.out.write(this.serialize(elements));
+            return;
+        }
+        if (this.pool == null)
+            this.pool = this.createPool();
+        this.pending.add(this.pool.submit(() -> this.serialize(elements)));
+        if (this.pending.size() >= this.threads * CHUNKS_PER_THREAD)
+            this.writeNext();
+    }
+
+    /**
+     * Waits for the oldest chunk and writes it.
+     */
+    private void writeNext() throws IOException {
+        try {
+            this.out.write(this.pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private ExecutorService createPool() {
+        int pool = POOL.incrementAndGet();
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "xml-writer-" + pool + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param elements
+     * @return the elements as XML, compressed if gzip is set
+     * @throws IOException
+     */
+    private byte[] serialize(List<OSMElement> elements) throws IOException {
+        XmlBuffer xml = new XmlBuffer(elements.size() * 128);
+        for (OSMElement ele : elements) {
+            if (ele instanceof OSMNode)
+                this.writeNode(xml, (OSMNode) ele);
+            else if (ele instanceof OSMWay)
+                this.writeWay(xml, (OSMWay) ele);
+            else if (ele instanceof OSMRelation)
+                this.writeRelation(xml, (OSMRelation) ele);
+        }
+        return this.pack(xml);
+    }
+
+    private byte[] pack(XmlBuffer xml) throws IOException {
+        if (!this.gzip)
+            return xml.toByteArray();
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream(xml.length() / 4 + 64);
+        try (GZIPOutputStream zip = new GZIPOutputStream(zipped, 1 << 16)) {
+            xml.writeTo(zip);
+        }
+        return zipped.toByteArray();
+    }
+
+    private void writeNode(XmlBuffer xml, OSMNode n) {
+        xml.ascii("  <node");
+        this.writeAttributes(xml, n);
+        xml.ascii(" lat=\"").coordinate(n.getLat());
+        xml.ascii("\" lon=\"").coordinate(n.getLon()).ascii("\"");
+        if (!n.hasTags()) {
+            xml.ascii("/>\n");
+            return;
+        }
+        xml.ascii(">\n");
+        writeTags(xml, n);
+        xml.ascii("  </node>\n");
+    }
+
+    private void writeWay(XmlBuffer xml, OSMWay w) {
+        xml.ascii("  <way");
+        this.writeAttributes(xml, w);
+        if (!w.hasTags() && w.getRefCount() == 0) {
+            xml.ascii("/>\n");
+            return;
+        }
+        xml.ascii(">\n");
+        for (int i = 0; i < w.getRefCount(); i++)
+            xml.ascii("    <nd ref=\"").number(w.getRef(i)).ascii("\"/>\n");
+        writeTags(xml, w);
+        xml.ascii("  </way>\n");
+    }
+
+    private void writeRelation(XmlBuffer xml, OSMRelation r) {
+        xml.ascii("  <relation");
+        this.writeAttributes(xml, r);
+        xml.ascii(">\n");
+        List<? extends Map<Long, String>> members = r.getAllMembers();
+        for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++) {
+            String typeName = type == OSMElement.NODE ? "node" : type == OSMElement.WAY ? "way" : "relation";
+            for (Map.Entry<Long, String> member : members.get(type).entrySet()) {
+                xml.ascii("    <member type=\"").ascii(typeName);
+                xml.ascii("\" ref=\"").number(member.getKey());
+                xml.ascii("\"").attribute("role", member.getValue()).ascii("/>\n");
+            }
+        }
+        writeTags(xml, r);
+        xml.ascii("  </relation>\n");
+    }
+
+    private void writeAttributes(XmlBuffer xml, OSMElement ele) {
+        xml.ascii(" id=\"").number(ele.getId());
+        Date timestamp = ele.getTimestamp();
+        xml.ascii("\" timestamp=\"").timestamp(timestamp != null ? timestamp.getTime() : this.now);
+        xml.ascii("\" version=\"").number(ele.getVersion()).ascii("\"");
+        if (ele.getUser() != null) {
+            xml.attribute("user", ele.getUser());
+            xml.ascii(" uid=\"").number(ele.getUid()).ascii("\"");
+        }
+    }
+
+    private static void writeTags(XmlBuffer xml, OSMElement ele) {
+        for (int i = 0; i < ele.getTagCount(); i++) {
+            xml.ascii("    <tag").attribute("k", ele.getTagKey(i));
+            xml.attribute("v", ele.getTagValue(i)).ascii("/>\n");
+        }
+    }
+
+    /**
+     * Growable byte array with the formatting the writer needs.
+     */
+    static class XmlBuffer {
+        private byte[] buf;
+        private int len;
+
+        XmlBuffer(int capacity) {
+            this.buf = new byte[Math.max(16, capacity)];
+        }
+
+        int length() {
+            return this.len;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buf, this.len);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(this.buf, 0, this.len);
+        }
+
+        private void ensure(int more) {
+            if (this.len + more > this.buf.length)
+                this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.len + more));
+        }
+
+        private void put(int b) {
+            this.buf[this.len++] = (byte) b;
+        }
+
+        /**
+         * @param s only ASCII characters that need no escaping
+         * @return this
+         */
+        XmlBuffer ascii(String s) {
+            int n = s.length();
+            this.ensure(n);
+            for (int i = 0; i < n; i++)
+                this.buf[this.len++] = (byte) s.charAt(i);
+            return this;
+        }
+
+        /**
+         * Appends {@code  name="value"} with the value escaped.
+         *
+         * @param name
+         * @param value null is written as empty string
+         * @return this
+         */
+        XmlBuffer attribute(String name, String value) {
+            this.ensure(name.length() + 4);
+            this.put(' ');
+            this.ascii(name);
+            this.put('=');
+            this.put('"');
+            if (value != null)
+                this.escaped(value);
+            this.ensure(1);
+            this.put('"');
+            return this;
+        }
+
+        /**
+         * Appends the text as UTF-8, escaping what can't stand in an
+         * attribute value.
+         */
+        private void escaped(String s) {
+            int n = s.length();
+            // worst case: every char becomes &quot; or 3 bytes of UTF-8
+            this.ensure(n * 6);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '&':
+                            this.ascii("&amp;");
+                            break;
+                        case '<':
+                            this.ascii("&lt;");
+                            break;
+                        case '>':
+                            this.ascii("&gt;");
+                            break;
+                        case '"':
+                            this.ascii("&quot;");
+                            break;
+                        case '\n':
+                            this.ascii("&#10;");
+                            break;
+                        case '\r':
+                            this.ascii("&#13;");
+                            break;
+                        case '\t':
+                            this.ascii("&#9;");
+                            break;
+                        default:
+                            // other control characters aren't allowed in XML 1.0
+                            if (c >= 0x20)
+                                this.put(c);
+                    }
+                } else if (c < 0x800) {
+                    this.put(0xC0 | (c >> 6));
+                    this.put(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    this.put(0xF0 | (cp >> 18));
+                    this.put(0x80 | ((cp >> 12) & 0x3F));
+                    this.put(0x80 | ((cp >> 6) & 0x3F));
+                    this.put(0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    this.put('?');
+                } else {
+                    this.put(0xE0 | (c >> 12));
+                    this.put(0x80 | ((c >> 6) & 0x3F));
+                    this.put(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * @param v
+         * @return this
+         */
+        XmlBuffer number(long v) {
+            this.ensure(20);
+            if (v < 0) {
+                if (v == Long.MIN_VALUE)
+                    return this.ascii(Long.toString(v));
+                this.put('-');
+                v = -v;
+            }
+            int start = this.len;
+            do {
+                this.put((int) ('0' + v % 10));
+                v /= 10;
+            } while (v != 0);
+            reverse(this.buf, start, this.len - 1);
+            return this;
+        }
+
+        /**
+         * @param degrees rounded to 7 decimals, trailing zeros are left out
+         * @return this
+         */
+        XmlBuffer coordinate(double degrees) {
+            long v = Math.round(degrees * 1e7);
+            if (v < 0) {
+                this.ensure(1);
+                this.put('-');
+                v = -v;
+            }
+            this.number(v / 10000000);
+            long fraction = v % 10000000;
+            if (fraction == 0)
+                return this;
+            int digits = 7;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            this.ensure(digits + 1);
+            this.put('.');
+            this.digits(fraction, digits);
+            return this;
+        }
+
+        /**
+         * Formats as yyyy-MM-dd'T'HH:mm:ss'Z' in UTC.
+         *
+         * @param millis since 1970
+         * @return this
+         */
+        XmlBuffer timestamp(long millis) {
+            // long divisors, the (long, int) overloads are Java 9+
+            long seconds = Math.floorDiv(millis, 1000L);
+            long days = Math.floorDiv(seconds, 86400L);
+            int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+            // civil date from days since 1970-01-01, proleptic Gregorian
+            long z = days + 719468;
+            long era = Math.floorDiv(z, 146097L);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+            this.ensure(24);
+            if (year >= 0 && year <= 9999)
+                this.digits(year, 4);
+            else
+                this.number(year);
+            this.put('-');
+            this.digits(month, 2);
+            this.put('-');
+            this.digits(day, 2);
+            this.put('T');
+            this.digits(secondOfDay / 3600, 2);
+            this.put(':');
+            this.digits(secondOfDay / 60 % 60, 2);
+            this.put(':');
+            this.digits(secondOfDay % 60, 2);
+            this.put('Z');
+            return this;
+        }
+
+        /**
+         * Writes v with exactly the given number of digits, zero padded.
+         */
+        private void digits(long v, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                this.buf[this.len + i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            this.len += count;
+        }
+
+        private static void reverse(byte[] b, int from, int to) {
+            while (from < to) {
+                byte tmp = b[from];
+                b[from++] = b[to];
+                b[to--] = tmp;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
+
+/**
+ * Reads *.pbf files with several threads. The calling thread only splits the
+ * file into blobs; inflating, decoding and converting the blobs to elements
+ * happens on a pool of workers. The elements are handed to the handler on
+ * the calling thread, either in file order or in the order the blobs get
+ * done.
+ * <p>
+ * At most a few blobs per worker are in flight, so memory stays bounded
+ * however large the file is. With a single thread no pool is started, the
+ * blobs are decoded right into the handler on the calling thread.
+ *
+ * @author Philipp Thöricht
+ */
+public class ParallelPbfReader {
+    // limits from the PBF specification
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final int BLOBS_PER_THREAD = 4;
+
+    private final int threads;
+    private final boolean ordered;
+    private final StringDictionary dictionary;
+    // each worker keeps its decoder and the decoder's buffers
+    private final ThreadLocal<PbfBlockDecoder> decoders = ThreadLocal.withInitial(this::createDecoder);
+    private boolean nativeDecoding = true;
+
+    /**
+     * @param threads    number of workers
+     * @param ordered    false to hand over the elements of a blob as soon as
+     *                   it is decoded, ignoring the order in the file
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    public ParallelPbfReader(int threads, boolean ordered, StringDictionary dictionary) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.threads = threads;
+        this.ordered = ordered;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param nativeDecoding false to decode DenseNodes through Osmosis like
+     *                       all other blocks, true by default
+     */
+    public void setNativeDecoding(boolean nativeDecoding) {
+        this.nativeDecoding = nativeDecoding;
+    }
+
+    /**
+     * @return true if DenseNodes are decoded by PbfBlockDecoder itself
+     */
+    public boolean isNativeDecoding() {
+        return this.nativeDecoding;
+    }
+
+    /**
+     * Reads the stream to the end and calls the handler for each element,
+     * then onEnd().
+     *
+     * @param in      *.pbf data, not closed by this method
+     * @param handler
+     * @throws IOException if the file is broken or an unsupported format
+     */
+    public void read(InputStream in, OsmHandler handler) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (this.threads == 1) {
+            PbfBlockDecoder decoder = this.createDecoder();
+            byte[] blob;
+            while ((blob = this.readBlob(data)) != null) {
+                byte[] raw = inflate(blob);
+                decoder.decode(raw, 0, raw.length, handler, PbfBlockDecoder.ALL);
+            }
+            handler.onEnd();
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, new WorkerFactory());
+        CompletionService<List<OSMElement>> done = new ExecutorCompletionService<>(pool);
+        ArrayDeque<Future<List<OSMElement>>> pending = new ArrayDeque<>();
+        int maxPending = this.threads * BLOBS_PER_THREAD;
+        int inFlight = 0;
+        try {
+            byte[] blob;
+            while ((blob = this.readBlob(data)) != null) {
+                Callable<List<OSMElement>> task = new DecodeTask(blob);
+                if (this.ordered)
+                    pending.add(pool.submit(task));
+                else
+                    done.submit(task);
+                inFlight++;
+                if (inFlight >= maxPending) {
+                    deliver(this.next(pending, done), handler);
+                    inFlight--;
+                }
+            }
+            for (; inFlight > 0; inFlight--)
+                deliver(this.next(pending, done), handler);
+            handler.onEnd();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the next blob of the file, skipping blob types other than
+     * OSMHeader and OSMData.
+     *
+     * @param data
+     * @return the serialized blob, or null at the end of the file
+     * @throws IOException
+     */
+    private byte[] readBlob(DataInputStream data) throws IOException {
+        while (true) {
+            int headerSize;
+            try {
+                headerSize = data.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+                throw new IOException("Invalid blob header size: " + headerSize);
+            byte[] header = new byte[headerSize];
+            data.readFully(header);
+            Fileformat.BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(header);
+            int size = blobHeader.getDatasize();
+            if (size < 0 || size > MAX_BLOB_SIZE)
+                throw new IOException("Invalid blob size: " + size);
+            byte[] blob = new byte[size];
+            data.readFully(blob);
+            String type = blobHeader.getType();
+            if ("OSMData".equals(type))
+                return blob;
+            if ("OSMHeader".equals(type)) {
+                byte[] raw = inflate(blob);
+                new PbfBlockDecoder(null).decodeHeader(raw, 0, raw.length);
+            }
+        }
+    }
+
+    /**
+     * @param blob serialized Fileformat.Blob
+     * @return the uncompressed content
+     * @throws IOException if the blob is broken or uses an unsupported
+     *                     compression
+     */
+    static byte[] inflate(byte[] blob) throws IOException {
+        Fileformat.Blob b = Fileformat.Blob.parseFrom(blob);
+        if (b.hasRaw())
+            return b.getRaw().toByteArray();
+        if (!b.hasZlibData())
+            throw new IOException("Unsupported blob compression");
+
+        byte[] raw = new byte[b.getRawSize()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b.getZlibData().toByteArray());
+            int n = inflater.inflate(raw);
+            if (n != raw.length || !inflater.finished())
+                throw new IOException("Blob size mismatch: " + n + " instead of " + raw.length);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    private PbfBlockDecoder createDecoder() {
+        PbfBlockDecoder decoder = new PbfBlockDecoder(this.dictionary);
+        decoder.setNativeDecoding(this.nativeDecoding);
+        return decoder;
+    }
+
+    /**
+     * Waits for the next decoded blob, in ordered mode the oldest one.
+     */
+    private List<OSMElement> next(ArrayDeque<Future<List<OSMElement>>> pending,
+                                  CompletionService<List<OSMElement>> done) throws IOException {
+        try {
+            return this.ordered ? pending.poll().get() : done.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static void deliver(List<OSMElement> elements, OsmHandler handler) {
+        for (OSMElement ele : elements)
+            handler.onElement(ele);
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new IOException(cause);
+    }
+
+    /**
+     * Inflates and decodes one data blob into elements.
+     */
+    private class DecodeTask implements Callable<List<OSMElement>> {
+        private final byte[] blob;
+
+        DecodeTask(byte[] blob) {
+            this.blob = blob;
+        }
+
+        @Override
+        public List<OSMElement> call() throws IOException {
+            byte[] raw = inflate(this.blob);
+            ElementCollector elements = new ElementCollector();
+            decoders.get().decode(raw, 0, raw.length, elements, PbfBlockDecoder.ALL);
+            return elements.elements;
+        }
+    }
+
+    private static class ElementCollector implements OsmHandler {
+        private final List<OSMElement> elements = new ArrayList<>();
+
+        @Override
+        public void onNode(OSMNode node) {
+            this.elements.add(node);
+        }
+
+        @Override
+        public void onWay(OSMWay way) {
+            this.elements.add(way);
+        }
+
+        @Override
+        public void onRelation(OSMRelation relation) {
+            this.elements.add(relation);
+        }
+    }
+
+    /**
+     * Daemon threads, so an abandoned read doesn't keep the VM alive.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+        private static final AtomicInteger POOL = new AtomicInteger();
+        private final int pool = POOL.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pbf-decoder-" + this.pool + "-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
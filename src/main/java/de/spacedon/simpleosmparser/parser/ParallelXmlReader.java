@@ -0,0 +1,298 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads uncompressed *.osm files (XML format) with several threads. The file
+ * is cut into chunks at the start of top-level node, way and relation
+ * elements; each chunk is parsed on its own worker as if it were a file of
+ * its own. The elements are handed to the handler on the calling thread in
+ * file order, so handlers see the same order as with a single thread.
+ * <p>
+ * Cutting relies on "&lt;node", "&lt;way" and "&lt;relation" only appearing
+ * as top-level elements, which holds for OSM XML: inside attribute values a
+ * '&lt;' is always escaped. At most a few chunks per worker are in flight.
+ *
+ * @author Philipp Thöricht
+ */
+public class ParallelXmlReader {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 2;
+    private static final int SCAN_SIZE = 64 * 1024;
+    private static final byte[][] ELEMENTS = {
+            "<node".getBytes(StandardCharsets.US_ASCII),
+            "<way".getBytes(StandardCharsets.US_ASCII),
+            "<relation".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final byte[] OSM_END = "</osm".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_START = "<osm>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_END = "</osm>".getBytes(StandardCharsets.US_ASCII);
+
+    private final int threads;
+    private final StringDictionary dictionary;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean byteScanner;
+
+    /**
+     * @param threads    number of workers
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    public ParallelXmlReader(int threads, StringDictionary dictionary) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.threads = threads;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param chunkSize approximate size of the parts parsed by one worker in
+     *                  bytes, chunks are extended to the next element start
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize < 1: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return approximate size of a chunk in bytes
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @param byteScanner true to parse the chunks with OsmXmlScanner instead
+     *                    of StAX, false by default
+     */
+    public void setByteScanner(boolean byteScanner) {
+        this.byteScanner = byteScanner;
+    }
+
+    /**
+     * @return true if chunks are parsed with OsmXmlScanner
+     */
+    public boolean isByteScanner() {
+        return this.byteScanner;
+    }
+
+    /**
+     * Reads the file and calls the handler for each element, then onEnd().
+     *
+     * @param file    uncompressed *.osm file
+     * @param handler
+     * @return number of broken elements skipped
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public long read(File file, OsmHandler handler) throws IOException, XMLStreamException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads, new WorkerFactory());
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+        int maxPending = this.threads * CHUNKS_PER_THREAD;
+        long errors = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = findDataEnd(channel);
+            long start = find(channel, 0, end, ELEMENTS);
+            while (start < end) {
+                long next = start + this.chunkSize < end
+                        ? find(channel, start + this.chunkSize, end, ELEMENTS) : end;
+                pending.add(pool.submit(new ParseTask(channel, start, (int) (next - start))));
+                if (pending.size() >= maxPending)
+                    errors += deliver(pending.poll(), handler);
+                start = next;
+            }
+            while (!pending.isEmpty())
+                errors += deliver(pending.poll(), handler);
+            handler.onEnd();
+            return errors;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long deliver(Future<Chunk> future, OsmHandler handler) throws IOException, XMLStreamException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof XMLStreamException)
+                throw (XMLStreamException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+        for (OSMElement ele : chunk.elements)
+            handler.onElement(ele);
+        return chunk.errors;
+    }
+
+    /**
+     * @param channel
+     * @return position of the closing osm tag, or the file size if there is
+     * none
+     * @throws IOException
+     */
+    private static long findDataEnd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        byte[] buf = new byte[SCAN_SIZE];
+        long to = size;
+        while (to > 0) {
+            long from = Math.max(0, to - SCAN_SIZE);
+            int len = (int) (to - from);
+            readFully(channel, from, buf, len);
+            for (int i = len - OSM_END.length; i >= 0; i--) {
+                if (matches(buf, i, len, OSM_END))
+                    return from + i;
+            }
+            // overlap, so a tag cut by the window is found in the next one
+            to = from == 0 ? 0 : from + OSM_END.length - 1;
+        }
+        return size;
+    }
+
+    /**
+     * @param channel
+     * @param from     first position to look at
+     * @param end      end of the searched range
+     * @param patterns
+     * @return position of the first pattern followed by white space, '&gt;'
+     * or '/', or end if there is none
+     * @throws IOException
+     */
+    private static long find(FileChannel channel, long from, long end, byte[][] patterns) throws IOException {
+        byte[] buf = new byte[SCAN_SIZE];
+        // longest pattern plus the character after it
+        int overlap = 0;
+        for (byte[] p : patterns)
+            overlap = Math.max(overlap, p.length + 1);
+        while (from < end) {
+            int len = (int) Math.min(SCAN_SIZE, end - from);
+            readFully(channel, from, buf, len);
+            int last = from + len < end ? len - overlap : len;
+            for (int i = 0; i <= last && i < len; i++) {
+                if (buf[i] != '<')
+                    continue;
+                for (byte[] p : patterns) {
+                    if (matches(buf, i, len, p) && i + p.length < len && isNameEnd(buf[i + p.length]))
+                        return from + i;
+                }
+            }
+            if (from + len >= end)
+                break;
+            from += last + 1;
+        }
+        return end;
+    }
+
+    private static boolean matches(byte[] buf, int pos, int len, byte[] pattern) {
+        if (pos + pattern.length > len)
+            return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (buf[pos + i] != pattern[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>' || b == '/';
+    }
+
+    private static void readFully(FileChannel channel, long pos, byte[] buf, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0)
+                throw new EOFException("Unexpected end of file at " + (pos + b.position()));
+        }
+    }
+
+    private static class Chunk {
+        private final List<OSMElement> elements = new ArrayList<>();
+        private long errors;
+    }
+
+    /**
+     * Parses one chunk. StAX gets it wrapped into an osm element of its own,
+     * the scanner reads it as a fragment.
+     */
+    private class ParseTask implements Callable<Chunk> {
+        private final FileChannel channel;
+        private final long offset;
+        private final int length;
+
+        ParseTask(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public Chunk call() throws IOException, XMLStreamException {
+            byte[] data = new byte[this.length];
+            readFully(this.channel, this.offset, data, this.length);
+            Chunk chunk = new Chunk();
+            try (ElementReader xml = this.createReader(data)) {
+                OSMElement ele;
+                while ((ele = xml.read()) != null)
+                    chunk.elements.add(ele);
+                chunk.errors = xml.getErrorCount();
+            }
+            return chunk;
+        }
+
+        private ElementReader createReader(byte[] data) throws XMLStreamException {
+            if (byteScanner)
+                return new OsmXmlScanner(data, 0, data.length, dictionary);
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(CHUNK_START),
+                    new SequenceInputStream(new ByteArrayInputStream(data), new ByteArrayInputStream(CHUNK_END)));
+            return new OsmXmlReader(in, dictionary);
+        }
+    }
+
+    /**
+     * Daemon threads, so an abandoned read doesn't keep the VM alive.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+        private static final AtomicInteger POOL = new AtomicInteger();
+        private final int pool = POOL.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "xml-parser-" + this.pool + "-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
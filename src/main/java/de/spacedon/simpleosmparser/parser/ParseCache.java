@@ -0,0 +1,263 @@
+package de.spacedon.simpleosmparser.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Directory of snapshots of parsed files, so a file read before is mapped
+ * instead of parsed again, see OsmParser.setParseCache(). Entries are keyed
+ * by a fingerprint of the input file: its size, its modification time and a
+ * hash of blocks sampled over the whole file.
+ * <p>
+ * The total size of the entries is bounded; when an entry is added the
+ * least recently used ones are deleted until the cache fits again. Use is
+ * tracked through the modification time of the entry files, so it survives
+ * restarts and is shared by all processes using the directory. Entries are
+ * written to a temporary file first and then renamed, a reader never sees a
+ * half written entry.
+ *
+ * @author Philipp Thöricht
+ */
+public class ParseCache {
+    private static final String SUFFIX = ".snapshot";
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLES = 16;
+
+    private final File directory;
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param directory created if it doesn't exist
+     * @param maxBytes  upper bound for the total size of all entries
+     * @throws IOException if the directory can't be created
+     */
+    public ParseCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes <= 0: " + maxBytes);
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return upper bound for the total size of all entries
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Hashes size, modification time and up to 16 blocks of 64 KB spread
+     * evenly over the file, including its first and last block. Small files
+     * are hashed completely.
+     *
+     * @param file
+     * @return hex string identifying the content of the file
+     * @throws IOException
+     */
+    public String fingerprint(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long size = in.length();
+            update(digest, size);
+            update(digest, file.lastModified());
+            byte[] block = new byte[SAMPLE_SIZE];
+            long blocks = (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE;
+            int samples = (int) Math.min(blocks, SAMPLES);
+            for (int i = 0; i < samples; i++) {
+                long index = samples == 1 ? 0 : i * (blocks - 1) / (samples - 1);
+                long pos = index * SAMPLE_SIZE;
+                int len = (int) Math.min(SAMPLE_SIZE, size - pos);
+                in.seek(pos);
+                in.readFully(block, 0, len);
+                digest.update(block, 0, len);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, long v) {
+        for (int i = 56; i >= 0; i -= 8)
+            digest.update((byte) (v >>> i));
+    }
+
+    /**
+     * Looks the entry up and marks it as used.
+     *
+     * @param key
+     * @return the snapshot of the entry or null on a miss
+     */
+    public File lookup(String key) {
+        File entry = this.entry(key);
+        if (!entry.isFile()) {
+            this.misses.increment();
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        this.hits.increment();
+        return entry;
+    }
+
+    /**
+     * Removes a broken entry. Counts as miss, as the caller parses instead.
+     *
+     * @param key
+     */
+    public void invalidate(String key) {
+        this.hits.decrement();
+        this.misses.increment();
+        this.entry(key).delete();
+    }
+
+    /**
+     * Writes the contents of the parser as entry and evicts the least
+     * recently used entries if the cache got too big.
+     *
+     * @param key
+     * @param parser
+     * @throws IOException
+     */
+    public void store(String key, OsmParser parser) throws IOException {
+        Path tmp = Files.createTempFile(this.directory.toPath(), key, ".tmp");
+        try {
+            parser.writeSnapshot(tmp.toFile());
+            Path target = this.entry(key).toPath();
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        this.stores.increment();
+        this.evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into
+     * maxBytes. Entries which can't be deleted (e.g. mapped on Windows) are
+     * skipped.
+     */
+    private synchronized void evict() {
+        List<File> entries = this.entries();
+        long total = 0;
+        for (File f : entries)
+            total += f.length();
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for (File f : entries) {
+            if (total <= this.maxBytes)
+                break;
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Deletes all entries, the statistics are kept.
+     */
+    public synchronized void clear() {
+        for (File f : this.entries())
+            f.delete();
+    }
+
+    /**
+     * @return total size of all entries in bytes
+     */
+    public long getSize() {
+        long total = 0;
+        for (File f : this.entries())
+            total += f.length();
+        return total;
+    }
+
+    private File entry(String key) {
+        return new File(this.directory, key + SUFFIX);
+    }
+
+    private List<File> entries() {
+        List<File> entries = new ArrayList<>();
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File f : files)
+                entries.add(f);
+        }
+        return entries;
+    }
+
+    /**
+     * @return number of files loaded from the cache
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of files which had to be parsed
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 if there were no lookups
+     */
+    public double getHitRate() {
+        long hits = this.getHits();
+        long lookups = hits + this.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return number of entries written
+     */
+    public long getStores() {
+        return this.stores.sum();
+    }
+
+    /**
+     * @return number of entries deleted to stay within maxBytes
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ParseCache[" + this.directory + ", hits=" + this.getHits() + ", misses=" + this.getMisses()
+                + ", stores=" + this.getStores() + ", evictions=" + this.getEvictions() + "]";
+    }
+}
@@ -0,0 +1,558 @@
+package de.spacedon.simpleosmparser.parser;
+
+import crosby.binary.osmosis.OsmosisBinaryParser;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.util.LongList;
+import de.spacedon.simpleosmparser.util.StringDictionary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.openstreetmap.osmosis.osmbinary.BinaryParser;
+import org.openstreetmap.osmosis.osmbinary.Osmformat;
+
+/**
+ * Turns the uncompressed content of PBF blobs into elements. One decoder
+ * must not be used by several threads at once.
+ * <p>
+ * DenseNodes, which is how nodes are written by all common tools, are
+ * decoded right from the bytes: the delta coded arrays go into buffers
+ * reused from block to block and strings are only created when a node
+ * refers to them. Untagged nodes are passed as bare coordinates to handlers
+ * which ask for that. All other groups of a block go through the protobuf
+ * classes and the Osmosis parser.
+ *
+ * @author Philipp Thöricht
+ */
+class PbfBlockDecoder {
+    // bits of a content mask
+    static final int NODES = 1;
+    static final int WAYS = 2;
+    static final int RELATIONS = 4;
+    static final int ALL = NODES | WAYS | RELATIONS;
+
+    // defaults from osmformat.proto
+    private static final int DEFAULT_GRANULARITY = 100;
+    private static final int DEFAULT_DATE_GRANULARITY = 1000;
+    // content bit of groups the native decoder leaves to Osmosis
+    private static final int OSMOSIS = 8;
+
+    private final StringDictionary dictionary;
+    private boolean nativeDecoding = true;
+
+    // state of the native decoder, reused between blocks
+    private byte[] data;
+    private int pos;
+    private int granularity;
+    private int dateGranularity;
+    private long latOffset;
+    private long lonOffset;
+    private int[] stringOffsets = new int[256];
+    private int[] stringLengths = new int[256];
+    private String[] strings = new String[256];
+    private int stringCount;
+    private int[] groupOffsets = new int[8];
+    private int[] groupEnds = new int[8];
+    private int[] groupContents = new int[8];
+    private int groupCount;
+    private final LongList ids = new LongList(8192);
+    private final LongList lats = new LongList(8192);
+    private final LongList lons = new LongList(8192);
+    private final LongList keysVals = new LongList(8192);
+    private final LongList versions = new LongList(8192);
+    private final LongList timestamps = new LongList(8192);
+    private final LongList uids = new LongList(8192);
+    private final LongList userSids = new LongList(8192);
+
+    /**
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    PbfBlockDecoder(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param nativeDecoding false to decode DenseNodes through Osmosis too,
+     *                       true by default
+     */
+    void setNativeDecoding(boolean nativeDecoding) {
+        this.nativeDecoding = nativeDecoding;
+    }
+
+    /**
+     * Checks that the file doesn't require features this parser lacks.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void decodeHeader(byte[] data, int offset, int length) throws IOException {
+        Osmformat.HeaderBlock header = Osmformat.HeaderBlock.PARSER.parseFrom(data, offset, length);
+        OsmosisBinaryParser parser = new OsmosisBinaryParser();
+        // the bounding box the parser passes on is ignored
+        parser.setSink(new SinkImpl(new OsmHandler() {
+        }, null));
+        parser.parse(header);
+    }
+
+    /**
+     * Decodes an OSMData block and passes the elements of the wanted types to
+     * the handler.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param handler
+     * @param types  content mask of the wanted element types
+     * @return content mask of the types contained in the block
+     * @throws IOException
+     */
+    int decode(byte[] data, int offset, int length, OsmHandler handler, int types) throws IOException {
+        if (!this.nativeDecoding)
+            return this.decodeOsmosis(data, offset, length, handler, types);
+        try {
+            return this.decodeNative(data, offset, length, handler, types);
+        } finally {
+            this.data = null;
+        }
+    }
+
+    private int decodeOsmosis(byte[] data, int offset, int length, OsmHandler handler, int types) throws IOException {
+        Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.PARSER.parseFrom(data, offset, length);
+        int content = 0;
+        boolean skip = false;
+        for (Osmformat.PrimitiveGroup group : block.getPrimitivegroupList()) {
+            int c = content(group);
+            content |= c;
+            skip |= (c & ~types) != 0;
+        }
+        if ((content & types) == 0)
+            return content;
+        if (skip) {
+            // drop unwanted groups before anything gets converted
+            Osmformat.PrimitiveBlock.Builder builder = block.toBuilder().clearPrimitivegroup();
+            for (Osmformat.PrimitiveGroup group : block.getPrimitivegroupList()) {
+                if ((content(group) & types) != 0)
+                    builder.addPrimitivegroup(group);
+            }
+            block = builder.build();
+        }
+        OsmosisBinaryParser parser = new OsmosisBinaryParser();
+        parser.setSink(new SinkImpl(handler, this.dictionary));
+        parser.parse(block);
+        return content;
+    }
+
+    /**
+     * Decodes the DenseNodes groups of a block itself and hands the other
+     * groups one by one to Osmosis, so the elements keep their order.
+     *
+     * @return content mask of the types contained in the block
+     * @throws IOException
+     */
+    private int decodeNative(byte[] data, int offset, int length, OsmHandler handler, int types) throws IOException {
+        this.data = data;
+        this.pos = offset;
+        this.granularity = DEFAULT_GRANULARITY;
+        this.dateGranularity = DEFAULT_DATE_GRANULARITY;
+        this.latOffset = 0;
+        this.lonOffset = 0;
+        this.groupCount = 0;
+        int stringTable = -1;
+        int stringTableEnd = -1;
+        int content = 0;
+        int end = offset + length;
+        while (this.pos < end) {
+            int tag = this.readTag(end);
+            switch (tag) {
+                case 1 << 3 | 2:
+                    stringTableEnd = this.readEnd(end);
+                    stringTable = this.pos;
+                    this.pos = stringTableEnd;
+                    break;
+                case 2 << 3 | 2:
+                    int groupEnd = this.readEnd(end);
+                    int groupStart = this.pos;
+                    int c = this.groupContent(groupEnd);
+                    content |= c & ALL;
+                    this.addGroup(groupStart, groupEnd, c);
+                    break;
+                case 17 << 3:
+                    this.granularity = (int) this.readVarint(end);
+                    break;
+                case 18 << 3:
+                    this.dateGranularity = (int) this.readVarint(end);
+                    break;
+                case 19 << 3:
+                    this.latOffset = this.readVarint(end);
+                    break;
+                case 20 << 3:
+                    this.lonOffset = this.readVarint(end);
+                    break;
+                default:
+                    this.skipField(tag, end);
+            }
+        }
+        if ((content & types) == 0)
+            return content;
+
+        this.readStringTable(stringTable, stringTableEnd);
+        Osmformat.PrimitiveBlock template = null;
+        OsmosisBinaryParser parser = null;
+        for (int g = 0; g < this.groupCount; g++) {
+            int c = this.groupContents[g];
+            if ((c & types) == 0)
+                continue;
+            int groupStart = this.groupOffsets[g];
+            int groupEnd = this.groupEnds[g];
+            if ((c & OSMOSIS) != 0) {
+                if (template == null) {
+                    template = this.blockTemplate(stringTable, stringTableEnd);
+                    parser = new OsmosisBinaryParser();
+                    parser.setSink(new SinkImpl(handler, this.dictionary));
+                }
+                Osmformat.PrimitiveGroup group = Osmformat.PrimitiveGroup.PARSER.parseFrom(data, groupStart,
+                        groupEnd - groupStart);
+                parser.parse(template.toBuilder().addPrimitivegroup(group).build());
+                continue;
+            }
+            this.pos = groupStart;
+            while (this.pos < groupEnd) {
+                int tag = this.readTag(groupEnd);
+                if (tag == (2 << 3 | 2))
+                    this.decodeDense(this.readEnd(groupEnd), handler);
+                else
+                    this.skipField(tag, groupEnd);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Skips a PrimitiveGroup.
+     *
+     * @param end
+     * @return content mask, with the OSMOSIS bit set unless the group holds
+     * nothing but DenseNodes
+     * @throws IOException
+     */
+    private int groupContent(int end) throws IOException {
+        int content = 0;
+        while (this.pos < end) {
+            int tag = this.readTag(end);
+            switch (tag >>> 3) {
+                case 1:
+                    content |= NODES | OSMOSIS;
+                    break;
+                case 2:
+                    content |= NODES;
+                    break;
+                case 3:
+                    content |= WAYS | OSMOSIS;
+                    break;
+                case 4:
+                    content |= RELATIONS | OSMOSIS;
+                    break;
+                default:
+                    // changesets aren't read
+            }
+            this.skipField(tag, end);
+        }
+        return content;
+    }
+
+    private void addGroup(int offset, int end, int content) {
+        if (this.groupCount == this.groupOffsets.length) {
+            this.groupOffsets = Arrays.copyOf(this.groupOffsets, this.groupCount * 2);
+            this.groupEnds = Arrays.copyOf(this.groupEnds, this.groupCount * 2);
+            this.groupContents = Arrays.copyOf(this.groupContents, this.groupCount * 2);
+        }
+        this.groupOffsets[this.groupCount] = offset;
+        this.groupEnds[this.groupCount] = end;
+        this.groupContents[this.groupCount] = content;
+        this.groupCount++;
+    }
+
+    /**
+     * @return block with the string table and coordinate settings of the
+     * current block but no groups
+     * @throws IOException
+     */
+    private Osmformat.PrimitiveBlock blockTemplate(int stringTable, int stringTableEnd) throws IOException {
+        Osmformat.StringTable strings = stringTable < 0 ? Osmformat.StringTable.getDefaultInstance()
+                : Osmformat.StringTable.PARSER.parseFrom(this.data, stringTable, stringTableEnd - stringTable);
+        return Osmformat.PrimitiveBlock.newBuilder()
+                .setStringtable(strings)
+                .setGranularity(this.granularity)
+                .setDateGranularity(this.dateGranularity)
+                .setLatOffset(this.latOffset)
+                .setLonOffset(this.lonOffset)
+                .build();
+    }
+
+    /**
+     * Records where the strings are, they are created by string() on first
+     * use.
+     *
+     * @param start
+     * @param end
+     * @throws IOException
+     */
+    private void readStringTable(int start, int end) throws IOException {
+        this.stringCount = 0;
+        if (start < 0)
+            return;
+        this.pos = start;
+        while (this.pos < end) {
+            int tag = this.readTag(end);
+            if (tag != (1 << 3 | 2)) {
+                this.skipField(tag, end);
+                continue;
+            }
+            int stringEnd = this.readEnd(end);
+            if (this.stringCount == this.stringOffsets.length) {
+                int capacity = this.stringCount * 2;
+                this.stringOffsets = Arrays.copyOf(this.stringOffsets, capacity);
+                this.stringLengths = Arrays.copyOf(this.stringLengths, capacity);
+                this.strings = Arrays.copyOf(this.strings, capacity);
+            }
+            this.stringOffsets[this.stringCount] = this.pos;
+            this.stringLengths[this.stringCount] = stringEnd - this.pos;
+            this.strings[this.stringCount] = null;
+            this.stringCount++;
+            this.pos = stringEnd;
+        }
+    }
+
+    private String string(long index) throws IOException {
+        if (index < 0 || index >= this.stringCount)
+            throw new IOException("Invalid string index " + index);
+        int i = (int) index;
+        String s = this.strings[i];
+        if (s == null) {
+            s = new String(this.data, this.stringOffsets[i], this.stringLengths[i], StandardCharsets.UTF_8);
+            if (this.dictionary != null)
+                s = this.dictionary.intern(s);
+            this.strings[i] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Decodes a DenseNodes message and passes the nodes to the handler, with
+     * the same values the Osmosis parser and SinkImpl would produce.
+     *
+     * @param end
+     * @param handler
+     * @throws IOException
+     */
+    private void decodeDense(int end, OsmHandler handler) throws IOException {
+        this.ids.clear();
+        this.lats.clear();
+        this.lons.clear();
+        this.keysVals.clear();
+        boolean info = false;
+        while (this.pos < end) {
+            int tag = this.readTag(end);
+            switch (tag) {
+                case 1 << 3 | 2:
+                    this.readPacked(this.ids, end, true, true);
+                    break;
+                case 5 << 3 | 2:
+                    this.decodeDenseInfo(this.readEnd(end));
+                    info = true;
+                    break;
+                case 8 << 3 | 2:
+                    this.readPacked(this.lats, end, true, true);
+                    break;
+                case 9 << 3 | 2:
+                    this.readPacked(this.lons, end, true, true);
+                    break;
+                case 10 << 3 | 2:
+                    this.readPacked(this.keysVals, end, false, false);
+                    break;
+                default:
+                    checkPacked(tag, 1, 5, 8, 9, 10);
+                    this.skipField(tag, end);
+            }
+        }
+        int n = this.ids.size();
+        if (this.lats.size() != n || this.lons.size() != n
+                || info && (this.versions.size() != n || this.timestamps.size() != n))
+            throw new IOException("Inconsistent DenseNodes arrays");
+        // user ids and names may be left out together
+        boolean users = info && this.uids.size() == n && this.userSids.size() == n;
+
+        boolean coordinateOnly = handler.isCoordinateOnly();
+        int kvCount = this.keysVals.size();
+        int kv = 0;
+        for (int i = 0; i < n; i++) {
+            long id = this.ids.get(i);
+            double lat = (this.granularity * this.lats.get(i) + this.latOffset) * 1e-9;
+            double lon = (this.granularity * this.lons.get(i) + this.lonOffset) * 1e-9;
+            boolean tagged = kv < kvCount && this.keysVals.get(kv) != 0;
+            if (coordinateOnly && !tagged) {
+                // skip the terminating 0
+                if (kv < kvCount)
+                    kv++;
+                handler.onCoordinate(id, lat, lon);
+                continue;
+            }
+
+            OSMNode node = new OSMNode(id, lat, lon);
+            if (info) {
+                node.setVersion((int) this.versions.get(i));
+                node.setTimestamp(new Date(this.dateGranularity * this.timestamps.get(i)));
+                int uid = users ? (int) this.uids.get(i) : -1;
+                if (uid >= 0) {
+                    node.setUser(this.string(this.userSids.get(i)));
+                    node.setUid(uid);
+                }
+            } else {
+                node.setVersion(-1);
+                node.setTimestamp(BinaryParser.NODATE);
+            }
+            if (kv < kvCount) {
+                while (this.keysVals.get(kv) != 0) {
+                    if (kv + 2 >= kvCount)
+                        throw new IOException("Unterminated DenseNodes tags");
+                    String key = this.string(this.keysVals.get(kv++));
+                    node.setTag(key, this.string(this.keysVals.get(kv++)));
+                }
+                kv++;
+            }
+            handler.onNode(node);
+        }
+    }
+
+    private void decodeDenseInfo(int end) throws IOException {
+        this.versions.clear();
+        this.timestamps.clear();
+        this.uids.clear();
+        this.userSids.clear();
+        while (this.pos < end) {
+            int tag = this.readTag(end);
+            switch (tag) {
+                case 1 << 3 | 2:
+                    this.readPacked(this.versions, end, false, false);
+                    break;
+                case 2 << 3 | 2:
+                    this.readPacked(this.timestamps, end, true, true);
+                    break;
+                case 4 << 3 | 2:
+                    this.readPacked(this.uids, end, true, true);
+                    break;
+                case 5 << 3 | 2:
+                    this.readPacked(this.userSids, end, true, true);
+                    break;
+                default:
+                    checkPacked(tag, 1, 2, 4, 5);
+                    this.skipField(tag, end);
+            }
+        }
+    }
+
+    /**
+     * Appends the values of a packed repeated field to the list.
+     *
+     * @param list
+     * @param limit  end of the enclosing message
+     * @param zigzag true for sint32/sint64 values
+     * @param delta  true if each value is the difference to the previous one
+     * @throws IOException
+     */
+    private void readPacked(LongList list, int limit, boolean zigzag, boolean delta) throws IOException {
+        int end = this.readEnd(limit);
+        long last = 0;
+        while (this.pos < end) {
+            long v = this.readVarint(end);
+            if (zigzag)
+                v = (v >>> 1) ^ -(v & 1);
+            if (delta)
+                v = last += v;
+            list.add(v);
+        }
+    }
+
+    /**
+     * The arrays are always written packed; the decoder doesn't support the
+     * unpacked encoding protobuf allows as well.
+     */
+    private static void checkPacked(int tag, int... fields) throws IOException {
+        for (int field : fields) {
+            if (tag >>> 3 == field)
+                throw new IOException("Unpacked DenseNodes field " + field);
+        }
+    }
+
+    private int readTag(int limit) throws IOException {
+        return (int) this.readVarint(limit);
+    }
+
+    /**
+     * Reads the length of a length-delimited field.
+     *
+     * @param limit end of the enclosing message
+     * @return end position of the field
+     * @throws IOException
+     */
+    private int readEnd(int limit) throws IOException {
+        long len = this.readVarint(limit);
+        if (len < 0 || len > limit - this.pos)
+            throw new IOException("Invalid field length " + len);
+        return this.pos + (int) len;
+    }
+
+    private long readVarint(int limit) throws IOException {
+        byte[] b = this.data;
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (this.pos >= limit)
+                throw new IOException("Truncated varint");
+            byte x = b[this.pos++];
+            result |= (long) (x & 0x7f) << shift;
+            if (x >= 0)
+                return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private void skipField(int tag, int limit) throws IOException {
+        switch (tag & 7) {
+            case 0:
+                this.readVarint(limit);
+                break;
+            case 1:
+                this.skip(8, limit);
+                break;
+            case 2:
+                this.pos = this.readEnd(limit);
+                break;
+            case 5:
+                this.skip(4, limit);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + (tag & 7));
+        }
+    }
+
+    private void skip(int n, int limit) throws IOException {
+        if (n > limit - this.pos)
+            throw new IOException("Truncated field");
+        this.pos += n;
+    }
+
+    private static int content(Osmformat.PrimitiveGroup group) {
+        int c = 0;
+        if (group.hasDense() || group.getNodesCount() > 0)
+            c |= NODES;
+        if (group.getWaysCount() > 0)
+            c |= WAYS;
+        if (group.getRelationsCount() > 0)
+            c |= RELATIONS;
+        return c;
+    }
+}
@@ -1,10 +1,19 @@
 package de.spacedon.simpleosmparser.parser;
 
 import crosby.binary.osmosis.OsmosisReader;
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.store.ElementStoreFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import org.openstreetmap.osmosis.core.task.v0_6.RunnableSource;
 import org.openstreetmap.osmosis.xml.common.CompressionMethod;
@@ -16,6 +25,13 @@ import org.openstreetmap.osmosis.xml.v0_6.XmlReader;
  * @author Philipp Thöricht
  */
 public class PbfFileParser extends OsmParser {
+    private int threads = 1;
+    private boolean ordered = true;
+    private int converters;
+    private boolean memoryMapped;
+    private boolean nativeDecoding = true;
+    private PipelineStats pipelineStats;
+
     /**
      *
      */
@@ -24,34 +40,171 @@ public class PbfFileParser extends OsmParser {
     }
 
     /**
-     * #
+     * @param storeFactory creates the stores for nodes, ways and relations
+     */
+    public PbfFileParser(ElementStoreFactory storeFactory) {
+        super(storeFactory);
+    }
+
+    /**
+     * With more than one thread *.pbf files are inflated and decoded on a
+     * pool of workers, see ParallelPbfReader. Compressed XML files are always
+     * read by one thread.
      *
-     * @param file
-     * @throws FileNotFoundException
+     * @param threads number of decoding threads, 1 by default
      */
-    public void parsePbfFile(File file) throws FileNotFoundException {
-        SinkImpl sinkImplementation = new SinkImpl(this.nodes, this.ways, this.relations);
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.threads = threads;
+    }
 
-        boolean pbf = false;
-        CompressionMethod compression = CompressionMethod.None;
+    /**
+     * @return number of decoding threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
 
-        if (file.getName().endsWith(".pbf"))
-            pbf = true;
-        else if (file.getName().endsWith(".gz"))
-            compression = CompressionMethod.GZip;
-        else if (file.getName().endsWith(".bz2"))
-            compression = CompressionMethod.BZip2;
+    /**
+     * Multi-threaded reading can hand over the elements in the order the
+     * blocks get decoded instead of file order. That keeps all workers busy,
+     * but a way can then arrive before its nodes. Elements read into the
+     * stores are linked after the whole file was read, so they don't mind.
+     *
+     * @param ordered false to allow any order, true by default
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return true if elements are handed over in file order
+     */
+    public boolean isOrdered() {
+        return this.ordered;
+    }
+
+    /**
+     * Pipelined mode for the single-threaded readers: the reader thread only
+     * decodes and queues batches of entities, the given number of threads
+     * convert and store them. See SinkImpl.setPipeline().
+     *
+     * @param converters number of converter threads, 0 (default) to convert
+     *                   on the reader thread
+     */
+    public void setPipeline(int converters) {
+        if (converters < 0)
+            throw new IllegalArgumentException("converters < 0: " + converters);
+        this.converters = converters;
+    }
 
-        RunnableSource reader;
+    /**
+     * @return number of converter threads in pipelined mode
+     */
+    public int getPipeline() {
+        return this.converters;
+    }
+
+    /**
+     * @return figures of the last parsePbfFile() call in pipelined mode, or
+     * null
+     */
+    public PipelineStats getPipelineStats() {
+        return this.pipelineStats;
+    }
 
-        if (pbf)
-            reader = new OsmosisReader(new FileInputStream(file));
-        else
-            reader = new XmlReader(file, true, compression);
+    /**
+     * Reads single-threaded *.pbf files through MappedPbfReader instead of a
+     * stream. With more than one thread the parallel reader is used anyway.
+     *
+     * @param memoryMapped true to map the file, false by default
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if *.pbf files are memory-mapped
+     */
+    public boolean isMemoryMapped() {
+        return this.memoryMapped;
+    }
+
+    /**
+     * Decodes the DenseNodes blocks of *.pbf files without Osmosis, see
+     * PbfBlockDecoder. Single-threaded reads then also go through the block
+     * reader instead of OsmosisReader, unless the pipeline is enabled.
+     *
+     * @param nativeDecoding false to decode everything through Osmosis, true
+     *                       by default
+     */
+    public void setNativeDecoding(boolean nativeDecoding) {
+        this.nativeDecoding = nativeDecoding;
+    }
+
+    /**
+     * @return true if DenseNodes are decoded without Osmosis
+     */
+    public boolean isNativeDecoding() {
+        return this.nativeDecoding;
+    }
+
+    /**
+     * Reads the file into the stores of this parser, or opens its snapshot
+     * if a parse cache is set and has one.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     */
+    public void parsePbfFile(File file) throws FileNotFoundException {
+        String key = this.cacheKey(file);
+        if (this.loadCached(key))
+            return;
+        this.parsePbfFile(file, this.storeHandler());
+        this.storeCached(key);
+    }
+
+    /**
+     * Reads the file and hands every element to the handler instead of
+     * storing it. The handler is called from the reader thread; exceptions
+     * it throws end the reading and are rethrown here.
+     *
+     * @param file
+     * @param handler
+     * @throws FileNotFoundException
+     */
+    public void parsePbfFile(File file, OsmHandler handler) throws FileNotFoundException {
+        this.pipelineStats = null;
+        if (this.isMapped(file)) {
+            try (MappedPbfReader reader = this.mappedReader(file)) {
+                reader.read(handler);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        if (this.isBlockwise(file)) {
+            try (InputStream in = new FileInputStream(file)) {
+                this.blockReader().read(in, handler);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
 
-        reader.setSink(sinkImplementation);
+        InputStream in = isPbf(file) ? new FileInputStream(file) : null;
+        RunnableSource reader = this.createReader(file, in);
+        SinkImpl sink = this.createSink(handler);
+        reader.setSink(sink);
 
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
         Thread readerThread = new Thread(reader);
+        readerThread.setUncaughtExceptionHandler((t, e) -> failure.set(e));
         readerThread.start();
 
         while (readerThread.isAlive()) {
@@ -61,5 +214,201 @@ public class PbfFileParser extends OsmParser {
                 // do nothing
             }
         }
+        closeQuietly(in);
+        this.pipelineStats = sink.getStats();
+
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e instanceof Error)
+            throw (Error) e;
+        else if (e != null)
+            throw new IllegalStateException(e);
+    }
+
+    /**
+     * Reads the file once for each pass the handler asks for. *.pbf files
+     * are mapped and read by one thread whatever the settings: after the
+     * first pass the blob index knows which blobs to skip, so later passes
+     * only decode the blobs holding the type they read.
+     *
+     * @param file
+     * @param handler
+     * @throws FileNotFoundException
+     */
+    public void parseInPasses(File file, MultiPassHandler handler) throws FileNotFoundException {
+        if (!isPbf(file)) {
+            while (handler.nextPass() != 0)
+                this.parsePbfFile(file, handler);
+            return;
+        }
+        this.pipelineStats = null;
+        try (MappedPbfReader reader = this.mappedReader(file)) {
+            int pass;
+            while ((pass = handler.nextPass()) != 0)
+                reader.read(handler, pass);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads only the elements of the given types matching the filter plus
+     * the elements they reference into the stores of this parser, see
+     * ReferenceClosure. The element filter of the parser isn't applied.
+     *
+     * @param file
+     * @param filter null to keep all elements of the given types
+     * @param types  content mask of ReferenceClosure, e.g. ReferenceClosure.WAYS
+     * @throws FileNotFoundException
+     */
+    public void parsePbfFile(File file, TagFilter filter, int types) throws FileNotFoundException {
+        this.parseInPasses(file, new ReferenceClosure(filter, types, this.storeHandler(null)));
+    }
+
+    /**
+     * Reads the part of the file within the bounding box into the stores of
+     * this parser, see BoundingBoxExtract. The element filter of the parser
+     * isn't applied.
+     *
+     * @param file
+     * @param minLat
+     * @param minLon
+     * @param maxLat
+     * @param maxLon
+     * @param completeWays true to keep all nodes of the ways crossing the
+     *                     border, false to keep only the ones inside
+     * @throws FileNotFoundException
+     */
+    public void extractPbfFile(File file, double minLat, double minLon, double maxLat, double maxLon,
+                               boolean completeWays) throws FileNotFoundException {
+        this.parseInPasses(file, new BoundingBoxExtract(minLat, minLon, maxLat, maxLon, completeWays,
+                this.storeHandler(null)));
+    }
+
+    /**
+     * Reads the file lazily on a background thread, which stays a few
+     * thousand elements ahead of the caller. The caller has to close the
+     * iterator unless it is consumed to the end.
+     *
+     * @param file
+     * @return iterator over the nodes, ways and relations in file order
+     * @throws FileNotFoundException
+     */
+    public OsmIterator iterator(File file) throws FileNotFoundException {
+        QueueIterator iterator = new QueueIterator();
+        if (this.isMapped(file)) {
+            MappedPbfReader reader;
+            try {
+                reader = this.mappedReader(file);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            iterator.start(() -> {
+                try {
+                    reader.read(iterator);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, reader::close);
+            return iterator;
+        }
+        if (this.isBlockwise(file)) {
+            InputStream in = new FileInputStream(file);
+            ParallelPbfReader reader = this.blockReader();
+            iterator.start(() -> {
+                try {
+                    reader.read(in, iterator);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, in);
+            return iterator;
+        }
+
+        InputStream in = isPbf(file) ? new FileInputStream(file) : null;
+        RunnableSource reader = this.createReader(file, in);
+        reader.setSink(this.createSink(iterator));
+        iterator.start(reader, in);
+        return iterator;
+    }
+
+    /**
+     * Like iterator(), use it in a try-with-resources block.
+     *
+     * @param file
+     * @return stream over the nodes, ways and relations in file order
+     * @throws FileNotFoundException
+     */
+    public Stream<OSMElement> stream(File file) throws FileNotFoundException {
+        return this.iterator(file).stream();
+    }
+
+    /**
+     * @param file *.pbf, *.osm.gz or *.osm.bz2
+     * @param in   opened file if it is a *.pbf file
+     * @return reader for the file type
+     */
+    private RunnableSource createReader(File file, InputStream in) {
+        if (in != null)
+            return new OsmosisReader(in);
+
+        CompressionMethod compression = CompressionMethod.None;
+        if (file.getName().endsWith(".gz"))
+            compression = CompressionMethod.GZip;
+        else if (file.getName().endsWith(".bz2"))
+            compression = CompressionMethod.BZip2;
+        return new XmlReader(file, true, compression);
+    }
+
+    private SinkImpl createSink(OsmHandler handler) {
+        SinkImpl sink = new SinkImpl(handler, this.dictionary);
+        if (this.converters > 0)
+            sink.setPipeline(this.converters, SinkImpl.DEFAULT_BATCH_SIZE, SinkImpl.DEFAULT_QUEUE_CAPACITY);
+        return sink;
+    }
+
+    /**
+     * @param file
+     * @return true if the file is read by ParallelPbfReader, which also
+     * decodes single-threaded if the pipeline isn't wanted
+     */
+    private boolean isBlockwise(File file) {
+        return isPbf(file) && (this.threads > 1 || this.nativeDecoding && this.converters == 0);
+    }
+
+    private ParallelPbfReader blockReader() {
+        ParallelPbfReader reader = new ParallelPbfReader(this.threads, this.ordered, this.dictionary);
+        reader.setNativeDecoding(this.nativeDecoding);
+        return reader;
+    }
+
+    private boolean isMapped(File file) {
+        return this.memoryMapped && this.threads == 1 && isPbf(file);
+    }
+
+    private MappedPbfReader mappedReader(File file) throws IOException {
+        if (!file.isFile())
+            throw new FileNotFoundException(file.getPath());
+        MappedPbfReader reader = new MappedPbfReader(file, this.dictionary);
+        reader.setNativeDecoding(this.nativeDecoding);
+        return reader;
+    }
+
+    private static boolean isPbf(File file) {
+        return file.getName().endsWith(".pbf");
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
     }
 }
@@ -0,0 +1,566 @@
+package de.spacedon.simpleosmparser.parser;
+
+import com.google.protobuf.ByteString;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.openstreetmap.osmosis.osmbinary.BinaryParser;
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
+import org.openstreetmap.osmosis.osmbinary.Osmformat;
+
+/**
+ * Writes elements as *.pbf. The elements are cut into blocks of one type,
+ * nodes are stored as DenseNodes, each block gets its own string table with
+ * the most frequent strings first and is zlib compressed.
+ * <p>
+ * With several threads the blocks are encoded and compressed on a pool of
+ * workers while the calling thread goes on collecting the next one; blocks
+ * are written in the order they were filled. At most a few blocks per
+ * worker are in flight, the elements of a block must not be changed until
+ * it is written. As an OsmHandler the writer can be handed to any
+ * reader to convert or filter a file without storing it.
+ * <p>
+ * Metadata (version, timestamp, user) is only written for elements that
+ * have some, elements without are read back with version -1.
+ *
+ * @author Philipp Thöricht
+ */
+public class PbfWriter implements OsmHandler, Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 8000;
+    private static final int BLOCKS_PER_THREAD = 4;
+    // way refs and relation members per block, keeps blocks well below the
+    // 16 MB the specification recommends
+    private static final int MAX_REFS = 1 << 20;
+    private static final int GRANULARITY = 100;
+    private static final int DATE_GRANULARITY = 1000;
+    private static final AtomicInteger POOL = new AtomicInteger();
+
+    private final DataOutputStream out;
+    private final int threads;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean sorted;
+    private String writingProgram = "SimpleOsmParser";
+
+    private ExecutorService pool;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private List<OSMElement> block = new ArrayList<>();
+    private int blockType = -1;
+    private int blockRefs;
+    private long lastId;
+    private int lastType = -1;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * @param out     not closed until close() is called
+     * @param threads number of threads encoding blocks, 1 to encode them on
+     *                the calling thread
+     */
+    public PbfWriter(OutputStream out, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.threads = threads;
+    }
+
+    /**
+     * @param blockSize maximum number of elements per block, 8000 by default
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize < 1: " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return maximum number of elements per block
+     */
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * @param compressionLevel zlib level from 0 to 9, -1 for the default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > 9)
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return the zlib level
+     */
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    /**
+     * Declares the file as sorted (Sort.Type_then_ID) in its header. Must be
+     * set before the first element, elements out of order are rejected then.
+     *
+     * @param sorted false by default
+     */
+    public void setSorted(boolean sorted) {
+        if (this.started)
+            throw new IllegalStateException("Header already written");
+        this.sorted = sorted;
+    }
+
+    /**
+     * @return true if elements must come sorted by type and id
+     */
+    public boolean isSorted() {
+        return this.sorted;
+    }
+
+    /**
+     * @param writingProgram name written into the header
+     */
+    public void setWritingProgram(String writingProgram) {
+        this.writingProgram = writingProgram;
+    }
+
+    /**
+     * Adds an element to the current block, the block is written once it is
+     * full or an element of another type comes.
+     *
+     * @param ele
+     * @throws IOException
+     */
+    public void write(OSMElement ele) throws IOException {
+        if (this.finished)
+            throw new IllegalStateException("Writer already finished");
+        int type = ele.getElementtype();
+        if (this.sorted) {
+            if (type < this.lastType || (type == this.lastType && ele.getId() <= this.lastId))
+                throw new IllegalArgumentException("Element not sorted: type " + type + ", id " + ele.getId());
+            this.lastType = type;
+            this.lastId = ele.getId();
+        }
+        if (type != this.blockType || this.block.size() >= this.blockSize || this.blockRefs >= MAX_REFS)
+            this.flushBlock();
+        this.blockType = type;
+        this.block.add(ele);
+        if (ele instanceof OSMWay)
+            this.blockRefs += ((OSMWay) ele).getRefCount();
+        else if (ele instanceof OSMRelation)
+            this.blockRefs += memberCount((OSMRelation) ele);
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        this.writeUnchecked(node);
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        this.writeUnchecked(way);
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        this.writeUnchecked(relation);
+    }
+
+    private void writeUnchecked(OSMElement ele) {
+        try {
+            this.write(ele);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Finishes the file, the stream stays open.
+     */
+    @Override
+    public void onEnd() {
+        try {
+            this.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the last block and waits for all blocks to be written. Further
+     * elements are rejected.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (this.finished)
+            return;
+        try {
+            this.flushBlock();
+            this.startFile();
+            while (!this.pending.isEmpty())
+                this.writeNext();
+            this.out.flush();
+        } finally {
+            this.finished = true;
+            if (this.pool != null)
+                this.pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finishes the file and closes the stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.finish();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    private void startFile() throws IOException {
+        if (this.started)
+            return;
+        this.started = true;
+        Osmformat.HeaderBlock.Builder header = Osmformat.HeaderBlock.newBuilder()
+                .addRequiredFeatures("OsmSchema-V0.6")
+                .addRequiredFeatures("DenseNodes");
+        if (this.sorted)
+            header.addOptionalFeatures("Sort.Type_then_ID");
+        if (this.writingProgram != null)
+            header.setWritingprogram(this.writingProgram);
+        this.out.write(blob("OSMHeader", header.build().toByteString(), this.compressionLevel));
+    }
+
+    private void flushBlock() throws IOException {
+        if (this.block.isEmpty())
+            return;
+        this.startFile();
+        List<OSMElement> elements = this.block;
+        int type = this.blockType;
+        int level = this.compressionLevel;
+        this.block = new ArrayList<>(Math.min(this.blockSize, DEFAULT_BLOCK_SIZE));
+        this.blockRefs = 0;
+        if (this.threads == 1) {
+            this.out.write(blob("OSMData", encode(elements, type), level));
+            return;
+        }
+        if (this.pool == null)
+            this.pool = this.createPool();
+        this.pending.add(this.pool.submit(() -> blob("OSMData", encode(elements, type), level)));
+        if (this.pending.size() >= this.threads * BLOCKS_PER_THREAD)
+            this.writeNext();
+    }
+
+    /**
+     * Waits for the oldest block and writes it.
+     */
+    private void writeNext() throws IOException {
+        try {
+            this.out.write(this.pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private ExecutorService createPool() {
+        int pool = POOL.incrementAndGet();
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "pbf-encoder-" + pool + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param type    OSMHeader or OSMData
+     * @param content serialized block
+     * @param level   zlib level
+     * @return blob header size, blob header and zlib compressed blob
+     * @throws IOException
+     */
+    static byte[] blob(String type, ByteString content, int level) throws IOException {
+        ByteString.Output zipped = ByteString.newOutput(content.size() / 2 + 64);
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream zip = new DeflaterOutputStream(zipped, deflater, 1 << 16)) {
+            content.writeTo(zip);
+        } finally {
+            deflater.end();
+        }
+        Fileformat.Blob blob = Fileformat.Blob.newBuilder()
+                .setRawSize(content.size())
+                .setZlibData(zipped.toByteString())
+                .build();
+        Fileformat.BlobHeader header = Fileformat.BlobHeader.newBuilder()
+                .setType(type)
+                .setDatasize(blob.getSerializedSize())
+                .build();
+        ByteString.Output result = ByteString.newOutput(4 + header.getSerializedSize() + blob.getSerializedSize());
+        DataOutputStream data = new DataOutputStream(result);
+        data.writeInt(header.getSerializedSize());
+        header.writeTo(data);
+        blob.writeTo(data);
+        data.flush();
+        return result.toByteString().toByteArray();
+    }
+
+    /**
+     * @param elements all of the given type
+     * @param type     see OSMElement
+     * @return the serialized PrimitiveBlock
+     */
+    static ByteString encode(List<OSMElement> elements, int type) {
+        StringTable strings = new StringTable(elements);
+        Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+        switch (type) {
+            case OSMElement.NODE:
+                group.setDense(dense(elements, strings));
+                break;
+            case OSMElement.WAY:
+                for (OSMElement ele : elements)
+                    group.addWays(way((OSMWay) ele, strings));
+                break;
+            default:
+                for (OSMElement ele : elements)
+                    group.addRelations(relation((OSMRelation) ele, strings));
+        }
+        return Osmformat.PrimitiveBlock.newBuilder()
+                .setStringtable(strings.build())
+                .setGranularity(GRANULARITY)
+                .setDateGranularity(DATE_GRANULARITY)
+                .addPrimitivegroup(group)
+                .build()
+                .toByteString();
+    }
+
+    private static Osmformat.DenseNodes.Builder dense(List<OSMElement> elements, StringTable strings) {
+        Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+        boolean tags = false;
+        boolean info = false;
+        for (OSMElement ele : elements) {
+            tags |= ele.hasTags();
+            info |= hasInfo(ele);
+        }
+        Osmformat.DenseInfo.Builder denseInfo = info ? Osmformat.DenseInfo.newBuilder() : null;
+        long lastId = 0;
+        long lastLat = 0;
+        long lastLon = 0;
+        long lastTimestamp = 0;
+        int lastUid = 0;
+        int lastUserSid = 0;
+        for (OSMElement ele : elements) {
+            OSMNode node = (OSMNode) ele;
+            long lat = Math.round(node.getLat() * (1e9 / GRANULARITY));
+            long lon = Math.round(node.getLon() * (1e9 / GRANULARITY));
+            dense.addId(node.getId() - lastId);
+            dense.addLat(lat - lastLat);
+            dense.addLon(lon - lastLon);
+            lastId = node.getId();
+            lastLat = lat;
+            lastLon = lon;
+            if (tags) {
+                for (int i = 0; i < node.getTagCount(); i++) {
+                    dense.addKeysVals(strings.index(node.getTagKey(i)));
+                    dense.addKeysVals(strings.index(node.getTagValue(i)));
+                }
+                dense.addKeysVals(0);
+            }
+            if (info) {
+                boolean has = hasInfo(node);
+                long timestamp = has ? timestamp(node) : 0;
+                int uid = node.getUser() != null ? (int) node.getUid() : -1;
+                int userSid = node.getUser() != null ? strings.index(node.getUser()) : 0;
+                denseInfo.addVersion(has ? node.getVersion() : -1);
+                denseInfo.addTimestamp(timestamp - lastTimestamp);
+                denseInfo.addChangeset(0);
+                denseInfo.addUid(uid - lastUid);
+                denseInfo.addUserSid(userSid - lastUserSid);
+                lastTimestamp = timestamp;
+                lastUid = uid;
+                lastUserSid = userSid;
+            }
+        }
+        if (info)
+            dense.setDenseinfo(denseInfo);
+        return dense;
+    }
+
+    private static Osmformat.Way.Builder way(OSMWay way, StringTable strings) {
+        Osmformat.Way.Builder w = Osmformat.Way.newBuilder().setId(way.getId());
+        addTags(way, strings, w::addKeys, w::addVals);
+        if (hasInfo(way))
+            w.setInfo(info(way, strings));
+        long last = 0;
+        for (int i = 0; i < way.getRefCount(); i++) {
+            long ref = way.getRef(i);
+            w.addRefs(ref - last);
+            last = ref;
+        }
+        return w;
+    }
+
+    private static Osmformat.Relation.Builder relation(OSMRelation relation, StringTable strings) {
+        Osmformat.Relation.Builder r = Osmformat.Relation.newBuilder().setId(relation.getId());
+        addTags(relation, strings, r::addKeys, r::addVals);
+        if (hasInfo(relation))
+            r.setInfo(info(relation, strings));
+        long last = 0;
+        for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++) {
+            Osmformat.Relation.MemberType memberType = memberType(type);
+            for (Map.Entry<Long, String> member : relation.getMembersByElementType(type).entrySet()) {
+                r.addRolesSid(strings.index(member.getValue()));
+                r.addMemids(member.getKey() - last);
+                r.addTypes(memberType);
+                last = member.getKey();
+            }
+        }
+        return r;
+    }
+
+    private static Osmformat.Relation.MemberType memberType(int type) {
+        switch (type) {
+            case OSMElement.NODE:
+                return Osmformat.Relation.MemberType.NODE;
+            case OSMElement.WAY:
+                return Osmformat.Relation.MemberType.WAY;
+            default:
+                return Osmformat.Relation.MemberType.RELATION;
+        }
+    }
+
+    private interface IndexSink {
+        void add(int index);
+    }
+
+    private static void addTags(OSMElement ele, StringTable strings, IndexSink keys, IndexSink values) {
+        for (int i = 0; i < ele.getTagCount(); i++) {
+            keys.add(strings.index(ele.getTagKey(i)));
+            values.add(strings.index(ele.getTagValue(i)));
+        }
+    }
+
+    private static Osmformat.Info.Builder info(OSMElement ele, StringTable strings) {
+        Osmformat.Info.Builder info = Osmformat.Info.newBuilder()
+                .setVersion(ele.getVersion())
+                .setTimestamp(timestamp(ele));
+        if (ele.getUser() != null) {
+            info.setUid((int) ele.getUid());
+            info.setUserSid(strings.index(ele.getUser()));
+        }
+        return info;
+    }
+
+    /**
+     * @param ele
+     * @return true if the element has a version, timestamp or user
+     */
+    private static boolean hasInfo(OSMElement ele) {
+        Date timestamp = ele.getTimestamp();
+        return ele.getVersion() > 0 || ele.getUser() != null
+                || (timestamp != null && !timestamp.equals(BinaryParser.NODATE));
+    }
+
+    private static long timestamp(OSMElement ele) {
+        Date timestamp = ele.getTimestamp();
+        if (timestamp == null || timestamp.equals(BinaryParser.NODATE))
+            return 0;
+        return timestamp.getTime() / DATE_GRANULARITY;
+    }
+
+    private static int memberCount(OSMRelation relation) {
+        int count = 0;
+        for (Map<Long, String> members : relation.getAllMembers())
+            count += members.size();
+        return count;
+    }
+
+    /**
+     * String table of a block, the most frequent strings get the smallest
+     * indexes. Index 0 is reserved, it ends the tags of a node in
+     * DenseNodes; an empty key or value gets an index of its own.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> strings;
+
+        StringTable(List<OSMElement> elements) {
+            Map<String, int[]> counts = new HashMap<>();
+            for (OSMElement ele : elements) {
+                for (int i = 0; i < ele.getTagCount(); i++) {
+                    count(counts, ele.getTagKey(i));
+                    count(counts, ele.getTagValue(i));
+                }
+                count(counts, ele.getUser());
+                if (ele instanceof OSMRelation) {
+                    for (Map<Long, String> members : ((OSMRelation) ele).getAllMembers()) {
+                        for (String role : members.values())
+                            count(counts, role);
+                    }
+                }
+            }
+            this.strings = new ArrayList<>(counts.keySet());
+            this.strings.sort((a, b) -> Integer.compare(counts.get(b)[0], counts.get(a)[0]));
+            this.strings.add(0, "");
+            for (int i = 1; i < this.strings.size(); i++)
+                this.indexes.put(this.strings.get(i), i);
+        }
+
+        private static void count(Map<String, int[]> counts, String s) {
+            if (s == null)
+                return;
+            int[] count = counts.get(s);
+            if (count == null)
+                counts.put(s, new int[]{1});
+            else
+                count[0]++;
+        }
+
+        int index(String s) {
+            if (s == null)
+                return 0;
+            return this.indexes.get(s);
+        }
+
+        Osmformat.StringTable.Builder build() {
+            Osmformat.StringTable.Builder table = Osmformat.StringTable.newBuilder();
+            for (String s : this.strings)
+                table.addS(ByteString.copyFromUtf8(s));
+            return table;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package de.spacedon.simpleosmparser.parser;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Figures of a pipelined read, see SinkImpl.setPipeline(). A reader waiting
+ * long for room in the queue means the converters are the bottleneck
+ * (backpressure); converters waiting long for batches mean the reader is.
+ *
+ * @author Philipp Thöricht
+ */
+public class PipelineStats {
+    private final int queueCapacity;
+    private final int batchSize;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder elements = new LongAdder();
+    private final LongAdder producerWaitNanos = new LongAdder();
+    private final LongAdder consumerWaitNanos = new LongAdder();
+    private final LongAdder depthSum = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    PipelineStats(int queueCapacity, int batchSize) {
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+    }
+
+    void batchQueued(int size, int depth, long waitNanos) {
+        this.batches.increment();
+        this.elements.add(size);
+        this.producerWaitNanos.add(waitNanos);
+        this.depthSum.add(depth);
+        int max;
+        while (depth > (max = this.maxDepth.get()) && !this.maxDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+    }
+
+    void consumerWaited(long waitNanos) {
+        this.consumerWaitNanos.add(waitNanos);
+    }
+
+    /**
+     * @return number of batches passed through the queue
+     */
+    public long getBatches() {
+        return this.batches.sum();
+    }
+
+    /**
+     * @return number of entities passed through the queue
+     */
+    public long getElements() {
+        return this.elements.sum();
+    }
+
+    /**
+     * @return time the reader was blocked on a full queue
+     */
+    public long getProducerWaitNanos() {
+        return this.producerWaitNanos.sum();
+    }
+
+    /**
+     * @return time the converters together waited on an empty queue
+     */
+    public long getConsumerWaitNanos() {
+        return this.consumerWaitNanos.sum();
+    }
+
+    /**
+     * @return largest number of batches waiting in the queue
+     */
+    public int getMaxQueueDepth() {
+        return this.maxDepth.get();
+    }
+
+    /**
+     * @return average number of batches waiting when a batch was added
+     */
+    public double getAverageQueueDepth() {
+        long n = this.getBatches();
+        return n == 0 ? 0 : (double) this.depthSum.sum() / n;
+    }
+
+    /**
+     * @return capacity of the queue in batches
+     */
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * @return maximum number of entities per batch
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PipelineStats[batches=%d, elements=%d, producer wait=%d ms, consumer wait=%d ms, queue depth avg=%.1f max=%d of %d]",
+                this.getBatches(), this.getElements(), this.getProducerWaitNanos() / 1000000,
+                this.getConsumerWaitNanos() / 1000000, this.getAverageQueueDepth(), this.getMaxQueueDepth(),
+                this.queueCapacity);
+    }
+}
@@ -0,0 +1,176 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterator fed by a reader thread. The reader hands the elements over in
+ * batches through a bounded queue, so it can run at most a few batches
+ * ahead of the consumer.
+ *
+ * @author Philipp Thöricht
+ */
+class QueueIterator implements OsmIterator, OsmHandler {
+    static final int BATCH_SIZE = 1024;
+    static final int QUEUE_CAPACITY = 16;
+    // compared by identity
+    private static final List<OSMElement> END = new ArrayList<>(0);
+
+    private final BlockingQueue<List<OSMElement>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    private Thread producer;
+    // reader side
+    private List<OSMElement> batch = new ArrayList<>(BATCH_SIZE);
+    // consumer side
+    private List<OSMElement> current = Collections.emptyList();
+    private int pos;
+    private boolean ended;
+
+    /**
+     * Runs the source on a new thread. The source is expected to call this
+     * handler, the resource is closed once it is done.
+     *
+     * @param source
+     * @param resource may be null
+     */
+    void start(Runnable source, Closeable resource) {
+        this.producer = new Thread(() -> {
+            try {
+                source.run();
+            } catch (Throwable e) {
+                if (!this.closed)
+                    this.failure = e;
+            } finally {
+                try {
+                    if (resource != null)
+                        resource.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+                this.offer(END);
+            }
+        }, "osm-reader");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        this.add(node);
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        this.add(way);
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        this.add(relation);
+    }
+
+    @Override
+    public void onEnd() {
+        if (!this.batch.isEmpty() && this.offer(this.batch))
+            this.batch = new ArrayList<>(BATCH_SIZE);
+    }
+
+    private void add(OSMElement ele) {
+        this.batch.add(ele);
+        if (this.batch.size() == BATCH_SIZE) {
+            // abort the reader if nobody is listening anymore
+            if (!this.offer(this.batch))
+                throw new CancellationException("iterator closed");
+            this.batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Waits for room in the queue.
+     *
+     * @param list
+     * @return false if the iterator was closed meanwhile
+     */
+    private boolean offer(List<OSMElement> list) {
+        try {
+            while (!this.closed) {
+                if (this.queue.offer(list, 100, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (this.pos >= this.current.size()) {
+            if (this.ended)
+                return false;
+            List<OSMElement> next;
+            try {
+                next = this.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.close();
+                throw new IllegalStateException(e);
+            }
+            if (next == END) {
+                this.ended = true;
+                Throwable e = this.failure;
+                if (e instanceof RuntimeException)
+                    throw (RuntimeException) e;
+                else if (e instanceof Error)
+                    throw (Error) e;
+                else if (e != null)
+                    throw new IllegalStateException(e);
+                return false;
+            }
+            this.current = next;
+            this.pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public OSMElement next() {
+        if (!this.hasNext())
+            throw new NoSuchElementException();
+        return this.current.get(this.pos++);
+    }
+
+    /**
+     * Stops the reader thread and waits until it released the file.
+     */
+    @Override
+    public void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.ended = true;
+        this.current = Collections.emptyList();
+        this.queue.clear();
+        if (this.producer != null && this.producer != Thread.currentThread()) {
+            try {
+                this.producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.LongHashSet;
+import de.spacedon.simpleosmparser.util.LongList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the elements matching a filter plus everything they reference: the
+ * member relations, ways and nodes of matching relations and the nodes of
+ * matching and member ways. The file is read in several passes, relations
+ * first, then ways, then nodes, each pass collecting the ids the next one
+ * has to keep. So only the ids and the result are held in memory, never the
+ * whole file.
+ * <p>
+ * Nodes are passed on to the target while the node pass runs. Ways and
+ * relations follow after the last pass, so the target gets them after the
+ * nodes they reference, then onEnd() is called once.
+ *
+ * @author Philipp Thöricht
+ */
+public class ReferenceClosure implements MultiPassHandler {
+    private final TagFilter filter;
+    private final int types;
+    private final OsmHandler target;
+    private final LongHashSet nodeIds = new LongHashSet();
+    private final LongHashSet wayIds = new LongHashSet();
+    private final LongHashSet relationIds = new LongHashSet();
+    private final LongHashSet keptRelations = new LongHashSet();
+    // relation ids first referenced in the current pass
+    private final LongList addedRelations = new LongList();
+    // kept relations, one list per relation pass
+    private final List<List<OSMRelation>> relations = new ArrayList<>();
+    private final List<OSMWay> ways = new ArrayList<>();
+    private int pass;
+    private int passes;
+    private boolean finished;
+
+    /**
+     * @param filter elements of the given types have to match it, null to
+     *               keep all elements of these types
+     * @param types  content mask of the types the filter selects, e.g. WAYS;
+     *               other elements are only kept if they are referenced
+     * @param target receives the kept elements
+     */
+    public ReferenceClosure(TagFilter filter, int types, OsmHandler target) {
+        if ((types & ALL) == 0 || (types & ~ALL) != 0)
+            throw new IllegalArgumentException("invalid types: " + types);
+        this.filter = filter;
+        this.types = types;
+        this.target = target;
+    }
+
+    /**
+     * After the last pass the kept ways and relations are handed to the
+     * target.
+     */
+    @Override
+    public int nextPass() {
+        if (this.finished)
+            return 0;
+        int next;
+        if (this.pass == 0)
+            next = (this.types & RELATIONS) != 0 ? RELATIONS : WAYS;
+        else if (this.pass == RELATIONS)
+            next = this.hasMissingRelations() ? RELATIONS : WAYS;
+        else
+            next = this.pass >> 1;
+        if (next == WAYS && (this.types & WAYS) == 0 && this.wayIds.isEmpty())
+            next = NODES;
+        if (next == NODES && (this.types & NODES) == 0 && this.nodeIds.isEmpty())
+            next = 0;
+        if (next == 0) {
+            this.finish();
+            return 0;
+        }
+        if (next == RELATIONS)
+            this.relations.add(new ArrayList<>());
+        this.addedRelations.clear();
+        this.pass = next;
+        this.passes++;
+        return next;
+    }
+
+    /**
+     * A relation pass is repeated while it finds references to relations
+     * which weren't kept yet, i.e. which come before their parent in the
+     * file. References to relations missing from the file end the repeats,
+     * as the pass after their first mention finds nothing new.
+     */
+    private boolean hasMissingRelations() {
+        for (int i = 0; i < this.addedRelations.size(); i++) {
+            if (!this.keptRelations.contains(this.addedRelations.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    private void finish() {
+        this.finished = true;
+        for (OSMWay w : this.ways)
+            this.target.onWay(w);
+        this.ways.clear();
+        // later passes hold the members of the earlier ones, members go first
+        for (int i = this.relations.size() - 1; i >= 0; i--) {
+            for (OSMRelation r : this.relations.get(i))
+                this.target.onRelation(r);
+        }
+        this.relations.clear();
+        this.target.onEnd();
+    }
+
+    /**
+     * @return number of passes started so far
+     */
+    public int getPasses() {
+        return this.passes;
+    }
+
+    private boolean matches(OSMElement ele, int type) {
+        return (this.types & type) != 0 && (this.filter == null || this.filter.matches(ele));
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        if (this.pass == NODES && (this.nodeIds.contains(node.getId()) || this.matches(node, NODES)))
+            this.target.onNode(node);
+    }
+
+    @Override
+    public void onCoordinate(long id, double lat, double lon) {
+        if (this.pass == NODES && ((this.types & NODES) != 0 || this.nodeIds.contains(id)))
+            this.target.onCoordinate(id, lat, lon);
+    }
+
+    /**
+     * Untagged nodes can be passed as coordinates if the target takes them
+     * and the filter doesn't have to look at them.
+     */
+    @Override
+    public boolean isCoordinateOnly() {
+        return this.target.isCoordinateOnly() && (this.filter == null || (this.types & NODES) == 0);
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        if (this.pass != WAYS || !(this.wayIds.contains(way.getId()) || this.matches(way, WAYS)))
+            return;
+        for (int i = 0; i < way.getRefCount(); i++)
+            this.nodeIds.add(way.getRef(i));
+        this.ways.add(way);
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        long id = relation.getId();
+        if (this.pass != RELATIONS || this.keptRelations.contains(id))
+            return;
+        if (!this.relationIds.contains(id) && !(this.relations.size() == 1 && this.matches(relation, RELATIONS)))
+            return;
+        this.keptRelations.add(id);
+        for (long ref : relation.getMembersByElementType(OSMElement.NODE).keySet())
+            this.nodeIds.add(ref);
+        for (long ref : relation.getMembersByElementType(OSMElement.WAY).keySet())
+            this.wayIds.add(ref);
+        for (long ref : relation.getMembersByElementType(OSMElement.RELATION).keySet()) {
+            if (this.relationIds.add(ref))
+                this.addedRelations.add(ref);
+        }
+        this.relations.get(this.relations.size() - 1).add(relation);
+    }
+
+    /**
+     * Ends a pass, nextPass() decides what comes next.
+     */
+    @Override
+    public void onEnd() {
+    }
+}
@@ -4,16 +4,22 @@ import de.spacedon.simpleosmparser.osm.OSMElement;
 import de.spacedon.simpleosmparser.osm.OSMNode;
 import de.spacedon.simpleosmparser.osm.OSMRelation;
 import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.ElementStore;
+import de.spacedon.simpleosmparser.util.StringDictionary;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
 import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
 import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
 import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
 import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
@@ -22,25 +28,92 @@ import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 
 /**
+ * Converts the entities of an Osmosis pipeline and hands them to an
+ * OsmHandler.
+ * <p>
+ * By default everything happens on the thread of the Osmosis reader. In
+ * pipelined mode the reader only collects the entities into batches and
+ * puts them into a bounded queue; converter threads take the batches,
+ * convert them in parallel and pass them to the handler one batch at a time
+ * in file order.
+ *
  * @author Philipp Thöricht
  */
 public class SinkImpl implements Sink {
-    private final HashMap<Long, OSMNode> nodes;
-    private final HashMap<Long, OSMWay> ways;
-    private final HashMap<Long, OSMRelation> relations;
-    private final BlockingQueue<OSMElement> itemQueue;
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    // compared by identity, tells a converter to stop
+    private static final Batch END = new Batch(-1, new ArrayList<>(0));
+
+    private final OsmHandler handler;
+    private final StringDictionary dictionary;
+    // pipelined mode
+    private int converters;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private BlockingQueue<Batch> itemQueue;
+    private List<Entity> batch;
+    private Thread[] workers;
+    private PipelineStats stats;
+    private final Object insertLock = new Object();
+    // only used by the reader thread
+    private long nextBatch;
+    private long nextInsert;
+    private volatile Throwable failure;
+
+    /**
+     * @param nodes
+     * @param ways
+     * @param relations
+     */
+    public SinkImpl(ElementStore<OSMNode> nodes, ElementStore<OSMWay> ways,
+                    ElementStore<OSMRelation> relations) {
+        this(nodes, ways, relations, null);
+    }
 
     /**
      * @param nodes
      * @param ways
      * @param relations
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    public SinkImpl(ElementStore<OSMNode> nodes, ElementStore<OSMWay> ways,
+                    ElementStore<OSMRelation> relations, StringDictionary dictionary) {
+        this(new StoreHandler(nodes, ways, relations), dictionary);
+    }
+
+    /**
+     * @param handler    receives the converted elements
+     * @param dictionary shares tag strings, roles and user names, may be null
+     */
+    public SinkImpl(OsmHandler handler, StringDictionary dictionary) {
+        this.handler = handler;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Enables pipelined mode, call it before the reader starts. The handler
+     * is then called from the converter threads, but never concurrently.
+     *
+     * @param converters    number of converter threads, 0 to convert on the
+     *                      reader thread
+     * @param batchSize     entities per batch
+     * @param queueCapacity batches the reader can be ahead of the converters
+     */
+    public void setPipeline(int converters, int batchSize, int queueCapacity) {
+        if (converters < 0 || batchSize < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("converters=" + converters + ", batchSize=" + batchSize
+                    + ", queueCapacity=" + queueCapacity);
+        this.converters = converters;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return figures of the pipeline or null if it isn't used
      */
-    public SinkImpl(HashMap<Long, OSMNode> nodes, HashMap<Long, OSMWay> ways,
-                    HashMap<Long, OSMRelation> relations) {
-        this.nodes = nodes;
-        this.ways = ways;
-        this.relations = relations;
-        this.itemQueue = new LinkedBlockingQueue<>(50000);
+    public PipelineStats getStats() {
+        return this.stats;
     }
 
     /**
@@ -48,7 +121,17 @@ public class SinkImpl implements Sink {
      */
     @Override
     public void initialize(Map<String, Object> map) {
-//        throw new UnsupportedOperationException("Not supported yet.");
+        if (this.converters == 0 || this.workers != null)
+            return;
+        this.itemQueue = new ArrayBlockingQueue<>(this.queueCapacity);
+        this.batch = new ArrayList<>(this.batchSize);
+        this.stats = new PipelineStats(this.queueCapacity, this.batchSize);
+        this.workers = new Thread[this.converters];
+        for (int i = 0; i < this.converters; i++) {
+            this.workers[i] = new Thread(this::convertBatches, "osm-converter-" + (i + 1));
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
     }
 
     /**
@@ -57,69 +140,227 @@ public class SinkImpl implements Sink {
     @Override
     public void process(EntityContainer entityContainer) {
         Entity entity = entityContainer.getEntity();
-        if (entity instanceof Node) {
-            processNode((Node) entity);
-        } else if (entity instanceof Way) {
-            processWay((Way) entity);
-        } else if (entity instanceof Relation) {
-            processRelation((Relation) entity);
+        if (this.converters == 0) {
+            OSMElement ele = this.convert(entity);
+            if (ele != null)
+                this.handler.onElement(ele);
+            return;
+        }
+        if (this.workers == null)
+            this.initialize(null);
+        this.batch.add(entity);
+        if (this.batch.size() == this.batchSize) {
+            this.enqueue(new Batch(this.nextBatch++, this.batch));
+            this.batch = new ArrayList<>(this.batchSize);
+        }
+    }
+
+    /**
+     * Hands a batch to the converters, waiting while the queue is full.
+     *
+     * @param batch
+     */
+    private void enqueue(Batch batch) {
+        long start = System.nanoTime();
+        try {
+            while (!this.itemQueue.offer(batch, 100, TimeUnit.MILLISECONDS))
+                this.checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OsmosisRuntimeException("Interrupted while queueing entities", e);
+        }
+        if (batch != END)
+            this.stats.batchQueued(batch.entities.size(), this.itemQueue.size(), System.nanoTime() - start);
+    }
+
+    /**
+     * Converter thread: takes batches from the queue until END.
+     */
+    private void convertBatches() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Batch batch = this.itemQueue.take();
+                this.stats.consumerWaited(System.nanoTime() - start);
+                if (batch == END)
+                    return;
+                List<OSMElement> elements = new ArrayList<>(batch.entities.size());
+                for (Entity entity : batch.entities) {
+                    OSMElement ele = this.convert(entity);
+                    if (ele != null)
+                        elements.add(ele);
+                }
+                this.insert(batch.seq, elements);
+            }
+        } catch (Throwable e) {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Waits for the turn of the batch and passes it to the handler.
+     *
+     * @param seq
+     * @param elements
+     * @throws InterruptedException
+     */
+    private void insert(long seq, List<OSMElement> elements) throws InterruptedException {
+        synchronized (this.insertLock) {
+            while (this.nextInsert != seq) {
+                if (this.failure != null)
+                    return;
+                this.insertLock.wait();
+            }
+            try {
+                for (OSMElement ele : elements)
+                    this.handler.onElement(ele);
+            } finally {
+                this.nextInsert++;
+                this.insertLock.notifyAll();
+            }
         }
     }
 
-    private void processNode(Node node) {
+    private void fail(Throwable e) {
+        if (this.failure == null)
+            this.failure = e;
+        synchronized (this.insertLock) {
+            this.insertLock.notifyAll();
+        }
+        // unblock the other converters and the reader
+        this.itemQueue.clear();
+        for (int i = 0; i < this.converters; i++)
+            this.itemQueue.offer(END);
+    }
+
+    private void checkFailure() {
+        Throwable e = this.failure;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e instanceof Error)
+            throw (Error) e;
+        else if (e != null)
+            throw new OsmosisRuntimeException(e);
+    }
+
+    /**
+     * @param entity
+     * @return the converted node, way or relation, null for other entities
+     */
+    private OSMElement convert(Entity entity) {
+        if (entity instanceof Node)
+            return convertNode((Node) entity);
+        else if (entity instanceof Way)
+            return convertWay((Way) entity);
+        else if (entity instanceof Relation)
+            return convertRelation((Relation) entity);
+        return null;
+    }
+
+    private OSMNode convertNode(Node node) {
         OSMNode n = new OSMNode(node.getId(), node.getLatitude(), node.getLongitude());
         n.setTimestamp(node.getTimestamp());
         n.setVersion(node.getVersion());
+        this.setUser(n, node);
         for (Tag t : node.getTags())
-            n.setTag(t.getKey(), t.getValue());
+            n.setTag(this.intern(t.getKey()), this.intern(t.getValue()));
 
-        this.nodes.put(n.getId(), n);
+        return n;
     }
 
-    private void processWay(Way way) {
+    private OSMWay convertWay(Way way) {
         OSMWay w = new OSMWay(way.getId());
         w.setTimestamp(way.getTimestamp());
         w.setVersion(way.getVersion());
-        int i = 1;
-        for (WayNode n : way.getWayNodes()) {
-            w.addRef(n.getNodeId(), i);
-            i++;
-        }
+        this.setUser(w, way);
+        w.ensureRefCapacity(way.getWayNodes().size());
+        for (WayNode n : way.getWayNodes())
+            w.addRefToEnd(n.getNodeId());
         for (Tag t : way.getTags())
-            w.setTag(t.getKey(), t.getValue());
+            w.setTag(this.intern(t.getKey()), this.intern(t.getValue()));
 
-        this.ways.put(w.getId(), w);
+        return w;
     }
 
-    private void processRelation(Relation relation) {
+    private OSMRelation convertRelation(Relation relation) {
         OSMRelation r = new OSMRelation(relation.getId(), "");
         r.setTimestamp(relation.getTimestamp());
         r.setVersion(relation.getVersion());
+        this.setUser(r, relation);
         for (RelationMember m : relation.getMembers()) {
             if (m.getMemberType() == EntityType.Node)
-                r.addMember(OSMElement.NODE, m.getMemberId(), m.getMemberRole());
+                r.addMember(OSMElement.NODE, m.getMemberId(), this.intern(m.getMemberRole()));
             else if (m.getMemberType() == EntityType.Way)
-                r.addMember(OSMElement.WAY, m.getMemberId(), m.getMemberRole());
+                r.addMember(OSMElement.WAY, m.getMemberId(), this.intern(m.getMemberRole()));
             else if (m.getMemberType() == EntityType.Relation)
-                r.addMember(OSMElement.RELATION, m.getMemberId(), m.getMemberRole());
+                r.addMember(OSMElement.RELATION, m.getMemberId(), this.intern(m.getMemberRole()));
         }
         for (Tag t : relation.getTags())
-            r.setTag(t.getKey(), t.getValue());
+            r.setTag(this.intern(t.getKey()), this.intern(t.getValue()));
+
+        return r;
+    }
 
-        this.relations.put(r.getId(), r);
+    private void setUser(OSMElement ele, Entity entity) {
+        OsmUser user = entity.getUser();
+        if (user != null && user != OsmUser.NONE) {
+            ele.setUser(this.intern(user.getName()));
+            ele.setUid(user.getId());
+        }
+    }
+
+    private String intern(String s) {
+        return this.dictionary == null ? s : this.dictionary.intern(s);
     }
 
     /**
-     *
+     * Stops the converters if the reader failed before complete().
      */
     @Override
     public void release() {
+        if (this.workers == null)
+            return;
+        for (Thread t : this.workers)
+            t.interrupt();
+        this.workers = null;
     }
 
     /**
-     *
+     * Waits until the converters are done, then calls onEnd() of the handler.
      */
     @Override
     public void complete() {
+        if (this.workers != null) {
+            if (!this.batch.isEmpty())
+                this.enqueue(new Batch(this.nextBatch++, this.batch));
+            this.batch = new ArrayList<>(0);
+            for (int i = 0; i < this.workers.length; i++)
+                this.enqueue(END);
+            for (Thread t : this.workers) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new OsmosisRuntimeException("Interrupted while converting entities", e);
+                }
+            }
+            this.workers = null;
+            this.checkFailure();
+        }
+        this.handler.onEnd();
+    }
+
+    /**
+     * Entities in file order, numbered by the reader so the converters can
+     * pass them on in that order.
+     */
+    private static class Batch {
+        final long seq;
+        final List<Entity> entities;
+
+        Batch(long seq, List<Entity> entities) {
+            this.seq = seq;
+            this.entities = entities;
+        }
     }
 }
@@ -0,0 +1,176 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
+import de.spacedon.simpleosmparser.store.ElementStore;
+import de.spacedon.simpleosmparser.store.ReverseLinker;
+import de.spacedon.simpleosmparser.util.LongList;
+
+/**
+ * Puts the elements read into stores and links them to the elements they
+ * belong to. This is what the parsers do if no other handler is given.
+ * <p>
+ * Linking is deferred to the end of the file: the ids of the stored ways and
+ * relations are collected and handed to a ReverseLinker in onEnd(), so the
+ * order of the file doesn't matter and parsing isn't slowed down by lookups.
+ *
+ * @author Philipp Thöricht
+ */
+public class StoreHandler implements OsmHandler {
+    protected final ElementStore<OSMNode> nodes;
+    protected final ElementStore<OSMWay> ways;
+    protected final ElementStore<OSMRelation> relations;
+    private TagFilter filter;
+    private boolean reverseLinks = true;
+    private int linkThreads = 1;
+    // stored since the last onEnd(), to be linked
+    private LongList wayIds = new LongList();
+    private LongList relationIds = new LongList();
+
+    /**
+     * @param nodes
+     * @param ways
+     * @param relations
+     */
+    public StoreHandler(ElementStore<OSMNode> nodes, ElementStore<OSMWay> ways,
+                        ElementStore<OSMRelation> relations) {
+        this.nodes = nodes;
+        this.ways = ways;
+        this.relations = relations;
+    }
+
+    /**
+     * @param filter only matching elements are stored, null to store all
+     */
+    public void setFilter(TagFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the filter or null
+     */
+    public TagFilter getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * @param reverseLinks false to skip linking, true by default
+     */
+    public void setReverseLinks(boolean reverseLinks) {
+        this.reverseLinks = reverseLinks;
+    }
+
+    /**
+     * @return true if stored elements get linked at the end of the file
+     */
+    public boolean isReverseLinks() {
+        return this.reverseLinks;
+    }
+
+    /**
+     * @param linkThreads number of threads linking at the end of the file, 1
+     *                    by default
+     */
+    public void setLinkThreads(int linkThreads) {
+        if (linkThreads < 1)
+            throw new IllegalArgumentException("linkThreads < 1: " + linkThreads);
+        this.linkThreads = linkThreads;
+    }
+
+    /**
+     * @return number of linking threads
+     */
+    public int getLinkThreads() {
+        return this.linkThreads;
+    }
+
+    @Override
+    public void onNode(OSMNode node) {
+        if (this.accept(node))
+            this.storeNode(node);
+    }
+
+    @Override
+    public void onCoordinate(long id, double lat, double lon) {
+        this.storeCoordinate(id, lat, lon);
+    }
+
+    /**
+     * Untagged nodes end up as bare coordinates in a CompactNodeStore anyway,
+     * unless a filter has to look at them.
+     */
+    @Override
+    public boolean isCoordinateOnly() {
+        return this.nodes instanceof CompactNodeStore && this.filter == null;
+    }
+
+    @Override
+    public void onWay(OSMWay way) {
+        if (this.accept(way)) {
+            this.ways.put(way.getId(), way);
+            if (this.reverseLinks)
+                this.wayIds.add(way.getId());
+        }
+    }
+
+    @Override
+    public void onRelation(OSMRelation relation) {
+        if (this.accept(relation)) {
+            this.relations.put(relation.getId(), relation);
+            if (this.reverseLinks)
+                this.relationIds.add(relation.getId());
+        }
+    }
+
+    /**
+     * @param ele
+     * @return true if the element is to be stored
+     */
+    protected boolean accept(OSMElement ele) {
+        return this.filter == null || this.filter.matches(ele);
+    }
+
+    /**
+     * Stores an accepted node. In a CompactNodeStore untagged nodes are
+     * reduced to their coordinate.
+     *
+     * @param node
+     */
+    protected void storeNode(OSMNode node) {
+        if (this.nodes instanceof CompactNodeStore && !node.hasTags())
+            this.storeCoordinate(node.getId(), node.getLat(), node.getLon());
+        else
+            this.nodes.put(node.getId(), node);
+    }
+
+    /**
+     * Stores an untagged node in the CompactNodeStore.
+     *
+     * @param id
+     * @param lat
+     * @param lon
+     */
+    protected void storeCoordinate(long id, double lat, double lon) {
+        ((CompactNodeStore) this.nodes).putCoordinate(id, lat, lon);
+    }
+
+    /**
+     * Links the ways and relations stored since the last call.
+     */
+    @Override
+    public void onEnd() {
+        if (this.wayIds.isEmpty() && this.relationIds.isEmpty())
+            return;
+        ReverseLinker linker = new ReverseLinker(this.nodes, this.ways, this.relations);
+        linker.setThreads(this.linkThreads);
+        LongList ways = this.wayIds;
+        LongList relations = this.relationIds;
+        this.wayIds = new LongList();
+        this.relationIds = new LongList();
+        linker.link(ways, relations);
+    }
+}
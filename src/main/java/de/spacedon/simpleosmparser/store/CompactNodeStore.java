@@ -0,0 +1,206 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Node store that keeps untagged nodes only as packed coordinates. Nodes put
+ * with putCoordinate() have no tags, version, timestamp, user or
+ * back-references; get() creates a new OSMNode for them on every call. Changes
+ * on such a node are lost unless it is put back with put(), which turns it
+ * into a regular node.
+ *
+ * @author Philipp Thöricht
+ */
+public class CompactNodeStore implements ElementStore<OSMNode> {
+    private final ElementStore<OSMNode> full;
+    private final CoordinateStore coordinates;
+    private int modCount;
+
+    /**
+     * @param full store for nodes which are kept as objects
+     */
+    public CompactNodeStore(ElementStore<OSMNode> full) {
+        this.full = full;
+        this.coordinates = new CoordinateStore();
+    }
+
+    /**
+     * Stores only the position of a node. An existing node with the same id
+     * will be overwritten.
+     *
+     * @param id
+     * @param lat
+     * @param lon
+     */
+    public void putCoordinate(long id, double lat, double lon) {
+        this.modCount++;
+        this.full.remove(id);
+        this.coordinates.put(id, lat, lon);
+    }
+
+    /**
+     * @param id
+     * @return true if the node with that id is only stored as coordinate
+     */
+    public boolean isCompact(long id) {
+        return this.coordinates.contains(id);
+    }
+
+    /**
+     * @return number of nodes stored as coordinate only
+     */
+    public int compactSize() {
+        return this.coordinates.size();
+    }
+
+    /**
+     * @return the nodes kept as full objects, i.e. the tagged ones and those
+     * put with put()
+     */
+    public Collection<OSMNode> getFullNodes() {
+        return this.full.values();
+    }
+
+    private OSMNode materialize(long id) {
+        int slot = this.coordinates.slot(id);
+        if (slot < 0)
+            return null;
+        return new OSMNode(id, this.coordinates.latAt(slot), this.coordinates.lonAt(slot));
+    }
+
+    @Override
+    public OSMNode get(long id) {
+        OSMNode n = this.full.get(id);
+        return n != null ? n : this.materialize(id);
+    }
+
+    @Override
+    public OSMNode put(long id, OSMNode element) {
+        this.modCount++;
+        OSMNode old = this.full.put(id, element);
+        if (old == null) {
+            old = this.materialize(id);
+            this.coordinates.remove(id);
+        }
+        return old;
+    }
+
+    @Override
+    public OSMNode remove(long id) {
+        OSMNode old = this.full.remove(id);
+        if (old == null) {
+            old = this.materialize(id);
+            this.coordinates.remove(id);
+        }
+        if (old != null)
+            this.modCount++;
+        return old;
+    }
+
+    @Override
+    public boolean containsKey(long id) {
+        return this.full.containsKey(id) || this.coordinates.contains(id);
+    }
+
+    @Override
+    public void putAll(ElementStore<? extends OSMNode> store) {
+        for (OSMNode n : store.values())
+            this.put(n.getId(), n);
+    }
+
+    @Override
+    public int size() {
+        return this.full.size() + this.coordinates.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        this.modCount++;
+        this.full.clear();
+        this.coordinates.clear();
+    }
+
+    @Override
+    public Collection<OSMNode> values() {
+        return new AbstractCollection<OSMNode>() {
+            @Override
+            public Iterator<OSMNode> iterator() {
+                final Iterator<OSMNode> fulliter = full.values().iterator();
+                final PrimitiveIterator.OfLong compactiter = coordinates.idIterator();
+                return new Iterator<OSMNode>() {
+                    @Override
+                    public boolean hasNext() {
+                        return fulliter.hasNext() || compactiter.hasNext();
+                    }
+
+                    @Override
+                    public OSMNode next() {
+                        if (fulliter.hasNext())
+                            return fulliter.next();
+                        return materialize(compactiter.nextLong());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactNodeStore.this.size();
+            }
+        };
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong idIterator() {
+        final PrimitiveIterator.OfLong fulliter = this.full.idIterator();
+        final PrimitiveIterator.OfLong compactiter = this.coordinates.idIterator();
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return fulliter.hasNext() || compactiter.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                if (fulliter.hasNext())
+                    return fulliter.nextLong();
+                return compactiter.nextLong();
+            }
+        };
+    }
+
+    @Override
+    public long minId() {
+        if (this.isEmpty())
+            throw new NoSuchElementException();
+        long min = Long.MAX_VALUE;
+        for (PrimitiveIterator.OfLong iter = this.idIterator(); iter.hasNext(); )
+            min = Math.min(min, iter.nextLong());
+        return min;
+    }
+
+    @Override
+    public long maxId() {
+        if (this.isEmpty())
+            throw new NoSuchElementException();
+        long max = Long.MIN_VALUE;
+        for (PrimitiveIterator.OfLong iter = this.idIterator(); iter.hasNext(); )
+            max = Math.max(max, iter.nextLong());
+        return max;
+    }
+
+    @Override
+    public int modCount() {
+        return this.modCount;
+    }
+}
@@ -0,0 +1,230 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.util.LongObjectMap;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Packed mapping from node id to a fixed-point coordinate. Latitude and
+ * longitude are stored as int in units of 1e-7 degrees (the precision used by
+ * OSM itself), so an entry costs 16 bytes plus the free space of the open
+ * addressing table.
+ * <p>
+ * Long.MIN_VALUE marks free slots and can't be used as id.
+ *
+ * @author Philipp Thöricht
+ */
+public class CoordinateStore {
+    public static final double FIXED_POINT_SCALE = 1e7;
+    private static final long FREE = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] ids;
+    private int[] lats;
+    private int[] lons;
+    private int size;
+    private int mask;
+    private int threshold;
+    private int modCount;
+
+    public CoordinateStore() {
+        this.allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        this.ids = new long[capacity];
+        Arrays.fill(this.ids, FREE);
+        this.lats = new int[capacity];
+        this.lons = new int[capacity];
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @param degrees
+     * @return the coordinate in 1e-7 degrees
+     */
+    public static int toFixed(double degrees) {
+        return (int) Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    /**
+     * @param fixed coordinate in 1e-7 degrees
+     * @return the coordinate in degrees
+     */
+    public static double toDegrees(int fixed) {
+        return fixed / FIXED_POINT_SCALE;
+    }
+
+    private int indexOf(long id) {
+        int i = LongObjectMap.hash(id) & this.mask;
+        while (this.ids[i] != FREE) {
+            if (this.ids[i] == id)
+                return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * An existing coordinate with the same id will be overwritten.
+     *
+     * @param id
+     * @param lat in degrees
+     * @param lon in degrees
+     * @throws IllegalArgumentException if id is Long.MIN_VALUE
+     */
+    public void put(long id, double lat, double lon) {
+        if (id == FREE)
+            throw new IllegalArgumentException("id " + id + " is reserved");
+        int i = LongObjectMap.hash(id) & this.mask;
+        while (this.ids[i] != FREE && this.ids[i] != id)
+            i = (i + 1) & this.mask;
+        this.lats[i] = toFixed(lat);
+        this.lons[i] = toFixed(lon);
+        if (this.ids[i] == FREE) {
+            this.ids[i] = id;
+            this.modCount++;
+            if (++this.size > this.threshold)
+                this.rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldids = this.ids;
+        int[] oldlats = this.lats;
+        int[] oldlons = this.lons;
+        this.allocate(oldids.length << 1);
+        for (int j = 0; j < oldids.length; j++) {
+            if (oldids[j] != FREE) {
+                int i = LongObjectMap.hash(oldids[j]) & this.mask;
+                while (this.ids[i] != FREE)
+                    i = (i + 1) & this.mask;
+                this.ids[i] = oldids[j];
+                this.lats[i] = oldlats[j];
+                this.lons[i] = oldlons[j];
+            }
+        }
+    }
+
+    /**
+     * @param id
+     * @return true if a coordinate is stored for that id
+     */
+    public boolean contains(long id) {
+        return id != FREE && this.indexOf(id) >= 0;
+    }
+
+    /**
+     * @param id
+     * @return latitude in degrees or NaN if there is no such id
+     */
+    public double getLat(long id) {
+        int i = id == FREE ? -1 : this.indexOf(id);
+        return i < 0 ? Double.NaN : toDegrees(this.lats[i]);
+    }
+
+    /**
+     * @param id
+     * @return longitude in degrees or NaN if there is no such id
+     */
+    public double getLon(long id) {
+        int i = id == FREE ? -1 : this.indexOf(id);
+        return i < 0 ? Double.NaN : toDegrees(this.lons[i]);
+    }
+
+    /**
+     * @param id
+     * @return the table slot of that id or -1, for reading both coordinates
+     * with a single lookup
+     */
+    int slot(long id) {
+        return id == FREE ? -1 : this.indexOf(id);
+    }
+
+    double latAt(int slot) {
+        return toDegrees(this.lats[slot]);
+    }
+
+    double lonAt(int slot) {
+        return toDegrees(this.lons[slot]);
+    }
+
+    /**
+     * @param id
+     * @return true if there was a coordinate for that id
+     */
+    public boolean remove(long id) {
+        int i = id == FREE ? -1 : this.indexOf(id);
+        if (i < 0)
+            return false;
+        int free = i;
+        int j = (i + 1) & this.mask;
+        while (this.ids[j] != FREE) {
+            int home = LongObjectMap.hash(this.ids[j]) & this.mask;
+            if (((j - home) & this.mask) >= ((j - free) & this.mask)) {
+                this.ids[free] = this.ids[j];
+                this.lats[free] = this.lats[j];
+                this.lons[free] = this.lons[j];
+                free = j;
+            }
+            j = (j + 1) & this.mask;
+        }
+        this.ids[free] = FREE;
+        this.size--;
+        this.modCount++;
+        return true;
+    }
+
+    /**
+     * @return number of stored coordinates
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Removes all coordinates.
+     */
+    public void clear() {
+        this.allocate(16);
+        this.size = 0;
+        this.modCount++;
+    }
+
+    /**
+     * @return an iterator over all stored ids
+     */
+    public PrimitiveIterator.OfLong idIterator() {
+        return new PrimitiveIterator.OfLong() {
+            private final int expectedModCount = modCount;
+            private final long[] table = ids;
+            private int next = this.seek(0);
+
+            private int seek(int from) {
+                while (from < this.table.length && this.table[from] == FREE)
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next < this.table.length;
+            }
+
+            @Override
+            public long nextLong() {
+                if (modCount != this.expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (this.next >= this.table.length)
+                    throw new NoSuchElementException();
+                long id = this.table[this.next];
+                this.next = this.seek(this.next + 1);
+                return id;
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+import java.util.Collection;
+import java.util.PrimitiveIterator;
+
+/**
+ * Storage for OSM elements of one element type, keyed by their primitive id.
+ * Implementations must not box the id on lookups.
+ *
+ * @param <T> the element type
+ * @author Philipp Thöricht
+ */
+public interface ElementStore<T extends OSMElement> {
+
+    /**
+     * @param id
+     * @return the element with the given id or null if there is none
+     */
+    T get(long id);
+
+    /**
+     * An element with the same id in the store will be overwritten.
+     *
+     * @param id
+     * @param element must not be null
+     * @return the previous element with that id or null
+     */
+    T put(long id, T element);
+
+    /**
+     * @param id
+     * @return the removed element or null if there was none
+     */
+    T remove(long id);
+
+    /**
+     * @param id
+     * @return true if an element with the given id is stored
+     */
+    boolean containsKey(long id);
+
+    /**
+     * Copies all elements of the given store into this one.
+     *
+     * @param store
+     */
+    void putAll(ElementStore<? extends T> store);
+
+    /**
+     * @return number of stored elements
+     */
+    int size();
+
+    /**
+     * @return true if no element is stored
+     */
+    boolean isEmpty();
+
+    /**
+     * Removes all elements.
+     */
+    void clear();
+
+    /**
+     * @return a read-only view of all stored elements
+     */
+    Collection<T> values();
+
+    /**
+     * @return an iterator over all stored ids, without boxing
+     */
+    PrimitiveIterator.OfLong idIterator();
+
+    /**
+     * @return the smallest stored id
+     * @throws java.util.NoSuchElementException if the store is empty
+     */
+    long minId();
+
+    /**
+     * @return the biggest stored id
+     * @throws java.util.NoSuchElementException if the store is empty
+     */
+    long maxId();
+
+    /**
+     * Counts every put, remove and clear. Indexes compare it with the value
+     * they have seen to notice changes that were made past them.
+     *
+     * @return the number of modifications so far
+     */
+    int modCount();
+}
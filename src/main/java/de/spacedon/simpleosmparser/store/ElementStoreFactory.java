@@ -0,0 +1,44 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+/**
+ * Creates the element stores of an OsmParser. Implement this to plug in a
+ * different storage.
+ *
+ * @author Philipp Thöricht
+ */
+public interface ElementStoreFactory {
+
+    /**
+     * @param elementtype either OSMElement.NODE, OSMElement.WAY or
+     *                    OSMElement.RELATION
+     * @param <T>         the element type
+     * @return a new and empty store
+     */
+    <T extends OSMElement> ElementStore<T> createStore(int elementtype);
+
+    /**
+     * @return factory for LongHashStore, the default
+     */
+    static ElementStoreFactory openAddressing() {
+        return new ElementStoreFactory() {
+            @Override
+            public <T extends OSMElement> ElementStore<T> createStore(int elementtype) {
+                return new LongHashStore<>();
+            }
+        };
+    }
+
+    /**
+     * @return factory for HashMapStore
+     */
+    static ElementStoreFactory hashMap() {
+        return new ElementStoreFactory() {
+            @Override
+            public <T extends OSMElement> ElementStore<T> createStore(int elementtype) {
+                return new HashMapStore<>();
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.util.LongList;
+import de.spacedon.simpleosmparser.util.LongObjectMap;
+
+import java.util.PrimitiveIterator;
+import java.util.function.LongPredicate;
+
+/**
+ * Spatial index over node positions. The world is divided into square cells
+ * of a fixed size in degrees, and every cell keeps the ids of the nodes inside
+ * it. A query only visits the cells overlapping the query box, so lookups with
+ * a small tolerance cost near-constant time.
+ *
+ * @author Philipp Thöricht
+ */
+public class GridIndex {
+    public static final double DEFAULT_CELL_SIZE = 0.01;
+
+    private final double cellSize;
+    private final LongObjectMap<LongList> cells;
+    private int size;
+
+    public GridIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize edge length of the cells in degrees
+     */
+    public GridIndex(double cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+        this.cellSize = cellSize;
+        this.cells = new LongObjectMap<>();
+    }
+
+    private int cell(double degrees) {
+        return (int) Math.floor(degrees / this.cellSize);
+    }
+
+    private static long cellKey(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * @param id
+     * @param lat
+     * @param lon
+     */
+    public void add(long id, double lat, double lon) {
+        long key = cellKey(this.cell(lat), this.cell(lon));
+        LongList ids = this.cells.get(key);
+        if (ids == null) {
+            ids = new LongList(2);
+            this.cells.put(key, ids);
+        }
+        ids.add(id);
+        this.size++;
+    }
+
+    /**
+     * @param id
+     * @param lat the position the node was added with
+     * @param lon the position the node was added with
+     * @return true if the id was found
+     */
+    public boolean remove(long id, double lat, double lon) {
+        long key = cellKey(this.cell(lat), this.cell(lon));
+        LongList ids = this.cells.get(key);
+        if (ids == null || !ids.removeValue(id))
+            return false;
+        if (ids.isEmpty())
+            this.cells.remove(key);
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Visits the ids of all nodes in cells overlapping the given box. The
+     * visited nodes can be outside of the box, callers have to check the exact
+     * position.
+     *
+     * @param minlat
+     * @param minlon
+     * @param maxlat
+     * @param maxlon
+     * @param visitor returns false to stop the query
+     * @return false if the visitor stopped the query
+     */
+    public boolean query(double minlat, double minlon, double maxlat, double maxlon, LongPredicate visitor) {
+        int minrow = this.cell(minlat);
+        int maxrow = this.cell(maxlat);
+        int mincol = this.cell(minlon);
+        int maxcol = this.cell(maxlon);
+        long area = ((long) maxrow - minrow + 1) * ((long) maxcol - mincol + 1);
+        if (area > this.cells.size()) {
+            // huge box, walking over the occupied cells is cheaper
+            for (PrimitiveIterator.OfLong iter = this.cells.keyIterator(); iter.hasNext(); ) {
+                long key = iter.nextLong();
+                int row = (int) (key >> 32);
+                int col = (int) key;
+                if (row >= minrow && row <= maxrow && col >= mincol && col <= maxcol
+                        && !visit(this.cells.get(key), visitor))
+                    return false;
+            }
+            return true;
+        }
+        for (int row = minrow; row <= maxrow; row++) {
+            for (int col = mincol; col <= maxcol; col++) {
+                LongList ids = this.cells.get(cellKey(row, col));
+                if (ids != null && !visit(ids, visitor))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean visit(LongList ids, LongPredicate visitor) {
+        for (int i = 0; i < ids.size(); i++) {
+            if (!visitor.test(ids.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of indexed nodes
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return edge length of the cells in degrees
+     */
+    public double getCellSize() {
+        return this.cellSize;
+    }
+}
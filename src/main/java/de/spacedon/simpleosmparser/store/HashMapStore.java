@@ -0,0 +1,105 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+/**
+ * Element store backed by a plain HashMap with boxed keys. This is how the
+ * parsers stored their elements before the open addressing store existed.
+ *
+ * @param <T> the element type
+ * @author Philipp Thöricht
+ */
+public class HashMapStore<T extends OSMElement> implements ElementStore<T> {
+    private final HashMap<Long, T> map = new HashMap<>();
+    private int modCount;
+
+    @Override
+    public T get(long id) {
+        return this.map.get(id);
+    }
+
+    @Override
+    public T put(long id, T element) {
+        if (element == null)
+            throw new NullPointerException("element must not be null");
+        this.modCount++;
+        return this.map.put(id, element);
+    }
+
+    @Override
+    public T remove(long id) {
+        T old = this.map.remove(id);
+        if (old != null)
+            this.modCount++;
+        return old;
+    }
+
+    @Override
+    public boolean containsKey(long id) {
+        return this.map.containsKey(id);
+    }
+
+    @Override
+    public void putAll(ElementStore<? extends T> store) {
+        for (T element : store.values())
+            this.put(element.getId(), element);
+    }
+
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        this.map.clear();
+        this.modCount++;
+    }
+
+    @Override
+    public Collection<T> values() {
+        return Collections.unmodifiableCollection(this.map.values());
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong idIterator() {
+        final Iterator<Long> iter = this.map.keySet().iterator();
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                return iter.next();
+            }
+        };
+    }
+
+    @Override
+    public long minId() {
+        return Collections.min(this.map.keySet());
+    }
+
+    @Override
+    public long maxId() {
+        return Collections.max(this.map.keySet());
+    }
+
+    @Override
+    public int modCount() {
+        return this.modCount;
+    }
+}
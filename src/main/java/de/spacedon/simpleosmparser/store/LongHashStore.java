@@ -0,0 +1,117 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.util.LongObjectMap;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+/**
+ * Element store on top of an open addressing LongObjectMap. Lookups never box
+ * the id and an entry costs one long and one reference instead of a
+ * HashMap.Node plus a boxed Long.
+ *
+ * @param <T> the element type
+ * @author Philipp Thöricht
+ */
+public class LongHashStore<T extends OSMElement> implements ElementStore<T> {
+    private final LongObjectMap<T> map;
+    private int modCount;
+
+    public LongHashStore() {
+        this.map = new LongObjectMap<>();
+    }
+
+    /**
+     * @param expected number of elements which fit without resizing
+     */
+    public LongHashStore(int expected) {
+        this.map = new LongObjectMap<>(expected);
+    }
+
+    @Override
+    public T get(long id) {
+        return this.map.get(id);
+    }
+
+    @Override
+    public T put(long id, T element) {
+        if (element == null)
+            throw new NullPointerException("element must not be null");
+        this.modCount++;
+        return this.map.put(id, element);
+    }
+
+    @Override
+    public T remove(long id) {
+        T old = this.map.remove(id);
+        if (old != null)
+            this.modCount++;
+        return old;
+    }
+
+    @Override
+    public boolean containsKey(long id) {
+        return this.map.containsKey(id);
+    }
+
+    @Override
+    public void putAll(ElementStore<? extends T> store) {
+        this.map.ensureCapacity(this.map.size() + store.size());
+        for (T element : store.values())
+            this.put(element.getId(), element);
+    }
+
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        this.map.clear();
+        this.modCount++;
+    }
+
+    @Override
+    public Collection<T> values() {
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return map.valueIterator();
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong idIterator() {
+        return this.map.keyIterator();
+    }
+
+    @Override
+    public long minId() {
+        return this.map.minKey();
+    }
+
+    @Override
+    public long maxId() {
+        return this.map.maxKey();
+    }
+
+    @Override
+    public int modCount() {
+        return this.modCount;
+    }
+}
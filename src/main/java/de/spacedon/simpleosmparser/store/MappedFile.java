@@ -0,0 +1,112 @@
+package de.spacedon.simpleosmparser.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only memory mapping of a whole file. A single mapping is limited to
+ * 2 GB, so larger files are mapped in windows of 1 GB. Ints and longs must
+ * be aligned to their size, then they never cross a window.
+ *
+ * @author Philipp Thöricht
+ */
+class MappedFile {
+    private static final int WINDOW_BITS = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+
+    private final MappedByteBuffer[] windows;
+    private final long size;
+
+    /**
+     * Maps the file, the channel is closed again right away.
+     *
+     * @param file
+     * @throws IOException
+     */
+    MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.size = channel.size();
+            int count = (int) ((this.size + WINDOW_MASK) >>> WINDOW_BITS);
+            this.windows = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << WINDOW_BITS;
+                this.windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(1L << WINDOW_BITS, this.size - start));
+            }
+        }
+    }
+
+    /**
+     * @return file size in bytes
+     */
+    long size() {
+        return this.size;
+    }
+
+    /**
+     * @param pos multiple of 8
+     * @return
+     */
+    long getLong(long pos) {
+        return this.windows[(int) (pos >>> WINDOW_BITS)].getLong((int) (pos & WINDOW_MASK));
+    }
+
+    /**
+     * @param pos multiple of 4
+     * @return
+     */
+    int getInt(long pos) {
+        return this.windows[(int) (pos >>> WINDOW_BITS)].getInt((int) (pos & WINDOW_MASK));
+    }
+
+    /**
+     * Copies bytes, which may cross windows.
+     *
+     * @param pos
+     * @param dst
+     * @param len
+     */
+    void get(long pos, byte[] dst, int len) {
+        int done = 0;
+        while (done < len) {
+            // through ByteBuffer and Buffer, the covariant overrides of newer
+            // JDKs don't exist on Java 8
+            ByteBuffer window = ((ByteBuffer) this.windows[(int) (pos >>> WINDOW_BITS)]).duplicate();
+            int offset = (int) (pos & WINDOW_MASK);
+            int n = Math.min(len - done, window.capacity() - offset);
+            ((Buffer) window).position(offset);
+            window.get(dst, done, n);
+            done += n;
+            pos += n;
+        }
+    }
+
+    /**
+     * Binary search in a sorted array of longs.
+     *
+     * @param start position of the first long
+     * @param count number of longs
+     * @param key
+     * @return index of the key or -1
+     */
+    long search(long start, long count, long key) {
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long v = this.getLong(start + 8 * mid);
+            if (v < key)
+                low = mid + 1;
+            else if (v > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,108 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.LongList;
+import de.spacedon.simpleosmparser.util.LongObjectMap;
+
+/**
+ * Reverse index from node ids to the ids of the ways and relations referencing
+ * them. Entries are candidates: a way whose refs changed after it was added
+ * can still be listed for a node it doesn't reference anymore, so callers
+ * check the way or relation itself.
+ *
+ * @author Philipp Thöricht
+ */
+public class ReferenceIndex {
+    private static final long[] EMPTY = new long[0];
+
+    private final LongObjectMap<LongList> ways = new LongObjectMap<>();
+    private final LongObjectMap<LongList> relations = new LongObjectMap<>();
+
+    /**
+     * @param way
+     */
+    public void addWay(OSMWay way) {
+        for (int i = 0; i < way.getRefCount(); i++)
+            add(this.ways, way.getRef(i), way.getId());
+    }
+
+    /**
+     * @param way
+     */
+    public void removeWay(OSMWay way) {
+        for (int i = 0; i < way.getRefCount(); i++)
+            remove(this.ways, way.getRef(i), way.getId());
+    }
+
+    /**
+     * @param relation
+     */
+    public void addRelation(OSMRelation relation) {
+        for (long ref : relation.getMembersByElementType(OSMElement.NODE).keySet())
+            add(this.relations, ref, relation.getId());
+    }
+
+    /**
+     * @param relation
+     */
+    public void removeRelation(OSMRelation relation) {
+        for (long ref : relation.getMembersByElementType(OSMElement.NODE).keySet())
+            remove(this.relations, ref, relation.getId());
+    }
+
+    /**
+     * @param node_id
+     * @return ids of the ways which reference the node
+     */
+    public long[] getWays(long node_id) {
+        LongList ids = this.ways.get(node_id);
+        return ids == null ? EMPTY : ids.toArray();
+    }
+
+    /**
+     * @param node_id
+     * @return ids of the relations which have the node as member
+     */
+    public long[] getRelations(long node_id) {
+        LongList ids = this.relations.get(node_id);
+        return ids == null ? EMPTY : ids.toArray();
+    }
+
+    /**
+     * Moves all references of a node to a new node id.
+     *
+     * @param old_id
+     * @param new_id
+     */
+    public void moveNode(long old_id, long new_id) {
+        move(this.ways, old_id, new_id);
+        move(this.relations, old_id, new_id);
+    }
+
+    private static void add(LongObjectMap<LongList> map, long node_id, long id) {
+        LongList ids = map.get(node_id);
+        if (ids == null) {
+            ids = new LongList(1);
+            map.put(node_id, ids);
+        }
+        // closed ways reference their first node twice
+        if (!ids.contains(id))
+            ids.add(id);
+    }
+
+    private static void remove(LongObjectMap<LongList> map, long node_id, long id) {
+        LongList ids = map.get(node_id);
+        if (ids != null && ids.removeValue(id) && ids.isEmpty())
+            map.remove(node_id);
+    }
+
+    private static void move(LongObjectMap<LongList> map, long old_id, long new_id) {
+        LongList ids = map.remove(old_id);
+        if (ids == null)
+            return;
+        for (int i = 0; i < ids.size(); i++)
+            add(map, new_id, ids.get(i));
+    }
+}
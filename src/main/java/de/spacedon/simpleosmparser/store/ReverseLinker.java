@@ -0,0 +1,189 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.LongList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adds the reverse links (see OSMElement.getBelongsTo()) from nodes, ways and
+ * relations to the ways and relations referencing them. Done once after a
+ * file was read, instead of per element while reading, the lookups don't
+ * slow down parsing and don't depend on the order of the file.
+ * <p>
+ * With several threads the ways and relations are cut into batches linked
+ * concurrently; an element is locked while a link is added to it, so the
+ * order of its links may then differ from file order. The stores are only
+ * read, they must not be changed meanwhile. Nodes kept as bare coordinates
+ * by a CompactNodeStore can't hold links and are skipped.
+ *
+ * @author Philipp Thöricht
+ */
+public class ReverseLinker {
+    private static final int MIN_BATCH = 4096;
+    private static final AtomicInteger POOL = new AtomicInteger();
+
+    private final ElementStore<OSMNode> nodes;
+    private final ElementStore<OSMWay> ways;
+    private final ElementStore<OSMRelation> relations;
+    private final CompactNodeStore compact;
+    private int threads = 1;
+
+    /**
+     * @param nodes
+     * @param ways
+     * @param relations
+     */
+    public ReverseLinker(ElementStore<OSMNode> nodes, ElementStore<OSMWay> ways,
+                         ElementStore<OSMRelation> relations) {
+        this.nodes = nodes;
+        this.ways = ways;
+        this.relations = relations;
+        this.compact = nodes instanceof CompactNodeStore ? (CompactNodeStore) nodes : null;
+    }
+
+    /**
+     * @param threads number of linking threads, 1 by default
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of linking threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Links all stored ways and relations. Elements linked before get their
+     * links a second time.
+     */
+    public void linkAll() {
+        this.link(ids(this.ways.idIterator()), ids(this.relations.idIterator()));
+    }
+
+    private static LongList ids(PrimitiveIterator.OfLong iter) {
+        LongList ids = new LongList(1024);
+        while (iter.hasNext())
+            ids.add(iter.nextLong());
+        return ids;
+    }
+
+    /**
+     * Links the given ways and relations, ids missing from the stores are
+     * skipped.
+     *
+     * @param wayIds
+     * @param relationIds
+     */
+    public void link(LongList wayIds, LongList relationIds) {
+        int total = wayIds.size() + relationIds.size();
+        if (this.threads == 1 || total < 2 * MIN_BATCH) {
+            this.linkWays(wayIds, 0, wayIds.size(), false);
+            this.linkRelations(relationIds, 0, relationIds.size(), false);
+            return;
+        }
+        int batch = Math.max(MIN_BATCH, total / (this.threads * 4) + 1);
+        int pool = POOL.incrementAndGet();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "linker-" + pool + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int from = 0; from < wayIds.size(); from += batch) {
+                int start = from;
+                int end = Math.min(from + batch, wayIds.size());
+                futures.add(executor.submit(() -> this.linkWays(wayIds, start, end, true)));
+            }
+            for (int from = 0; from < relationIds.size(); from += batch) {
+                int start = from;
+                int end = Math.min(from + batch, relationIds.size());
+                futures.add(executor.submit(() -> this.linkRelations(relationIds, start, end, true)));
+            }
+            for (Future<?> f : futures)
+                join(f);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void join(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while linking", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void linkWays(LongList ids, int from, int to, boolean concurrent) {
+        for (int i = from; i < to; i++) {
+            OSMWay w = this.ways.get(ids.get(i));
+            if (w == null)
+                continue;
+            for (int j = 0; j < w.getRefCount(); j++)
+                addLink(this.node(w.getRef(j)), w, concurrent);
+        }
+    }
+
+    private void linkRelations(LongList ids, int from, int to, boolean concurrent) {
+        for (int i = from; i < to; i++) {
+            OSMRelation r = this.relations.get(ids.get(i));
+            if (r == null)
+                continue;
+            for (long ref : r.getMembersByElementType(OSMElement.NODE).keySet())
+                addLink(this.node(ref), r, concurrent);
+            for (long ref : r.getMembersByElementType(OSMElement.WAY).keySet())
+                addLink(this.ways.get(ref), r, concurrent);
+            for (long ref : r.getMembersByElementType(OSMElement.RELATION).keySet())
+                addLink(this.relations.get(ref), r, concurrent);
+        }
+    }
+
+    /**
+     * @param id
+     * @return the node if it can hold links, without creating objects for
+     * compact nodes
+     */
+    private OSMNode node(long id) {
+        if (this.compact != null && this.compact.isCompact(id))
+            return null;
+        return this.nodes.get(id);
+    }
+
+    private static void addLink(OSMElement member, OSMElement parent, boolean concurrent) {
+        if (member == null)
+            return;
+        if (!concurrent) {
+            member.addBelongsTo(parent);
+            return;
+        }
+        synchronized (member) {
+            member.addBelongsTo(parent);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.util.LongList;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+/**
+ * Binary dump of the stores of a parser, made to be memory mapped. Opening a
+ * snapshot only maps the file and checks its header; elements are read from
+ * the mapping when they are asked for, see SnapshotStore.
+ * <p>
+ * The file consists of a string table and one section per element type.
+ * A section holds the sorted ids, which are binary searched, a record of
+ * fixed width per element and the pools the records point into: tags as
+ * string indexes, back-references, and the refs of ways or members of
+ * relations. All numbers are big-endian and aligned to their size.
+ * Coordinates are stored with 7 decimals like in CoordinateStore.
+ *
+ * @author Philipp Thöricht
+ */
+public class Snapshot {
+    // "OSMSNAP1"
+    private static final long MAGIC = 0x4f534d534e415031L;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SECTION_HEADER_SIZE = 56;
+    // record layout
+    private static final int RECORD_SIZE = 72;
+    private static final int R_VERSION = 0;
+    private static final int R_FLAGS = 4;
+    private static final int R_USER = 8;
+    private static final int R_TAG_COUNT = 12;
+    private static final int R_LINK_COUNT = 16;
+    // lat of nodes, number of refs or members of ways and relations
+    private static final int R_A = 20;
+    // lon of nodes, type of relations
+    private static final int R_B = 24;
+    private static final int R_UID = 32;
+    private static final int R_TIMESTAMP = 40;
+    private static final int R_TAG_START = 48;
+    private static final int R_LINK_START = 56;
+    private static final int R_EXTRA_START = 64;
+    // flags
+    private static final int VISIBLE = 1;
+    private static final int HAS_TIMESTAMP = 2;
+    private static final int HAS_USER = 4;
+
+    private final MappedFile file;
+    private final long stringCount;
+    private final long stringOffsets;
+    private final long stringData;
+    // decoded strings, filled on first use so equal strings are shared
+    private final String[] strings;
+    private final Section[] sections = new Section[3];
+    private final SnapshotStore<OSMNode> nodes;
+    private final SnapshotStore<OSMWay> ways;
+    private final SnapshotStore<OSMRelation> relations;
+
+    private Snapshot(File file) throws IOException {
+        this.file = new MappedFile(file);
+        if (this.file.size() < HEADER_SIZE || this.file.getLong(0) != MAGIC)
+            throw new IOException("Not a snapshot: " + file);
+        int version = this.file.getInt(8);
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported snapshot version " + version + ": " + file);
+        long strings = this.checkOffset(this.file.getLong(16));
+        this.stringCount = this.file.getLong(strings);
+        if (this.stringCount < 0 || this.stringCount >= Integer.MAX_VALUE)
+            throw new IOException("Invalid string count: " + this.stringCount);
+        this.stringOffsets = strings + 8;
+        this.stringData = this.stringOffsets + 8 * (this.stringCount + 1);
+        this.strings = new String[(int) this.stringCount];
+        for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++)
+            this.sections[type] = new Section(this.file, this.checkOffset(this.file.getLong(24 + 8 * type)));
+        this.nodes = new SnapshotStore<>(this, OSMElement.NODE);
+        this.ways = new SnapshotStore<>(this, OSMElement.WAY);
+        this.relations = new SnapshotStore<>(this, OSMElement.RELATION);
+    }
+
+    private long checkOffset(long offset) throws IOException {
+        if (offset < HEADER_SIZE || offset >= this.file.size() || offset % 8 != 0)
+            throw new IOException("Invalid section offset: " + offset);
+        return offset;
+    }
+
+    /**
+     * Maps a snapshot written by write().
+     *
+     * @param file
+     * @return the snapshot
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public static Snapshot open(File file) throws IOException {
+        return new Snapshot(file);
+    }
+
+    /**
+     * @return the nodes of the snapshot
+     */
+    public ElementStore<OSMNode> getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * @return the ways of the snapshot
+     */
+    public ElementStore<OSMWay> getWays() {
+        return this.ways;
+    }
+
+    /**
+     * @return the relations of the snapshot
+     */
+    public ElementStore<OSMRelation> getRelations() {
+        return this.relations;
+    }
+
+    private SnapshotStore<?> store(int type) {
+        return type == OSMElement.NODE ? this.nodes : type == OSMElement.WAY ? this.ways : this.relations;
+    }
+
+    // access for SnapshotStore
+
+    long count(int type) {
+        return this.sections[type].count;
+    }
+
+    long id(int type, long index) {
+        return this.file.getLong(this.sections[type].ids + 8 * index);
+    }
+
+    long indexOf(int type, long id) {
+        Section s = this.sections[type];
+        return this.file.search(s.ids, s.count, id);
+    }
+
+    /**
+     * Creates the element at index, without its back-references.
+     */
+    OSMElement read(int type, long index) {
+        Section s = this.sections[type];
+        long record = s.records + s.recordSize * index;
+        long id = this.id(type, index);
+        OSMElement ele;
+        if (type == OSMElement.NODE) {
+            ele = new OSMNode(id, CoordinateStore.toDegrees(this.file.getInt(record + R_A)),
+                    CoordinateStore.toDegrees(this.file.getInt(record + R_B)));
+        } else if (type == OSMElement.WAY) {
+            OSMWay w = new OSMWay(id);
+            long[] refs = new long[this.file.getInt(record + R_A)];
+            long start = s.extra + 8 * this.file.getLong(record + R_EXTRA_START);
+            for (int i = 0; i < refs.length; i++)
+                refs[i] = this.file.getLong(start + 8 * i);
+            w.setRefs(refs);
+            ele = w;
+        } else {
+            OSMRelation r = new OSMRelation(id, this.string(this.file.getInt(record + R_B)));
+            int members = this.file.getInt(record + R_A);
+            long start = s.extra + 16 * this.file.getLong(record + R_EXTRA_START);
+            for (int i = 0; i < members; i++) {
+                long entry = start + 16 * i;
+                r.addMember(this.file.getInt(entry + 8), this.file.getLong(entry), this.string(this.file.getInt(entry + 12)));
+            }
+            ele = r;
+        }
+        ele.setVersion(this.file.getInt(record + R_VERSION));
+        int flags = this.file.getInt(record + R_FLAGS);
+        ele.setVisible((flags & VISIBLE) != 0);
+        if ((flags & HAS_TIMESTAMP) != 0)
+            ele.setTimestamp(new Date(this.file.getLong(record + R_TIMESTAMP)));
+        if ((flags & HAS_USER) != 0) {
+            ele.setUser(this.string(this.file.getInt(record + R_USER)));
+            ele.setUid(this.file.getLong(record + R_UID));
+        }
+        int tags = this.file.getInt(record + R_TAG_COUNT);
+        long start = s.tags + 8 * this.file.getLong(record + R_TAG_START);
+        for (int i = 0; i < tags; i++)
+            ele.setTag(this.string(this.file.getInt(start + 8 * i)), this.string(this.file.getInt(start + 8 * i + 4)));
+        return ele;
+    }
+
+    /**
+     * Adds the stored back-references to the element at index, the elements
+     * it belongs to are taken from the stores of this snapshot.
+     */
+    void link(int type, long index, OSMElement ele) {
+        Section s = this.sections[type];
+        long record = s.records + s.recordSize * index;
+        int links = this.file.getInt(record + R_LINK_COUNT);
+        long start = s.links + 16 * this.file.getLong(record + R_LINK_START);
+        for (int i = 0; i < links; i++) {
+            long entry = start + 16 * i;
+            int parentType = this.file.getInt(entry + 8);
+            if (parentType < 0)
+                continue;
+            OSMElement parent = this.store(parentType).get(this.file.getLong(entry));
+            if (parent != null)
+                ele.addBelongsTo(parent);
+        }
+    }
+
+    private String string(int index) {
+        if (index < 0)
+            return null;
+        String s = this.strings[index];
+        if (s == null) {
+            long from = this.file.getLong(this.stringOffsets + 8L * index);
+            long to = this.file.getLong(this.stringOffsets + 8L * index + 8);
+            byte[] bytes = new byte[(int) (to - from)];
+            this.file.get(this.stringData + from, bytes, bytes.length);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            this.strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Where the parts of an element section are.
+     */
+    private static class Section {
+        final long count;
+        final long recordSize;
+        final long ids;
+        final long records;
+        final long tags;
+        final long links;
+        final long extra;
+
+        Section(MappedFile file, long offset) throws IOException {
+            this.count = file.getLong(offset);
+            this.recordSize = file.getLong(offset + 8);
+            this.ids = file.getLong(offset + 16);
+            this.records = file.getLong(offset + 24);
+            this.tags = file.getLong(offset + 32);
+            this.links = file.getLong(offset + 40);
+            this.extra = file.getLong(offset + 48);
+            if (this.count < 0 || this.recordSize < RECORD_SIZE
+                    || this.records + this.count * this.recordSize > file.size())
+                throw new IOException("Invalid snapshot section at " + offset);
+        }
+    }
+
+    /**
+     * Writes the elements of the stores into a snapshot, including their
+     * back-references as far as the elements they point to are stored too.
+     *
+     * @param file
+     * @param nodes
+     * @param ways
+     * @param relations
+     * @throws IOException
+     */
+    public static void write(File file, ElementStore<OSMNode> nodes, ElementStore<OSMWay> ways,
+                             ElementStore<OSMRelation> relations) throws IOException {
+        List<ElementStore<? extends OSMElement>> stores = Arrays.asList(nodes, ways, relations);
+        long[][] ids = new long[3][];
+        for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++)
+            ids[type] = sortedIds(stores.get(type));
+
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++) {
+            for (long id : ids[type])
+                collectStrings(stores.get(type).get(id), strings, table);
+        }
+
+        long[] offsets = new long[4];
+        try (Output out = new Output(file)) {
+            out.pad(HEADER_SIZE);
+            offsets[0] = out.pos;
+            writeStrings(out, table);
+            for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++) {
+                offsets[type + 1] = out.pos;
+                writeSection(out, stores.get(type), ids[type], strings, stores);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(MAGIC);
+            raf.writeInt(FORMAT_VERSION);
+            raf.writeInt(0);
+            for (long offset : offsets)
+                raf.writeLong(offset);
+        }
+    }
+
+    private static long[] sortedIds(ElementStore<? extends OSMElement> store) {
+        LongList ids = new LongList(Math.max(16, store.size()));
+        PrimitiveIterator.OfLong iter = store.idIterator();
+        while (iter.hasNext())
+            ids.add(iter.nextLong());
+        long[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void collectStrings(OSMElement ele, Map<String, Integer> strings, List<String> table) {
+        for (int i = 0; i < ele.getTagCount(); i++) {
+            addString(ele.getTagKey(i), strings, table);
+            addString(ele.getTagValue(i), strings, table);
+        }
+        addString(ele.getUser(), strings, table);
+        if (ele instanceof OSMRelation) {
+            OSMRelation r = (OSMRelation) ele;
+            addString(r.getType(), strings, table);
+            for (Map<Long, String> members : r.getAllMembers()) {
+                for (String role : members.values())
+                    addString(role, strings, table);
+            }
+        }
+    }
+
+    private static void addString(String s, Map<String, Integer> strings, List<String> table) {
+        if (s != null && !strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+
+    private static int index(String s, Map<String, Integer> strings) {
+        return s == null ? -1 : strings.get(s);
+    }
+
+    private static void writeStrings(Output out, List<String> table) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(table.size());
+        for (String s : table)
+            encoded.add(s.getBytes(StandardCharsets.UTF_8));
+        out.writeLong(table.size());
+        long offset = 0;
+        out.writeLong(offset);
+        for (byte[] bytes : encoded) {
+            offset += bytes.length;
+            out.writeLong(offset);
+        }
+        for (byte[] bytes : encoded)
+            out.write(bytes);
+        out.align();
+    }
+
+    private static void writeSection(Output out, ElementStore<? extends OSMElement> store, long[] ids,
+                                     Map<String, Integer> strings,
+                                     List<ElementStore<? extends OSMElement>> stores) throws IOException {
+        long start = out.pos;
+        long idsOffset = start + SECTION_HEADER_SIZE;
+        long recordsOffset = idsOffset + 8L * ids.length;
+        long tagsOffset = recordsOffset + (long) RECORD_SIZE * ids.length;
+        // kept for the later passes, which only fetch elements with
+        // something to write; compact nodes are created on every get()
+        int[] tagCounts = new int[ids.length];
+        int[] linkCounts = new int[ids.length];
+        int[] extraCounts = new int[ids.length];
+        long tagCount = 0;
+        long linkCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            OSMElement ele = store.get(ids[i]);
+            tagCounts[i] = ele.getTagCount();
+            linkCounts[i] = ele.getBelongsToCount();
+            extraCounts[i] = extraCount(ele);
+            tagCount += tagCounts[i];
+            linkCount += linkCounts[i];
+        }
+        long linksOffset = tagsOffset + 8 * tagCount;
+        long extraOffset = linksOffset + 16 * linkCount;
+
+        out.writeLong(ids.length);
+        out.writeLong(RECORD_SIZE);
+        out.writeLong(idsOffset);
+        out.writeLong(recordsOffset);
+        out.writeLong(tagsOffset);
+        out.writeLong(linksOffset);
+        out.writeLong(extraOffset);
+        for (long id : ids)
+            out.writeLong(id);
+
+        long tagStart = 0;
+        long linkStart = 0;
+        long extraStart = 0;
+        for (int i = 0; i < ids.length; i++) {
+            OSMElement ele = store.get(ids[i]);
+            int flags = ele.isVisible() ? VISIBLE : 0;
+            if (ele.getTimestamp() != null)
+                flags |= HAS_TIMESTAMP;
+            if (ele.getUser() != null)
+                flags |= HAS_USER;
+            int a = 0;
+            int b = 0;
+            if (ele instanceof OSMNode) {
+                a = CoordinateStore.toFixed(((OSMNode) ele).getLat());
+                b = CoordinateStore.toFixed(((OSMNode) ele).getLon());
+            } else if (ele instanceof OSMWay) {
+                a = ((OSMWay) ele).getRefCount();
+            } else if (ele instanceof OSMRelation) {
+                a = extraCounts[i];
+                b = index(((OSMRelation) ele).getType(), strings);
+            }
+            out.writeInt(ele.getVersion());
+            out.writeInt(flags);
+            out.writeInt(index(ele.getUser(), strings));
+            out.writeInt(tagCounts[i]);
+            out.writeInt(linkCounts[i]);
+            out.writeInt(a);
+            out.writeInt(b);
+            out.writeInt(0);
+            out.writeLong(ele.getUid());
+            out.writeLong(ele.getTimestamp() != null ? ele.getTimestamp().getTime() : 0);
+            out.writeLong(tagStart);
+            out.writeLong(linkStart);
+            out.writeLong(extraStart);
+            tagStart += tagCounts[i];
+            linkStart += linkCounts[i];
+            extraStart += extraCounts[i];
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            if (tagCounts[i] == 0)
+                continue;
+            OSMElement ele = store.get(ids[i]);
+            for (int t = 0; t < tagCounts[i]; t++) {
+                out.writeInt(index(ele.getTagKey(t), strings));
+                out.writeInt(index(ele.getTagValue(t), strings));
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (linkCounts[i] == 0)
+                continue;
+            OSMElement ele = store.get(ids[i]);
+            for (OSMElement parent : ele.getBelongsTo()) {
+                // links to elements which aren't written can't be resolved
+                int type = parent.getElementtype();
+                out.writeLong(parent.getId());
+                out.writeInt(stores.get(type).get(parent.getId()) == parent ? type : -1);
+                out.writeInt(0);
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (extraCounts[i] == 0)
+                continue;
+            OSMElement ele = store.get(ids[i]);
+            if (ele instanceof OSMWay) {
+                OSMWay w = (OSMWay) ele;
+                for (int r = 0; r < w.getRefCount(); r++)
+                    out.writeLong(w.getRef(r));
+            } else if (ele instanceof OSMRelation) {
+                List<? extends Map<Long, String>> members = ((OSMRelation) ele).getAllMembers();
+                for (int type = OSMElement.NODE; type <= OSMElement.RELATION; type++) {
+                    for (Map.Entry<Long, String> member : members.get(type).entrySet()) {
+                        out.writeLong(member.getKey());
+                        out.writeInt(type);
+                        out.writeInt(index(member.getValue(), strings));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of refs of a way or members of a relation
+     */
+    private static int extraCount(OSMElement ele) {
+        if (ele instanceof OSMWay)
+            return ((OSMWay) ele).getRefCount();
+        if (ele instanceof OSMRelation) {
+            int count = 0;
+            for (Map<Long, String> members : ((OSMRelation) ele).getAllMembers())
+                count += members.size();
+            return count;
+        }
+        return 0;
+    }
+
+    /**
+     * Keeps track of the position, DataOutputStream.size() stops at 2 GB.
+     */
+    private static class Output implements AutoCloseable {
+        private final DataOutputStream out;
+        private long pos;
+
+        Output(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        void writeLong(long v) throws IOException {
+            this.out.writeLong(v);
+            this.pos += 8;
+        }
+
+        void writeInt(int v) throws IOException {
+            this.out.writeInt(v);
+            this.pos += 4;
+        }
+
+        void write(byte[] b) throws IOException {
+            this.out.write(b);
+            this.pos += b.length;
+        }
+
+        void pad(int n) throws IOException {
+            for (int i = 0; i < n; i++)
+                this.out.write(0);
+            this.pos += n;
+        }
+
+        void align() throws IOException {
+            this.pad((int) ((8 - this.pos % 8) % 8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.util.LongObjectMap;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Element store on top of a mapped Snapshot. An element is created from the
+ * mapping the first time it is asked for and kept from then on, so it stays
+ * the same object and changes on it aren't lost. Creating an element also
+ * creates the ways and relations it belongs to, to restore its
+ * back-references.
+ * <p>
+ * The store can be changed: put and removed elements are kept in memory on
+ * top of the snapshot, the file itself is never written. Iterating over
+ * values() creates every element, idIterator() doesn't. Lookups are
+ * synchronized on the snapshot, the store may be read by several threads.
+ *
+ * @param <T> the element type
+ * @author Philipp Thöricht
+ */
+public class SnapshotStore<T extends OSMElement> implements ElementStore<T> {
+    // marks an element of the snapshot that was removed
+    private static final Object REMOVED = new Object();
+
+    private final Snapshot snapshot;
+    private final int type;
+    // created, put and removed elements
+    private final LongObjectMap<Object> overlay = new LongObjectMap<>();
+    private boolean cleared;
+    // number of put elements which aren't in the snapshot
+    private int added;
+    // number of snapshot elements which were removed
+    private int removed;
+    private int modCount;
+
+    SnapshotStore(Snapshot snapshot, int type) {
+        this.snapshot = snapshot;
+        this.type = type;
+    }
+
+    private long indexOf(long id) {
+        return this.cleared ? -1 : this.snapshot.indexOf(this.type, id);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(long id) {
+        synchronized (this.snapshot) {
+            Object o = this.overlay.get(id);
+            if (o != null)
+                return o == REMOVED ? null : (T) o;
+            long index = this.indexOf(id);
+            if (index < 0)
+                return null;
+            T ele = (T) this.snapshot.read(this.type, index);
+            // kept before linking, so cyclic relations find it
+            this.overlay.put(id, ele);
+            this.snapshot.link(this.type, index, ele);
+            return ele;
+        }
+    }
+
+    @Override
+    public T put(long id, T element) {
+        synchronized (this.snapshot) {
+            T old = this.get(id);
+            if (old == null) {
+                if (this.overlay.get(id) == REMOVED)
+                    this.removed--;
+                else
+                    this.added++;
+            }
+            this.overlay.put(id, element);
+            this.modCount++;
+            return old;
+        }
+    }
+
+    @Override
+    public T remove(long id) {
+        synchronized (this.snapshot) {
+            T old = this.get(id);
+            if (old == null)
+                return null;
+            if (this.indexOf(id) >= 0) {
+                this.overlay.put(id, REMOVED);
+                this.removed++;
+            } else {
+                this.overlay.remove(id);
+                this.added--;
+            }
+            this.modCount++;
+            return old;
+        }
+    }
+
+    @Override
+    public boolean containsKey(long id) {
+        synchronized (this.snapshot) {
+            Object o = this.overlay.get(id);
+            if (o != null)
+                return o != REMOVED;
+            return this.indexOf(id) >= 0;
+        }
+    }
+
+    @Override
+    public void putAll(ElementStore<? extends T> store) {
+        for (T ele : store.values())
+            this.put(ele.getId(), ele);
+    }
+
+    @Override
+    public int size() {
+        return (int) (this.baseCount() - this.removed + this.added);
+    }
+
+    private long baseCount() {
+        return this.cleared ? 0 : this.snapshot.count(this.type);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this.snapshot) {
+            this.overlay.clear();
+            this.cleared = true;
+            this.added = 0;
+            this.removed = 0;
+            this.modCount++;
+        }
+    }
+
+    /**
+     * @return number of elements which are kept as objects
+     */
+    public int materializedSize() {
+        return this.overlay.size() - this.removed;
+    }
+
+    @Override
+    public Collection<T> values() {
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final PrimitiveIterator.OfLong ids = idIterator();
+                return new Iterator<T>() {
+                    @Override
+                    public boolean hasNext() {
+                        return ids.hasNext();
+                    }
+
+                    @Override
+                    public T next() {
+                        return get(ids.nextLong());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SnapshotStore.this.size();
+            }
+        };
+    }
+
+    /**
+     * The ids of the snapshot in ascending order, then the added ones.
+     */
+    @Override
+    public PrimitiveIterator.OfLong idIterator() {
+        final long count = this.baseCount();
+        return new PrimitiveIterator.OfLong() {
+            private long index;
+            // created after the snapshot ids and advanced lazily, values()
+            // adds to the overlay while those are iterated
+            private PrimitiveIterator.OfLong overlayIds;
+            private boolean ready;
+            private boolean hasNext;
+            private long next;
+
+            private void advance() {
+                while (this.index < count) {
+                    long id = snapshot.id(type, this.index++);
+                    if (overlay.get(id) != REMOVED) {
+                        this.next = id;
+                        this.hasNext = true;
+                        return;
+                    }
+                }
+                if (this.overlayIds == null)
+                    this.overlayIds = overlay.keyIterator();
+                while (this.overlayIds.hasNext()) {
+                    long id = this.overlayIds.nextLong();
+                    if (overlay.get(id) != REMOVED && indexOf(id) < 0) {
+                        this.next = id;
+                        this.hasNext = true;
+                        return;
+                    }
+                }
+                this.hasNext = false;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (!this.ready) {
+                    this.advance();
+                    this.ready = true;
+                }
+                return this.hasNext;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!this.hasNext())
+                    throw new NoSuchElementException();
+                this.ready = false;
+                return this.next;
+            }
+        };
+    }
+
+    @Override
+    public long minId() {
+        if (this.added == 0 && this.removed == 0 && this.baseCount() > 0)
+            return this.snapshot.id(this.type, 0);
+        PrimitiveIterator.OfLong ids = this.idIterator();
+        if (!ids.hasNext())
+            throw new NoSuchElementException();
+        long min = Long.MAX_VALUE;
+        while (ids.hasNext())
+            min = Math.min(min, ids.nextLong());
+        return min;
+    }
+
+    @Override
+    public long maxId() {
+        if (this.added == 0 && this.removed == 0 && this.baseCount() > 0)
+            return this.snapshot.id(this.type, this.baseCount() - 1);
+        PrimitiveIterator.OfLong ids = this.idIterator();
+        if (!ids.hasNext())
+            throw new NoSuchElementException();
+        long max = Long.MIN_VALUE;
+        while (ids.hasNext())
+            max = Math.max(max, ids.nextLong());
+        return max;
+    }
+
+    @Override
+    public int modCount() {
+        return this.modCount;
+    }
+}
@@ -0,0 +1,116 @@
+package de.spacedon.simpleosmparser.util;
+
+/**
+ * Open addressing hash set of primitive longs with linear probing. 0 marks a
+ * free slot, whether 0 itself is contained is kept in a flag. Each entry costs
+ * one long, a HashSet&lt;Long&gt; needs about six times that.
+ *
+ * @author Philipp Thöricht
+ */
+public class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private int size;
+    private int mask;
+    private int threshold;
+    private boolean containsZero;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expected number of values which fit without resizing
+     */
+    public LongHashSet(int expected) {
+        long needed = (long) Math.ceil(Math.max(expected, 1) / LOAD_FACTOR);
+        int capacity = Integer.highestOneBit((int) Math.min(needed, 1 << 30));
+        if (capacity < needed)
+            capacity <<= 1;
+        this.allocate(Math.max(capacity, 2));
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @param value
+     * @return true if the value wasn't contained before
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (this.containsZero)
+                return false;
+            this.containsZero = true;
+            this.size++;
+            return true;
+        }
+        int i = LongObjectMap.hash(value) & this.mask;
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == value)
+                return false;
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = value;
+        if (++this.size > this.threshold)
+            this.rehash(this.keys.length << 1);
+        return true;
+    }
+
+    /**
+     * @param value
+     * @return true if the value is contained
+     */
+    public boolean contains(long value) {
+        if (value == 0)
+            return this.containsZero;
+        int i = LongObjectMap.hash(value) & this.mask;
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == value)
+                return true;
+            i = (i + 1) & this.mask;
+        }
+        return false;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = this.keys;
+        this.allocate(capacity);
+        for (long value : old) {
+            if (value != 0) {
+                int i = LongObjectMap.hash(value) & this.mask;
+                while (this.keys[i] != 0)
+                    i = (i + 1) & this.mask;
+                this.keys[i] = value;
+            }
+        }
+    }
+
+    /**
+     * @return number of values
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if there are no values
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void clear() {
+        this.allocate(DEFAULT_CAPACITY);
+        this.size = 0;
+        this.containsZero = false;
+    }
+}
@@ -0,0 +1,107 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs.
+ *
+ * @author Philipp Thöricht
+ */
+public class LongList {
+    private long[] values;
+    private int size;
+
+    public LongList() {
+        this(4);
+    }
+
+    /**
+     * @param capacity initial capacity
+     */
+    public LongList(int capacity) {
+        this.values = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * @param value appended to the end
+     */
+    public void add(long value) {
+        if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size + (this.size >> 1) + 1);
+        this.values[this.size++] = value;
+    }
+
+    /**
+     * @param index
+     * @return the value at index
+     * @throws IndexOutOfBoundsException if index is out of range
+     */
+    public long get(int index) {
+        if (index >= this.size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        return this.values[index];
+    }
+
+    /**
+     * @param value
+     * @return index of the first occurrence or -1
+     */
+    public int indexOf(long value) {
+        for (int i = 0; i < this.size; i++) {
+            if (this.values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param value
+     * @return true if the list contains the value
+     */
+    public boolean contains(long value) {
+        return this.indexOf(value) >= 0;
+    }
+
+    /**
+     * Removes the first occurrence of the value, the order of the other
+     * values is not kept.
+     *
+     * @param value
+     * @return true if the value was found
+     */
+    public boolean removeValue(long value) {
+        int i = this.indexOf(value);
+        if (i < 0)
+            return false;
+        this.values[i] = this.values[--this.size];
+        return true;
+    }
+
+    /**
+     * @return number of values
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if there are no values
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all values but keeps the capacity.
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * @return copy of the values
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(this.values, this.size);
+    }
+}
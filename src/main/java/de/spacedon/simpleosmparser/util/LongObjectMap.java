@@ -0,0 +1,293 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Open addressing hash map with primitive long keys and linear probing. A
+ * slot is free if its value is null, so every key (including 0) can be used
+ * but null values can't be stored. Each entry costs one long and one
+ * reference instead of a HashMap.Node plus a boxed Long.
+ *
+ * @param <V> the value type
+ * @author Philipp Thöricht
+ */
+public class LongObjectMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int threshold;
+    private int modCount;
+
+    public LongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expected number of entries which fit without resizing
+     */
+    public LongObjectMap(int expected) {
+        this.allocate(tableSize(expected));
+    }
+
+    private static int tableSize(int expected) {
+        long needed = (long) Math.ceil(Math.max(expected, 1) / LOAD_FACTOR);
+        int capacity = Integer.highestOneBit((int) Math.min(needed, 1 << 30));
+        if (capacity < needed)
+            capacity <<= 1;
+        return Math.max(capacity, 2);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @param key
+     * @return a well distributed hash of the key
+     */
+    public static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key)
+                return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param key
+     * @return the value or null if there is no mapping for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = this.indexOf(key);
+        return i < 0 ? null : (V) this.values[i];
+    }
+
+    /**
+     * @param key
+     * @param value must not be null
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("value must not be null");
+        int i = hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                V old = (V) this.values[i];
+                this.values[i] = value;
+                return old;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.modCount++;
+        if (++this.size > this.threshold)
+            this.rehash(this.values.length << 1);
+        return null;
+    }
+
+    /**
+     * Grows the table so that it can hold the given number of entries without
+     * further resizing.
+     *
+     * @param expected
+     */
+    public void ensureCapacity(int expected) {
+        if (expected > this.threshold)
+            this.rehash(tableSize(expected));
+    }
+
+    private void rehash(int capacity) {
+        long[] oldkeys = this.keys;
+        Object[] oldvalues = this.values;
+        this.allocate(capacity);
+        for (int j = 0; j < oldvalues.length; j++) {
+            if (oldvalues[j] != null) {
+                int i = hash(oldkeys[j]) & this.mask;
+                while (this.values[i] != null)
+                    i = (i + 1) & this.mask;
+                this.keys[i] = oldkeys[j];
+                this.values[i] = oldvalues[j];
+            }
+        }
+        this.modCount++;
+    }
+
+    /**
+     * @param key
+     * @return the removed value or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = this.indexOf(key);
+        if (i < 0)
+            return null;
+        V old = (V) this.values[i];
+        // backward shift deletion keeps probe sequences intact without tombstones
+        int free = i;
+        int j = (i + 1) & this.mask;
+        while (this.values[j] != null) {
+            int home = hash(this.keys[j]) & this.mask;
+            if (((j - home) & this.mask) >= ((j - free) & this.mask)) {
+                this.keys[free] = this.keys[j];
+                this.values[free] = this.values[j];
+                free = j;
+            }
+            j = (j + 1) & this.mask;
+        }
+        this.values[free] = null;
+        this.size--;
+        this.modCount++;
+        return old;
+    }
+
+    /**
+     * @param key
+     * @return true if there is a mapping for the key
+     */
+    public boolean containsKey(long key) {
+        return this.indexOf(key) >= 0;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if there are no entries
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        this.allocate(DEFAULT_CAPACITY);
+        this.size = 0;
+        this.modCount++;
+    }
+
+    /**
+     * @return iterator over all values, fails fast on structural changes
+     */
+    public Iterator<V> valueIterator() {
+        return new Iterator<V>() {
+            private final Cursor cursor = new Cursor();
+
+            @Override
+            public boolean hasNext() {
+                return this.cursor.hasNext();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                return (V) this.cursor.values[this.cursor.advance()];
+            }
+        };
+    }
+
+    /**
+     * @return iterator over all keys, fails fast on structural changes
+     */
+    public PrimitiveIterator.OfLong keyIterator() {
+        return new PrimitiveIterator.OfLong() {
+            private final Cursor cursor = new Cursor();
+
+            @Override
+            public boolean hasNext() {
+                return this.cursor.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                return this.cursor.keys[this.cursor.advance()];
+            }
+        };
+    }
+
+    /**
+     * @return the smallest key
+     * @throws NoSuchElementException if the map is empty
+     */
+    public long minKey() {
+        if (this.size == 0)
+            throw new NoSuchElementException();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null && this.keys[i] < min)
+                min = this.keys[i];
+        }
+        return min;
+    }
+
+    /**
+     * @return the biggest key
+     * @throws NoSuchElementException if the map is empty
+     */
+    public long maxKey() {
+        if (this.size == 0)
+            throw new NoSuchElementException();
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null && this.keys[i] > max)
+                max = this.keys[i];
+        }
+        return max;
+    }
+
+    /**
+     * Walks over the occupied slots of the table.
+     */
+    private class Cursor {
+        private final int expectedModCount = modCount;
+        private final long[] keys = LongObjectMap.this.keys;
+        private final Object[] values = LongObjectMap.this.values;
+        private int next = this.seek(0);
+
+        private int seek(int from) {
+            while (from < this.values.length && this.values[from] == null)
+                from++;
+            return from;
+        }
+
+        boolean hasNext() {
+            return this.next < this.values.length;
+        }
+
+        int advance() {
+            if (modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            if (this.next >= this.values.length)
+                throw new NoSuchElementException();
+            int current = this.next;
+            this.next = this.seek(current + 1);
+            return current;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompresses bzip2 data with several threads. A bzip2 stream is a sequence
+ * of independently compressed blocks of at most 900 kB, each starting with a
+ * 48 bit magic number which isn't aligned to bytes. A splitter thread scans
+ * the compressed data for these magic numbers, the blocks are decompressed
+ * on a pool of workers, and this stream returns their content in order.
+ * Concatenated streams, as written by pbzip2 and lbzip2, are read to the end.
+ * <p>
+ * Each block is decompressed as a stream of its own: a header, the block
+ * shifted to byte alignment and an end of stream marker whose combined CRC
+ * is the CRC of the block. The magic number can also turn up by chance
+ * inside compressed data; a block cut there fails to decompress and is
+ * retried together with the following piece.
+ *
+ * @author Philipp Thöricht
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    private static final int BLOCKS_PER_THREAD = 2;
+    // pieces a failed block is joined with before giving up
+    private static final int MAX_JOINED = 4;
+    // largest compressed block: 900000 symbols and the end of block symbol
+    // of at most 20 bits each, plus the selectors and coding tables
+    private static final int MAX_BLOCK_BYTES = 900001 * 20 / 8 + 32768;
+    private static final Piece END = new Piece(null, 0, 0, false);
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final InputStream in;
+    private final ExecutorService pool;
+    private final BlockingQueue<Future<Piece>> pieces;
+    // free places in pieces, which keeps one more for the end marker
+    private final Semaphore slots;
+    private final Thread splitter;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private byte[] current = new byte[0];
+    private int length;
+    private int pos;
+    private boolean eof;
+
+    /**
+     * @param in      bzip2 compressed data, closed together with this stream
+     * @param threads number of decompressing threads
+     */
+    public ParallelBZip2InputStream(InputStream in, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1: " + threads);
+        this.in = in;
+        int id = COUNT.incrementAndGet();
+        AtomicInteger workers = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "bzip2-decoder-" + id + "-" + workers.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.pieces = new ArrayBlockingQueue<>(threads * BLOCKS_PER_THREAD + 1);
+        this.slots = new Semaphore(threads * BLOCKS_PER_THREAD);
+        this.splitter = new Thread(this::split, "bzip2-splitter-" + id);
+        this.splitter.setDaemon(true);
+        this.splitter.start();
+    }
+
+    /**
+     * Cuts the compressed data into pieces from one magic number to the
+     * next and submits them.
+     */
+    private void split() {
+        try {
+            byte[] header = new byte[4];
+            int h = 0;
+            for (int n; h < 4 && (n = this.in.read(header, h, 4 - h)) >= 0; )
+                h += n;
+            if (h < 4 || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h' || header[3] < '1' || header[3] > '9')
+                throw new IOException("Not a bzip2 stream");
+
+            byte[] chunk = new byte[1 << 16];
+            // bytes since the start of the current piece
+            byte[] buf = new byte[1 << 20];
+            int count = 0;
+            // file position of buf[0] in bytes, of the current piece in bits
+            long base = 4;
+            long pieceStart = -1;
+            boolean block = false;
+            long window = 0;
+            long pos = 4;
+            int n;
+            while ((n = this.in.read(chunk)) >= 0) {
+                for (int i = 0; i < n; i++, pos++) {
+                    if (count == buf.length) {
+                        // buf holds one piece and the start of the next magic number
+                        if (count >= MAX_BLOCK_BYTES)
+                            throw new IOException("No bzip2 block boundary within " + count + " bytes from offset " + base);
+                        buf = Arrays.copyOf(buf, Math.min(buf.length * 2, MAX_BLOCK_BYTES + 8));
+                    }
+                    buf[count++] = chunk[i];
+                    window = window << 8 | (chunk[i] & 0xff);
+                    for (int s = 7; s >= 0; s--) {
+                        long v = window >>> s & MAGIC_MASK;
+                        if (v != BLOCK_MAGIC && v != END_MAGIC)
+                            continue;
+                        long start = pos * 8 + 8 - s - 48;
+                        if (start < base * 8)
+                            continue;
+                        if (pieceStart >= 0)
+                            this.submit(new Piece(buf, pieceStart - base * 8, start - pieceStart, block));
+                        // keep the bytes from the new piece on, the piece has its copy
+                        int keep = (int) (start / 8 - base);
+                        System.arraycopy(buf, keep, buf, 0, count - keep);
+                        count -= keep;
+                        base += keep;
+                        pieceStart = start;
+                        block = v == BLOCK_MAGIC;
+                    }
+                }
+            }
+            if (pieceStart >= 0)
+                this.submit(new Piece(buf, pieceStart - base * 8, base * 8 + count * 8L - pieceStart, block));
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            this.failure = e;
+        } finally {
+            this.pool.shutdown();
+            this.offerEnd();
+        }
+    }
+
+    private void submit(Piece piece) throws InterruptedException {
+        this.slots.acquire();
+        if (!piece.block)
+            this.pieces.put(CompletableFuture.completedFuture(piece));
+        else
+            this.pieces.put(this.pool.submit(() -> {
+                try {
+                    piece.output = decode(Collections.singletonList(piece));
+                } catch (IOException e) {
+                    piece.error = e;
+                }
+                return piece;
+            }));
+    }
+
+    private void offerEnd() {
+        // the queue always has room for the end marker
+        this.pieces.offer(CompletableFuture.completedFuture(END));
+    }
+
+    /**
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    private boolean next() throws IOException {
+        while (!this.eof) {
+            Piece p = this.take();
+            if (p == END) {
+                this.eof = true;
+                break;
+            }
+            if (p.error != null)
+                p = this.join(p);
+            if (p.output != null && p.output.length > 0) {
+                this.current = p.output;
+                this.length = p.output.length;
+                this.pos = 0;
+                return true;
+            }
+        }
+        Throwable e = this.failure;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return false;
+    }
+
+    /**
+     * Retries a block which failed to decompress together with the pieces
+     * following it, in case it was cut at a magic number appearing by
+     * chance.
+     *
+     * @param failed
+     * @return the joined piece
+     * @throws IOException if the block stays broken
+     */
+    private Piece join(Piece failed) throws IOException {
+        List<Piece> joined = new ArrayList<>();
+        joined.add(failed);
+        IOException error = failed.error;
+        while (joined.size() < MAX_JOINED) {
+            Piece p = this.take();
+            if (p == END) {
+                this.eof = true;
+                break;
+            }
+            joined.add(p);
+            try {
+                Piece result = new Piece(null, 0, 0, true);
+                result.output = decode(joined);
+                return result;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    private Piece take() throws IOException {
+        try {
+            Future<Piece> f = this.pieces.take();
+            this.slots.release();
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Decompresses pieces which together form one block.
+     *
+     * @param pieces consecutive pieces, the first starting with the block
+     *               magic number
+     * @return the content of the block
+     * @throws IOException if the data is no valid block
+     */
+    private static byte[] decode(List<Piece> pieces) throws IOException {
+        try {
+            return decodeBlock(pieces);
+        } catch (RuntimeException e) {
+            // broken data can make the decoder fail on array bounds
+            throw new IOException("Invalid bzip2 block", e);
+        }
+    }
+
+    private static byte[] decodeBlock(List<Piece> pieces) throws IOException {
+        Piece first = pieces.get(0);
+        long bits = 0;
+        for (Piece p : pieces)
+            bits += p.bitLength;
+        BitWriter w = new BitWriter((int) (bits / 8) + 16);
+        w.write('B', 8);
+        w.write('Z', 8);
+        w.write('h', 8);
+        // the largest block size, which accepts every block
+        w.write('9', 8);
+        for (Piece p : pieces)
+            w.copy(p.data, p.bitOffset, p.bitLength);
+        w.write(END_MAGIC, 48);
+        // combined CRC of a single block stream, stored right after the magic
+        w.write(first.bits(48, 32), 32);
+        w.flush();
+
+        byte[] out = new byte[1 << 20];
+        int size = 0;
+        try (InputStream bz = new BZip2CompressorInputStream(new ByteArrayInputStream(w.data, 0, w.size))) {
+            int n;
+            while ((n = bz.read(out, size, out.length - size)) >= 0) {
+                size += n;
+                if (size == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+            }
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.pos == this.length && !this.next())
+            return -1;
+        return this.current[this.pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (this.pos == this.length && !this.next())
+            return -1;
+        int n = Math.min(len, this.length - this.pos);
+        System.arraycopy(this.current, this.pos, b, off, n);
+        this.pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return this.length - this.pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.splitter.interrupt();
+        this.pool.shutdownNow();
+        this.in.close();
+    }
+
+    /**
+     * Compressed bits between two magic numbers.
+     */
+    private static class Piece {
+        private final byte[] data;
+        private final long bitOffset;
+        private final long bitLength;
+        // starts with a block rather than the end of stream marker
+        private final boolean block;
+        private byte[] output;
+        private IOException error;
+
+        /**
+         * @param buf       copied from the byte containing bitOffset on
+         * @param bitOffset position of the first bit in buf
+         * @param bitLength
+         * @param block
+         */
+        Piece(byte[] buf, long bitOffset, long bitLength, boolean block) {
+            if (buf == null) {
+                this.data = null;
+                this.bitOffset = 0;
+            } else {
+                int from = (int) (bitOffset / 8);
+                this.data = Arrays.copyOfRange(buf, from, (int) ((bitOffset + bitLength + 7) / 8));
+                this.bitOffset = bitOffset - from * 8L;
+            }
+            this.bitLength = bitLength;
+            this.block = block;
+        }
+
+        /**
+         * @param offset in bits from the start of the piece
+         * @param n      at most 56
+         * @return n bits of the piece
+         */
+        long bits(long offset, int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++)
+                v = v << 1 | bit(this.data, this.bitOffset + offset + i);
+            return v;
+        }
+    }
+
+    private static int bit(byte[] data, long pos) {
+        return data[(int) (pos >>> 3)] >>> (7 - (pos & 7)) & 1;
+    }
+
+    /**
+     * Writes bits most significant first, as bzip2 does.
+     */
+    private static class BitWriter {
+        private byte[] data;
+        private int size;
+        private long acc;
+        private int count;
+
+        BitWriter(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        /**
+         * @param value
+         * @param n     number of low bits of value to write, at most 56
+         */
+        void write(long value, int n) {
+            this.acc = this.acc << n | value & ((1L << n) - 1);
+            this.count += n;
+            while (this.count >= 8) {
+                if (this.size == this.data.length)
+                    this.data = Arrays.copyOf(this.data, this.size * 2);
+                this.data[this.size++] = (byte) (this.acc >>> (this.count - 8));
+                this.count -= 8;
+            }
+        }
+
+        void copy(byte[] src, long offset, long length) {
+            int shift = (int) (offset & 7);
+            int i = (int) (offset >>> 3);
+            long whole = length / 8;
+            for (long k = 0; k < whole; k++, i++) {
+                int hi = src[i] & 0xff;
+                int lo = shift == 0 ? 0 : src[i + 1] & 0xff;
+                this.write((hi << 8 | lo) >>> (8 - shift), 8);
+            }
+            long pos = offset + whole * 8;
+            for (long k = whole * 8; k < length; k++, pos++)
+                this.write(bit(src, pos), 1);
+        }
+
+        /**
+         * Pads the last byte with zeros.
+         */
+        void flush() {
+            if (this.count > 0)
+                this.write(0, 8 - this.count);
+        }
+    }
+}
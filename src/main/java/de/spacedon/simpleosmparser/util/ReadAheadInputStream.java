@@ -0,0 +1,159 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads another stream on a background thread, a few buffers ahead of the
+ * consumer. Wrapped around a decompressing stream, decompression and
+ * parsing run on two cores. The buffers are recycled, so reading allocates
+ * nothing after the start.
+ *
+ * @author Philipp Thöricht
+ */
+public class ReadAheadInputStream extends InputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    public static final int DEFAULT_BUFFERS = 8;
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final InputStream in;
+    private final BlockingQueue<Buffer> filled;
+    private final BlockingQueue<Buffer> free;
+    private final Thread reader;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private Buffer current;
+    private int pos;
+    private boolean eof;
+
+    /**
+     * @param in the stream to read ahead, closed together with this one
+     */
+    public ReadAheadInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param in         the stream to read ahead, closed together with this
+     *                   one
+     * @param bufferSize size of a buffer in bytes
+     * @param buffers    number of buffers the reader may fill ahead
+     */
+    public ReadAheadInputStream(InputStream in, int bufferSize, int buffers) {
+        if (bufferSize < 1 || buffers < 1)
+            throw new IllegalArgumentException("bufferSize and buffers must be positive");
+        this.in = in;
+        // one buffer is held by the consumer, room for the end marker
+        this.filled = new ArrayBlockingQueue<>(buffers + 2);
+        this.free = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers + 1; i++)
+            this.free.add(new Buffer(bufferSize));
+        this.reader = new Thread(this::fill, "read-ahead-" + COUNT.incrementAndGet());
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void fill() {
+        try {
+            while (!this.closed) {
+                Buffer b = this.free.take();
+                b.length = 0;
+                int n = 0;
+                while (b.length < b.data.length && (n = this.in.read(b.data, b.length, b.data.length - b.length)) >= 0)
+                    b.length += n;
+                if (b.length > 0)
+                    this.filled.put(b);
+                if (n < 0)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            this.failure = e;
+        } finally {
+            // the queue always has room for the end marker
+            this.filled.offer(Buffer.END);
+        }
+    }
+
+    /**
+     * @return false at the end of the stream
+     * @throws IOException if reading failed on the background thread
+     */
+    private boolean next() throws IOException {
+        if (this.eof)
+            return false;
+        if (this.closed)
+            throw new IOException("Stream closed");
+        if (this.current != null)
+            this.free.offer(this.current);
+        this.current = null;
+        Buffer b;
+        try {
+            b = this.filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        }
+        if (b == Buffer.END) {
+            this.eof = true;
+            Throwable e = this.failure;
+            if (e instanceof IOException)
+                throw (IOException) e;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            return false;
+        }
+        this.current = b;
+        this.pos = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((this.current == null || this.pos == this.current.length) && !this.next())
+            return -1;
+        return this.current.data[this.pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if ((this.current == null || this.pos == this.current.length) && !this.next())
+            return -1;
+        int n = Math.min(len, this.current.length - this.pos);
+        System.arraycopy(this.current.data, this.pos, b, off, n);
+        this.pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return this.current == null ? 0 : this.current.length - this.pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.reader.interrupt();
+        this.in.close();
+    }
+
+    private static class Buffer {
+        private static final Buffer END = new Buffer(0);
+        private final byte[] data;
+        private int length;
+
+        Buffer(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates strings like tag keys, tag values, member roles and user
+ * names. Equal strings read from a file are replaced by one shared instance.
+ * Unlike String.intern() the dictionary belongs to a parser and is released
+ * together with it. It is safe to use from several threads.
+ * <p>
+ * Once the dictionary is full, unknown strings are returned as they are, so
+ * rare values like names or notes can't make it grow without bounds.
+ *
+ * @author Philipp Thöricht
+ */
+public class StringDictionary {
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+    // String object plus array header, the characters are counted extra
+    private static final int STRING_OVERHEAD = 40;
+
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    public StringDictionary() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of distinct strings to keep
+     */
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param s
+     * @return the shared instance equal to s, or s itself if it wasn't known
+     * yet, or null if s is null
+     */
+    public String intern(String s) {
+        if (s == null)
+            return null;
+        String known = this.strings.get(s);
+        if (known != null) {
+            this.hits.increment();
+            this.savedBytes.add(STRING_OVERHEAD + s.length());
+            return known;
+        }
+        this.misses.increment();
+        if (this.strings.size() >= this.maxSize)
+            return s;
+        known = this.strings.putIfAbsent(s, s);
+        return known != null ? known : s;
+    }
+
+    /**
+     * @return number of lookups which returned a shared instance
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of lookups of unknown strings
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if nothing was looked up yet
+     */
+    public double getHitRate() {
+        long h = this.getHits();
+        long total = h + this.getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Rough estimate of the heap saved by sharing, assuming one byte per
+     * character.
+     *
+     * @return bytes
+     */
+    public long getSavedBytes() {
+        return this.savedBytes.sum();
+    }
+
+    /**
+     * @return number of distinct strings in the dictionary
+     */
+    public int size() {
+        return this.strings.size();
+    }
+
+    /**
+     * @return maximum number of distinct strings
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Removes all strings and resets the statistics.
+     */
+    public void clear() {
+        this.strings.clear();
+        this.hits.reset();
+        this.misses.reset();
+        this.savedBytes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StringDictionary[size=%d, hits=%d, misses=%d, hit rate=%.1f%%, saved=%d KB]",
+                this.size(), this.getHits(), this.getMisses(), this.getHitRate() * 100, this.getSavedBytes() / 1024);
+    }
+}
@@ -0,0 +1,70 @@
+package de.spacedon.simpleosmparser.benchmark;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.store.ElementStore;
+import de.spacedon.simpleosmparser.store.ElementStoreFactory;
+
+import java.util.Random;
+
+/**
+ * Compares heap usage and lookup time of the element stores. Run with e.g.
+ * <pre>java -Xmx4g -cp target/classes:target/test-classes:... \
+ *     de.spacedon.simpleosmparser.benchmark.ElementStoreBenchmark 5000000</pre>
+ *
+ * @author Philipp Thöricht
+ */
+public class ElementStoreBenchmark {
+
+    /**
+     * @param args [0]: number of nodes, defaults to 2000000
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        OSMNode[] nodes = new OSMNode[count];
+        long[] ids = new long[count];
+        Random random = new Random(1);
+        long id = 0;
+        for (int i = 0; i < count; i++) {
+            // osm ids are sparse but increasing
+            id += 1 + random.nextInt(8);
+            ids[i] = id;
+            nodes[i] = new OSMNode(id, 0, 0);
+        }
+
+        run("HashMapStore", ElementStoreFactory.hashMap(), nodes, ids);
+        run("LongHashStore", ElementStoreFactory.openAddressing(), nodes, ids);
+        run("HashMapStore", ElementStoreFactory.hashMap(), nodes, ids);
+        run("LongHashStore", ElementStoreFactory.openAddressing(), nodes, ids);
+    }
+
+    private static void run(String name, ElementStoreFactory factory, OSMNode[] nodes, long[] ids) {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        ElementStore<OSMNode> store = factory.createStore(OSMElement.NODE);
+        for (OSMNode n : nodes)
+            store.put(n.getId(), n);
+        long insert = System.nanoTime() - start;
+        long heap = usedHeap() - before;
+
+        Random random = new Random(2);
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < ids.length; i++) {
+            if (store.get(ids[random.nextInt(ids.length)]) != null)
+                found++;
+        }
+        long lookup = System.nanoTime() - start;
+
+        System.out.printf("%-14s heap: %6.1f MB (%5.1f bytes/entry), insert: %5d ms, lookup: %5.1f ns/op (%d found)%n",
+                name, heap / 1048576.0, (double) heap / nodes.length, insert / 1000000,
+                (double) lookup / ids.length, found);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
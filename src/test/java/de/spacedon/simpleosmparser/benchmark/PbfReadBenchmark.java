@@ -0,0 +1,70 @@
+package de.spacedon.simpleosmparser.benchmark;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.parser.OsmHandler;
+import de.spacedon.simpleosmparser.parser.PbfFileParser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Measures how fast a *.pbf file is read with different numbers of decoding
+ * threads, with a memory mapping and with DenseNodes decoded by Osmosis
+ * instead of the native decoder. The elements are only counted, so the
+ * numbers show the decoding speed without the cost of storing.
+ *
+ * @author Philipp Thöricht
+ */
+public class PbfReadBenchmark {
+
+    /**
+     * @param args [0]: the *.pbf file
+     *             [1]: maximum number of threads, defaults to the number of
+     *             processors
+     * @throws FileNotFoundException
+     */
+    public static void main(String[] args) throws FileNotFoundException {
+        File file = new File(args[0]);
+        int max = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (int round = 0; round < 2; round++) {
+            for (int threads = 1; threads <= max; threads *= 2) {
+                for (int mode = 0; mode < (threads == 1 ? 3 : 2); mode++) {
+                    // single-threaded: stream, mapped and Osmosis, otherwise ordered and unordered
+                    boolean ordered = threads == 1 || mode == 0;
+                    boolean mapped = threads == 1 && mode == 1;
+                    boolean osmosis = threads == 1 && mode == 2;
+                    PbfFileParser parser = new PbfFileParser();
+                    parser.setThreads(threads);
+                    parser.setOrdered(ordered);
+                    parser.setMemoryMapped(mapped);
+                    parser.setNativeDecoding(!osmosis);
+                    final long[] count = new long[1];
+                    long start = System.nanoTime();
+                    parser.parsePbfFile(file, new OsmHandler() {
+                        @Override
+                        public void onNode(OSMNode node) {
+                            count[0]++;
+                        }
+
+                        @Override
+                        public void onWay(OSMWay way) {
+                            count[0]++;
+                        }
+
+                        @Override
+                        public void onRelation(OSMRelation relation) {
+                            count[0]++;
+                        }
+                    });
+                    long time = System.nanoTime() - start;
+                    System.out.printf("%2d threads%s: %6d ms, %5.2f M elements/s (%d elements)%n",
+                            threads, mapped ? " (mapped)" : osmosis ? " (Osmosis)" : ordered ? "" : " (unordered)", time / 1000000,
+                            count[0] * 1000.0 / time, count[0]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package de.spacedon.simpleosmparser.benchmark;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.parser.OsmFileParser;
+import de.spacedon.simpleosmparser.parser.OsmParser;
+
+import java.util.Random;
+
+/**
+ * Compares samePos() on the grid index with the linear scan over all nodes
+ * it replaced.
+ *
+ * @author Philipp Thöricht
+ */
+public class SpatialIndexBenchmark {
+
+    /**
+     * @param args [0]: number of nodes, defaults to 200000
+     *             [1]: number of queries, defaults to 2000
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        double tolerance = 0.0001;
+
+        OsmParser parser = new OsmFileParser();
+        Random random = new Random(1);
+        for (int i = 1; i <= count; i++) {
+            // a city-sized area of about 20x20 km
+            parser.putNode(new OSMNode(i, 51.0 + random.nextDouble() * 0.2, 13.6 + random.nextDouble() * 0.2));
+        }
+        double[] lats = new double[queries];
+        double[] lons = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            OSMNode n = parser.getNode(1 + random.nextInt(count));
+            lats[i] = n.getLat() + tolerance / 2;
+            lons[i] = n.getLon() - tolerance / 2;
+        }
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            long hits = 0;
+            for (int i = 0; i < queries; i++) {
+                if (scan(parser, 0, lats[i], lons[i], tolerance) != 0)
+                    hits++;
+            }
+            long scan = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parser.samePos(0, 0, 0, 0); // builds the index
+            long build = System.nanoTime() - start;
+            start = System.nanoTime();
+            long indexhits = 0;
+            for (int i = 0; i < queries; i++) {
+                if (parser.samePos(0, lats[i], lons[i], tolerance) != 0)
+                    indexhits++;
+            }
+            long index = System.nanoTime() - start;
+
+            System.out.printf("scan: %8.1f us/query (%d hits), index: %5.2f us/query (%d hits, built in %d ms)%n",
+                    scan / 1000.0 / queries, hits, index / 1000.0 / queries, indexhits, build / 1000000);
+        }
+    }
+
+    private static long scan(OsmParser parser, long n_id, double lat, double lon, double tolerance) {
+        for (OSMNode node : parser.getNodes().values()) {
+            if (n_id != node.getId() && lat - tolerance <= node.getLat()
+                    && node.getLat() <= lat + tolerance
+                    && lon - tolerance <= node.getLon() && node.getLon() <= lon + tolerance) {
+                return node.getId();
+            }
+        }
+        return 0;
+    }
+}
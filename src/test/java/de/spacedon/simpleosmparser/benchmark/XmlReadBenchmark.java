@@ -0,0 +1,70 @@
+package de.spacedon.simpleosmparser.benchmark;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.parser.OsmFileParser;
+import de.spacedon.simpleosmparser.parser.OsmHandler;
+
+import java.io.File;
+import java.io.IOException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Compares the StAX reader with the byte level scanner on an *.osm file,
+ * single-threaded and with the given number of threads. The elements are
+ * only counted, so the numbers show the parsing speed without the cost of
+ * storing. Small files are read repeatedly to get measurable times.
+ *
+ * @author Philipp Thöricht
+ */
+public class XmlReadBenchmark {
+
+    /**
+     * @param args [0]: the *.osm file, e.g. src/test/resources/apb-outdoor.osm
+     *             [1]: number of threads for the parallel runs, defaults to
+     *             the number of processors
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static void main(String[] args) throws IOException, XMLStreamException {
+        File file = new File(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        // about 256 MB of XML per measurement
+        int repeat = (int) Math.max(1, (256L << 20) / file.length());
+
+        for (int round = 0; round < 3; round++) {
+            for (int t : new int[]{1, threads}) {
+                for (boolean scanner : new boolean[]{false, true}) {
+                    OsmFileParser parser = new OsmFileParser();
+                    parser.setThreads(t);
+                    parser.setByteScanner(scanner);
+                    final long[] count = new long[1];
+                    OsmHandler handler = new OsmHandler() {
+                        @Override
+                        public void onNode(OSMNode node) {
+                            count[0]++;
+                        }
+
+                        @Override
+                        public void onWay(OSMWay way) {
+                            count[0]++;
+                        }
+
+                        @Override
+                        public void onRelation(OSMRelation relation) {
+                            count[0]++;
+                        }
+                    };
+                    long start = System.nanoTime();
+                    for (int i = 0; i < repeat; i++)
+                        parser.parseOsmFile(file, handler);
+                    long time = System.nanoTime() - start;
+                    System.out.printf("%-7s %2d threads: %6d ms, %5.2f M elements/s, %6.1f MB/s%n",
+                            scanner ? "scanner" : "StAX", t, time / 1000000, count[0] * 1000.0 / time,
+                            repeat * (double) file.length() * 1000 / time);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package de.spacedon.simpleosmparser.filter;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class TagFilterTest {
+
+    @Test
+    public void testMatching() {
+        OSMWay w = new OSMWay(1L);
+        w.setTag("highway", "residential");
+        w.setTag("name", "Hauptstra\u00dfe");
+        OSMNode n = new OSMNode(2L, 0, 0);
+
+        assertTrue(TagFilter.any().matches(n));
+        assertFalse(TagFilter.tagged().matches(n));
+        assertTrue(TagFilter.hasKey("highway").matches(w));
+        assertFalse(TagFilter.hasKey("highway").matches(n));
+        assertTrue(TagFilter.is("highway", "residential").matches(w));
+        assertFalse(TagFilter.is("highway", "primary").matches(w));
+        assertTrue(TagFilter.prefix("name", "Haupt").matches(w));
+        assertTrue(TagFilter.oneOf("highway", "primary", "residential").matches(w));
+        assertTrue(TagFilter.regex("highway", "res.*").matches(w));
+        assertFalse(TagFilter.regex("highway", "res").matches(w));
+
+        TagFilter roads = TagFilter.hasKey("highway").and(TagFilter.is("area", "yes").negate());
+        assertTrue(roads.matches(w));
+        w.setTag("area", "yes");
+        assertFalse(roads.matches(w));
+
+        assertTrue(TagFilter.allOf(TagFilter.tagged(), TagFilter.hasKey("name")).matches(w));
+        assertFalse(TagFilter.anyOf(TagFilter.hasKey("building"), TagFilter.tagged()).matches(n));
+        assertTrue(TagFilter.hasKey("building").or(TagFilter.tagged().negate()).matches(n));
+    }
+
+    @Test
+    public void testHasTag() {
+        OSMNode n = new OSMNode(1L, 0, 0);
+        n.setTag("amenity", "museum");
+        assertTrue(n.hasTag("amenity", "museum"));
+        assertFalse(n.hasTag("amenity", "muse"));
+        assertTrue(n.hasTag("amenity", "mus(eum|ic)"));
+        assertFalse(n.hasTag("name", ".*"));
+    }
+}
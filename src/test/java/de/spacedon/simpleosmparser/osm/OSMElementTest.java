@@ -0,0 +1,76 @@
+package de.spacedon.simpleosmparser.osm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class OSMElementTest {
+
+    @Test
+    public void testTags() {
+        OSMNode n = new OSMNode(1L, 0, 0);
+        assertFalse(n.hasTags());
+        assertTrue(n.getTags().isEmpty());
+
+        n.setTag("name", "Zwinger");
+        n.setTag("amenity", "museum");
+        n.setTag("building", "yes");
+        n.setTag("name", "ignored");
+        assertEquals(3, n.getTagCount());
+        assertEquals("amenity", n.getTagKey(0));
+        assertEquals("building", n.getTagKey(1));
+        assertEquals("Zwinger", n.getTagValue(2));
+        assertEquals("Zwinger", n.getTag("name"));
+        assertNull(n.getTag("highway"));
+        assertTrue(n.hasTag("amenity", "mus.*"));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("name", "Zwinger");
+        expected.put("amenity", "museum");
+        expected.put("building", "yes");
+        assertEquals(expected, n.getTags());
+
+        // the map view writes through
+        n.getTags().put("name", "Semperoper");
+        assertEquals("Semperoper", n.getTag("name"));
+        n.getTags().remove("building");
+        assertEquals("museum", n.removeTag("amenity"));
+        assertEquals(1, n.getTagCount());
+        assertEquals("Semperoper", n.removeTag("name"));
+        assertFalse(n.hasTags());
+
+        n.setTags(expected);
+        assertEquals(expected, n.getTags());
+    }
+
+    @Test
+    public void testTagViewIterators() {
+        OSMNode n = new OSMNode(1L, 0, 0);
+        n.setTag("amenity", "museum");
+        n.setTag("building", "yes");
+        n.setTag("name", "Zwinger");
+        n.setTag("tourism", "attraction");
+
+        n.getTags().keySet().removeIf(k -> k.startsWith("b"));
+        assertEquals(3, n.getTagCount());
+        assertNull(n.getTag("building"));
+        n.getTags().entrySet().removeIf(e -> e.getValue().equals("attraction"));
+        assertEquals(2, n.getTagCount());
+        n.getTags().keySet().retainAll(Collections.singleton("name"));
+        assertEquals(1, n.getTagCount());
+        assertEquals("Zwinger", n.getTag("name"));
+
+        n.setTag("amenity", "museum");
+        for (Map.Entry<String, String> e : n.getTags().entrySet())
+            e.setValue(e.getValue().toUpperCase());
+        assertEquals("MUSEUM", n.getTag("amenity"));
+        assertEquals("ZWINGER", n.getTag("name"));
+    }
+}
@@ -0,0 +1,44 @@
+package de.spacedon.simpleosmparser.osm;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class OSMWayTest {
+
+    @Test
+    public void testRefs() {
+        OSMWay w = new OSMWay(1L);
+        for (long ref = 1; ref <= 20; ref++)
+            w.addRefToEnd(ref);
+        assertEquals(20, w.getRefCount());
+        assertEquals(1L, w.getRef(0));
+        assertEquals(Long.valueOf(20L), w.getRefs().get(19));
+
+        w.addRef(100L, 1);
+        assertEquals(100L, w.getRef(0));
+        assertEquals(1L, w.getRef(1));
+        assertEquals(100L, w.delRef(0));
+
+        w.replaceRef(200L, 1);
+        assertArrayEquals(new long[]{1L, 200L, 3L}, Arrays.copyOf(w.getRefArray(), 3));
+        w.replaceRef(3L, 300L);
+        assertEquals(2, w.getRefs().indexOf(300L));
+        assertFalse(w.containsRef(3L));
+
+        w.getRefs().remove(0);
+        assertEquals(19, w.getRefCount());
+        assertEquals(200L, w.getRef(0));
+
+        final long[] sum = new long[1];
+        w.trimRefs();
+        w.forEachRef(ref -> sum[0] += ref);
+        // 200 + 300 + 4 + ... + 20
+        assertEquals(704L, sum[0]);
+    }
+}
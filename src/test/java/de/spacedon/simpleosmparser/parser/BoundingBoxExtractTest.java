@@ -0,0 +1,63 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static de.spacedon.simpleosmparser.parser.MultiPassTestSupport.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class BoundingBoxExtractTest {
+
+    @Test
+    public void testExtract() {
+        List<OSMElement> file = new ArrayList<>();
+        file.add(new OSMNode(1, 0.5, 0.5));
+        file.add(new OSMNode(2, 1.5, 0.5));
+        file.add(new OSMNode(3, 2.5, 0.5));
+        // on the border, so outside
+        file.add(new OSMNode(4, 1, 0.5));
+        file.add(way(10, 1, 2));
+        file.add(way(11, 2, 3));
+        file.add(way(12, 3, 4));
+        // the parent comes first, it is only found by a second relation pass
+        OSMRelation parent = new OSMRelation(20, null);
+        parent.addMember(OSMElement.RELATION, 21, "");
+        file.add(parent);
+        OSMRelation child = new OSMRelation(21, null);
+        child.addMember(OSMElement.WAY, 11, "");
+        file.add(child);
+        OSMRelation other = new OSMRelation(22, null);
+        other.addMember(OSMElement.NODE, 4, "");
+        other.addMember(OSMElement.WAY, 12, "");
+        file.add(other);
+
+        List<OSMElement> result = new ArrayList<>();
+        BoundingBoxExtract extract = new BoundingBoxExtract(1, 0, 2, 1, false, collector(result));
+        assertEquals(Arrays.asList(MultiPassHandler.NODES, MultiPassHandler.WAYS, MultiPassHandler.RELATIONS,
+                MultiPassHandler.RELATIONS), read(extract, file));
+        assertEquals(Arrays.asList(2L, 10L, 11L, 21L, 20L, -1L), ids(result));
+
+        result.clear();
+        extract = new BoundingBoxExtract(1, 0, 2, 1, true, collector(result));
+        assertEquals(Arrays.asList(MultiPassHandler.NODES, MultiPassHandler.WAYS, MultiPassHandler.NODES,
+                MultiPassHandler.RELATIONS, MultiPassHandler.RELATIONS), read(extract, file));
+        assertEquals(Arrays.asList(2L, 1L, 3L, 10L, 11L, 21L, 20L, -1L), ids(result));
+        assertEquals(5, extract.getPasses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBox() {
+        new BoundingBoxExtract(2, 0, 1, 1, false, new OsmHandler() {
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class MappedPbfReaderTest {
+    private static final File PBF = new File("./src/test/resources/apb-outdoor.pbf");
+
+    @Test
+    public void testRead() throws IOException {
+        PbfFileParser expected = new PbfFileParser();
+        expected.parsePbfFile(PBF);
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setMemoryMapped(true);
+        pfp.parsePbfFile(PBF);
+        assertEquals(expected.getNodes().size(), pfp.getNodes().size());
+        assertEquals(expected.getWays().size(), pfp.getWays().size());
+        assertEquals(expected.getRelations().size(), pfp.getRelations().size());
+        assertEquals(expected.getWay(117500191L).getRefs(), pfp.getWay(117500191L).getRefs());
+        assertEquals(expected.getNode(534887L).getLat(), pfp.getNode(534887L).getLat(), 1e-7);
+
+        int count = 0;
+        for (OsmIterator it = pfp.iterator(PBF); it.hasNext(); it.next())
+            count++;
+        assertEquals(expected.getNodes().size() + expected.getWays().size() + expected.getRelations().size(), count);
+    }
+
+    @Test
+    public void testBlobIndex() throws IOException {
+        try (MappedPbfReader reader = new MappedPbfReader(PBF, null)) {
+            assertTrue(reader.getBlobCount() >= 2);
+            assertTrue(reader.getBlobOffset(0) > 0);
+            for (int i = 1; i < reader.getBlobCount(); i++) {
+                assertTrue(reader.getBlobOffset(i) >= reader.getBlobOffset(i - 1) + reader.getBlobSize(i - 1));
+                assertEquals(MappedPbfReader.ALL, reader.getBlobContent(i));
+            }
+
+            final int[] counts = new int[3];
+            OsmHandler counter = new OsmHandler() {
+                @Override
+                public void onNode(OSMNode node) {
+                    counts[0]++;
+                }
+
+                @Override
+                public void onWay(OSMWay way) {
+                    counts[1]++;
+                }
+
+                @Override
+                public void onRelation(OSMRelation relation) {
+                    counts[2]++;
+                }
+            };
+            reader.read(counter);
+            int nodes = counts[0];
+            int ways = counts[1];
+            assertTrue(nodes > 0 && ways > 0);
+            boolean nodesOnly = false;
+            for (int i = 1; i < reader.getBlobCount(); i++)
+                nodesOnly |= reader.getBlobContent(i) == MappedPbfReader.NODES;
+
+            // second pass over the ways only
+            counts[0] = counts[1] = counts[2] = 0;
+            reader.read(counter, MappedPbfReader.WAYS);
+            assertEquals(0, counts[0]);
+            assertEquals(ways, counts[1]);
+            assertEquals(0, counts[2]);
+            assertTrue(nodesOnly || reader.getBlobCount() == 2);
+        }
+    }
+}
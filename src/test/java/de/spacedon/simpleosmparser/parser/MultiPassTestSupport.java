@@ -0,0 +1,87 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for the tests of MultiPassHandler implementations.
+ *
+ * @author Philipp Thöricht
+ */
+final class MultiPassTestSupport {
+
+    private MultiPassTestSupport() {
+    }
+
+    static OSMWay way(long id, long... refs) {
+        OSMWay w = new OSMWay(id);
+        for (long ref : refs)
+            w.addRefToEnd(ref);
+        return w;
+    }
+
+    /**
+     * Feeds the elements to the handler like a reader which doesn't skip
+     * anything.
+     *
+     * @return the passes
+     */
+    static List<Integer> read(MultiPassHandler handler, List<OSMElement> file) {
+        List<Integer> passes = new ArrayList<>();
+        int pass;
+        while ((pass = handler.nextPass()) != 0) {
+            passes.add(pass);
+            for (OSMElement ele : file)
+                handler.onElement(ele);
+            handler.onEnd();
+        }
+        return passes;
+    }
+
+    /**
+     * @return handler adding the elements to the list, onEnd() as null
+     */
+    static OsmHandler collector(List<OSMElement> result) {
+        return new OsmHandler() {
+            @Override
+            public void onElement(OSMElement ele) {
+                result.add(ele);
+            }
+
+            @Override
+            public void onNode(OSMNode node) {
+                this.onElement(node);
+            }
+
+            @Override
+            public void onWay(OSMWay way) {
+                this.onElement(way);
+            }
+
+            @Override
+            public void onRelation(OSMRelation relation) {
+                this.onElement(relation);
+            }
+
+            @Override
+            public void onEnd() {
+                result.add(null);
+            }
+        };
+    }
+
+    /**
+     * @return the ids, -1 for null
+     */
+    static List<Long> ids(List<OSMElement> elements) {
+        List<Long> ids = new ArrayList<>();
+        for (OSMElement ele : elements)
+            ids.add(ele == null ? -1L : ele.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,138 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class OsmChangeReaderTest {
+    private static final String CREATE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\" generator=\"test\">\n"
+            + "<create>\n"
+            + "  <node id=\"1\" version=\"1\" lat=\"50.1\" lon=\"8.1\"/>\n"
+            + "  <node id=\"2\" version=\"1\" lat=\"50.2\" lon=\"8.2\"/>\n"
+            + "  <node id=\"3\" version=\"2\" lat=\"50.3\" lon=\"8.3\"/>\n"
+            + "  <way id=\"10\" version=\"1\">\n"
+            + "    <nd ref=\"1\"/>\n"
+            + "    <nd ref=\"2\"/>\n"
+            + "    <tag k=\"highway\" v=\"path\"/>\n"
+            + "  </way>\n"
+            + "  <relation id=\"20\" version=\"1\">\n"
+            + "    <member type=\"node\" ref=\"3\" role=\"\"/>\n"
+            + "    <member type=\"way\" ref=\"10\" role=\"outer\"/>\n"
+            + "  </relation>\n"
+            + "</create>\n"
+            + "</osmChange>\n";
+
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\" generator=\"test\">\n"
+            + "<modify>\n"
+            + "  <node id=\"2\" version=\"2\" lat=\"51.2\" lon=\"9.2\"/>\n"
+            + "  <node id=\"3\" version=\"1\" lat=\"0\" lon=\"0\"/>\n"
+            + "  <way id=\"10\" version=\"2\">\n"
+            + "    <nd ref=\"2\"/>\n"
+            + "    <nd ref=\"3\"/>\n"
+            + "    <tag k=\"highway\" v=\"track\"/>\n"
+            + "  </way>\n"
+            + "</modify>\n"
+            + "<delete>\n"
+            + "  <node id=\"1\" version=\"2\" visible=\"false\"/>\n"
+            + "  <node id=\"99\" version=\"1\" visible=\"false\"/>\n"
+            + "</delete>\n"
+            + "<create>\n"
+            + "  <node id=\"4\" version=\"1\" lat=\"50.4\" lon=\"8.4\"/>\n"
+            + "</create>\n"
+            + "</osmChange>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testApply() throws XMLStreamException {
+        OsmFileParser parser = new OsmFileParser();
+        OsmChangeReader reader = new OsmChangeReader(parser);
+        ChangeStats stats = reader.apply(stream(CREATE));
+        assertEquals(5, stats.getCreated());
+        assertEquals(0, stats.getErrors());
+
+        OSMWay oldWay = parser.getWay(10);
+        OSMRelation relation = parser.getRelation(20);
+        assertSame(oldWay, parser.getNode(1).getBelongsTo().get(0));
+        assertSame(relation, parser.getNode(3).getBelongsTo().get(0));
+        assertSame(relation, oldWay.getBelongsTo().get(0));
+        // builds the indexes, the changes have to keep them up to date
+        assertEquals(1, parser.referenceIndex().getWays(1).length);
+        assertEquals(2, parser.sameNode(50.2, 8.2));
+
+        stats = reader.apply(stream(CHANGE));
+        assertEquals(1, stats.getCreated());
+        assertEquals(2, stats.getModified());
+        assertEquals(1, stats.getDeleted());
+        assertEquals(2, stats.getSkipped());
+        assertEquals(6, stats.getElements());
+        assertTrue(stats.getNanos() > 0);
+
+        assertNull(parser.getNode(1));
+        assertEquals(2, parser.getNode(3).getVersion());
+        assertEquals(50.3, parser.getNode(3).getLat(), 0);
+        assertNotNull(parser.getNode(4));
+        assertEquals(2, parser.sameNode(51.2, 9.2));
+        assertEquals(0, parser.sameNode(50.2, 8.2));
+        assertEquals(0, parser.referenceIndex().getWays(1).length);
+        assertArrayEquals(new long[]{10}, parser.referenceIndex().getWays(3));
+
+        OSMWay way = parser.getWay(10);
+        assertNotSame(oldWay, way);
+        assertEquals("track", way.getTag("highway"));
+        OSMNode n2 = parser.getNode(2);
+        assertEquals(1, n2.getBelongsToCount());
+        assertSame(way, n2.getBelongsTo().get(0));
+        OSMNode n3 = parser.getNode(3);
+        assertEquals(2, n3.getBelongsToCount());
+        assertTrue(n3.getBelongsTo().contains(relation));
+        assertTrue(n3.getBelongsTo().contains(way));
+        // the relation still has the way as member and is linked to the new one
+        assertEquals(1, way.getBelongsToCount());
+        assertSame(relation, way.getBelongsTo().get(0));
+        for (OSMElement member : new OSMElement[]{n2, n3, way})
+            assertFalse(member.getBelongsTo().contains(oldWay));
+    }
+
+    @Test
+    public void testGzip() throws IOException, XMLStreamException {
+        File file = this.tmp.newFile("change.osc.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(CREATE.getBytes(StandardCharsets.UTF_8));
+        }
+        OsmFileParser parser = new OsmFileParser();
+        parser.setReverseLinks(false);
+        ChangeStats stats = parser.applyChange(file);
+        assertEquals(5, stats.getCreated());
+        assertEquals(3, parser.getNodes().size());
+        assertEquals(0, parser.getNode(1).getBelongsToCount());
+        assertTrue(stats.toString().startsWith("ChangeStats[created=5"));
+    }
+}
@@ -1,20 +1,36 @@
 package de.spacedon.simpleosmparser.parser;
 
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
 import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.stream.XMLStreamException;
 
 import static org.junit.Assert.*;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * @author Philipp Thöricht
  */
 public class OsmFileParserTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void testParsing() throws IOException, XMLStreamException {
         OsmFileParser sop = new OsmFileParser();
@@ -54,4 +70,237 @@ public class OsmFileParserTest {
         assertTrue(sop1.getNode(2).getId() == 2);
         assertTrue(sop2.getNode(2).getId() == 2);
     }
+
+    @Test
+    public void testCompactNodes() throws IOException, XMLStreamException {
+        OsmFileParser sop = new OsmFileParser();
+        sop.setCompactNodes(true);
+        sop.parseOsmFile(new File("./src/test/resources/map1.osm"));
+
+        CompactNodeStore store = (CompactNodeStore) sop.getNodes();
+        assertFalse(store.isCompact(-95758));
+        assertTrue(sop.getNode(-95758).hasTag("entrance", "yes"));
+        assertTrue(store.isCompact(-95764));
+        assertEquals(44.5005911, sop.getNode(-95764).getLat(), 1e-7);
+        assertEquals(11.3056216, sop.getNode(-95764).getLon(), 1e-7);
+        assertTrue(sop.getWay(-95761).getRefs().contains(-95764L));
+
+        sop.setCompactNodes(false);
+        assertFalse(sop.getNodes() instanceof CompactNodeStore);
+        assertEquals(44.5005911, sop.getNode(-95764).getLat(), 1e-7);
+    }
+
+    @Test
+    public void testElementFilter() throws IOException, XMLStreamException {
+        OsmFileParser sop = new OsmFileParser();
+        sop.setElementFilter(TagFilter.hasKey("highway").or(TagFilter.is("entrance", "yes")));
+        sop.parseOsmFile(new File("./src/test/resources/map1.osm"));
+
+        assertEquals(2, sop.getNodes().size());
+        assertEquals(2, sop.getWays().size());
+        assertTrue(sop.getNode(-95758).hasTag("entrance", "yes"));
+        // refs to dropped nodes remain
+        assertNull(sop.getNode(-95764));
+        assertTrue(sop.getWay(-95761).getRefs().contains(-95764L));
+
+        sop = new OsmFileParser();
+        sop.setCompactNodes(true);
+        sop.parseOsmFile(new File("./src/test/resources/map1.osm"));
+        assertEquals(2, sop.findNodes(TagFilter.is("entrance", "yes")).size());
+        assertEquals(2, sop.findWays(TagFilter.is("highway", "footway")).size());
+        assertTrue(sop.findRelations(TagFilter.any()).isEmpty());
+        assertEquals(sop.getNodes().size(), sop.findNodes(TagFilter.any()).size());
+    }
+
+    @Test
+    public void testHandler() throws IOException, XMLStreamException {
+        final List<Long> ids = new ArrayList<>();
+        OsmFileParser sop = new OsmFileParser();
+        long errors = sop.parseOsmFile(new File("./src/test/resources/map1.osm"), new OsmHandler() {
+            @Override
+            public void onNode(OSMNode node) {
+                if (node.hasTag("entrance", "yes"))
+                    ids.add(node.getId());
+            }
+
+            @Override
+            public void onEnd() {
+                ids.add(0L);
+            }
+        });
+
+        assertEquals(0, errors);
+        assertTrue(sop.isEmpty());
+        assertEquals(3, ids.size());
+        assertTrue(ids.contains(-95758L));
+        assertEquals(0L, ids.get(2).longValue());
+    }
+
+    @Test
+    public void testIterator() throws IOException, XMLStreamException {
+        OsmFileParser sop = new OsmFileParser();
+        File file = new File("./src/test/resources/map1.osm");
+        List<OSMElement> elements = new ArrayList<>();
+        OsmIterator it = sop.iterator(file);
+        it.forEachRemaining(elements::add);
+        assertEquals(16, elements.size());
+        assertTrue(elements.get(0) instanceof OSMNode);
+        assertTrue(sop.isEmpty());
+
+        try (Stream<OSMElement> stream = sop.stream(file)) {
+            assertEquals(2, stream.filter(TagFilter.is("entrance", "yes")::matches).count());
+        }
+
+        it = sop.iterator(file);
+        assertTrue(it.hasNext());
+        it.close();
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testParallel() throws IOException, XMLStreamException {
+        File file = new File("./src/test/resources/apb-outdoor.osm");
+        List<OSMElement> expected = new ArrayList<>();
+        new OsmFileParser().iterator(file).forEachRemaining(expected::add);
+
+        // small chunks, so the file is cut in many places
+        ParallelXmlReader reader = new ParallelXmlReader(4, null);
+        reader.setChunkSize(4096);
+        List<OSMElement> actual = new ArrayList<>();
+        long errors = reader.read(file, new OsmHandler() {
+            @Override
+            public void onElement(OSMElement ele) {
+                actual.add(ele);
+            }
+        });
+        assertEquals(0, errors);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getTags(), actual.get(i).getTags());
+        }
+
+        OsmFileParser single = new OsmFileParser();
+        single.parseOsmFile(file);
+        OsmFileParser sop = new OsmFileParser();
+        reader.read(file, sop.storeHandler());
+        assertEquals(single.getNodes().size(), sop.getNodes().size());
+        assertEquals(single.getWays().size(), sop.getWays().size());
+        assertEquals(single.getRelations().size(), sop.getRelations().size());
+        for (OSMNode n : single.getNodes().values())
+            assertEquals(n.getBelongsTo().size(), sop.getNode(n.getId()).getBelongsTo().size());
+
+        sop = new OsmFileParser();
+        sop.setThreads(2);
+        assertEquals(0, sop.parseOsmFile(file));
+        assertEquals(single.getWays().size(), sop.getWays().size());
+    }
+
+    @Test
+    public void testByteScanner() throws IOException, XMLStreamException {
+        File file = new File("./src/test/resources/apb-outdoor.osm");
+        OsmFileParser stax = new OsmFileParser();
+        stax.parseOsmFile(file);
+        OsmFileParser sop = new OsmFileParser();
+        sop.setByteScanner(true);
+        assertEquals(0, sop.parseOsmFile(file));
+        assertEquals(stax.getNodes().size(), sop.getNodes().size());
+        assertEquals(stax.getWays().size(), sop.getWays().size());
+        assertEquals(stax.getRelations().size(), sop.getRelations().size());
+        assertEquals(stax.getWay(117500191L).getRefs(), sop.getWay(117500191L).getRefs());
+        assertEquals(stax.getNode(295678631L).getBelongsTo().size(), sop.getNode(295678631L).getBelongsTo().size());
+
+        try (Stream<OSMElement> stream = sop.stream(file)) {
+            assertEquals(stax.getNodes().size(), stream.filter(ele -> ele instanceof OSMNode).count());
+        }
+
+        ParallelXmlReader reader = new ParallelXmlReader(3, null);
+        reader.setChunkSize(4096);
+        reader.setByteScanner(true);
+        sop = new OsmFileParser();
+        reader.read(file, sop.storeHandler());
+        assertEquals(stax.getNodes().size(), sop.getNodes().size());
+        assertEquals(stax.getRelations().size(), sop.getRelations().size());
+        assertEquals(stax.getWay(117500191L).getRefs(), sop.getWay(117500191L).getRefs());
+    }
+
+    @Test
+    public void testCompressed() throws IOException, XMLStreamException {
+        File file = new File("./src/test/resources/apb-outdoor.osm");
+        OsmFileParser plain = new OsmFileParser();
+        plain.parseOsmFile(file);
+
+        File gz = tmp.newFile("apb-outdoor.osm.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            Files.copy(file.toPath(), out);
+        }
+        File bz2 = tmp.newFile("apb-outdoor.osm.bz2");
+        try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2), 1)) {
+            Files.copy(file.toPath(), out);
+        }
+        for (File f : new File[]{gz, bz2}) {
+            for (int threads : new int[]{1, 3}) {
+                OsmFileParser sop = new OsmFileParser();
+                sop.setThreads(threads);
+                assertEquals(0, sop.parseOsmFile(f));
+                assertEquals(plain.getNodes().size(), sop.getNodes().size());
+                assertEquals(plain.getWays().size(), sop.getWays().size());
+                assertEquals(plain.getRelations().size(), sop.getRelations().size());
+                assertEquals(plain.getWay(117500191L).getRefs(), sop.getWay(117500191L).getRefs());
+            }
+        }
+        OsmFileParser sop = new OsmFileParser();
+        sop.setByteScanner(true);
+        try (Stream<OSMElement> stream = sop.stream(bz2)) {
+            assertEquals(plain.getNodes().size(), stream.filter(ele -> ele instanceof OSMNode).count());
+        }
+    }
+
+    @Test
+    public void testReferenceClosure() throws IOException, XMLStreamException {
+        File file = new File("./src/test/resources/apb-outdoor.osm");
+        PbfFileParser pbf = new PbfFileParser();
+        pbf.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"), TagFilter.hasKey("highway"),
+                ReferenceClosure.WAYS | ReferenceClosure.RELATIONS);
+        for (int threads : new int[]{1, 2}) {
+            OsmFileParser sop = new OsmFileParser();
+            sop.setThreads(threads);
+            assertEquals(0, sop.parseOsmFile(file, TagFilter.hasKey("highway"),
+                    ReferenceClosure.WAYS | ReferenceClosure.RELATIONS));
+            assertEquals(pbf.getNodes().size(), sop.getNodes().size());
+            assertEquals(pbf.getWays().size(), sop.getWays().size());
+            assertEquals(pbf.getRelations().size(), sop.getRelations().size());
+            for (OSMWay w : pbf.getWays().values())
+                assertEquals(w.getRefs(), sop.getWay(w.getId()).getRefs());
+        }
+    }
+
+    @Test
+    public void testExtract() throws IOException, XMLStreamException {
+        PbfFileParser pbf = new PbfFileParser();
+        pbf.extractPbfFile(new File("./src/test/resources/apb-outdoor.pbf"), 51.0245, 13.7215, 51.0266, 13.723, true);
+        OsmFileParser sop = new OsmFileParser();
+        assertEquals(0, sop.extractOsmFile(new File("./src/test/resources/apb-outdoor.osm"),
+                51.0245, 13.7215, 51.0266, 13.723, true));
+        assertEquals(pbf.getNodes().size(), sop.getNodes().size());
+        assertEquals(pbf.getWays().size(), sop.getWays().size());
+        assertEquals(pbf.getRelations().size(), sop.getRelations().size());
+    }
+
+    @Test
+    public void testWriteOsmFile() throws IOException, XMLStreamException {
+        OsmFileParser expected = new OsmFileParser();
+        expected.parseOsmFile(new File("./src/test/resources/apb-outdoor.osm"));
+        String[] names = {"out.osm", "out.osm.gz", "out.osm.bz2"};
+        for (int threads = 1; threads <= 3; threads += 2) {
+            for (String name : names) {
+                File out = new File(this.tmp.getRoot(), threads + "-" + name);
+                expected.writeOsmFile(out, threads);
+                OsmFileParser actual = new OsmFileParser();
+                assertEquals(0, actual.parseOsmFile(out));
+                PbfFileParserTest.assertSameElements(expected, actual);
+            }
+        }
+    }
 }
@@ -28,6 +28,35 @@ public class OsmParserTest {
         assertEquals(1, op.samePos(2, n2.getLat(), n2.getLon(), 0));
     }
 
+    @Test
+    public void testSamePosWithIndex() {
+        OsmParser op = new OsmFileParser();
+        op.setSpatialCellSize(0.5);
+        op.putNode(new OSMNode(1, 1.0, 1.0));
+        op.putNode(new OSMNode(2, 10.0, 10.0));
+
+        assertEquals(0, op.samePos(3, 1.2, 1.2, 0.1));
+        assertEquals(1, op.samePos(3, 1.2, 1.2, 0.2));
+        long any = op.samePos(3, 0.0, 0.0, 20.0);
+        assertTrue(any == 1 || any == 2);
+        assertEquals(2, op.samePos(1, 0.0, 0.0, 20.0));
+        assertEquals(2, op.sameNode(10.0, 10.0));
+
+        // moved across cells
+        op.putNode(new OSMNode(1, 5.0, 5.0));
+        assertEquals(0, op.samePos(3, 1.2, 1.2, 0.2));
+        assertEquals(1, op.sameNode(5.0, 5.0));
+
+        // changes made directly in the store are picked up, too
+        op.nodes.put(4L, new OSMNode(4, -3.0, -3.0));
+        assertEquals(4, op.sameNode(-3.0, -3.0));
+        op.nodes.remove(4L);
+        assertEquals(0, op.sameNode(-3.0, -3.0));
+
+        op.replaceNode(2, new OSMNode(5, 10.0, 10.0));
+        assertEquals(5, op.sameNode(10.0, 10.0));
+    }
+
     @Test
     public void testSamePathway() {
         OsmParser op = new OsmFileParser();
@@ -291,6 +320,40 @@ public class OsmParserTest {
         assertArrayEquals(new Long[]{2L}, otp.relations.get(1L).getMembersByElementType(OSMElement.NODE).keySet().toArray());
     }
 
+    @Test
+    public void testReplaceNodeRefs() {
+        OsmTestParser otp = new OsmTestParser();
+        for (long id = 1; id <= 4; id++)
+            otp.putNode(new OSMNode(id, id, id));
+        OSMWay closed = new OSMWay(1L);
+        closed.addRefToEnd(1);
+        closed.addRefToEnd(2);
+        closed.addRefToEnd(3);
+        closed.addRefToEnd(1);
+        otp.putWay(closed);
+        OSMWay other = new OSMWay(2L);
+        other.addRefToEnd(3);
+        other.addRefToEnd(4);
+        // stored directly, has to be picked up by the index anyway
+        otp.ways.put(other.getId(), other);
+        OSMRelation r = new OSMRelation(1L, "");
+        r.addMember(OSMElement.NODE, 1L, "stop");
+        otp.putRelation(r);
+
+        otp.replaceNode(1L, new OSMNode(5L, 1, 1));
+        assertArrayEquals(new Long[]{5L, 2L, 3L, 5L}, otp.ways.get(1L).getRefs().toArray());
+        assertEquals("stop", otp.relations.get(1L).getMembersByElementType(OSMElement.NODE).get(5L));
+
+        otp.replaceNodeRefs(3L, 6L);
+        assertArrayEquals(new Long[]{5L, 2L, 6L, 5L}, otp.ways.get(1L).getRefs().toArray());
+        assertArrayEquals(new Long[]{6L, 4L}, otp.ways.get(2L).getRefs().toArray());
+
+        // the index followed the first replacement
+        otp.replaceNodeRefs(5L, 7L);
+        assertArrayEquals(new Long[]{7L, 2L, 6L, 7L}, otp.ways.get(1L).getRefs().toArray());
+        assertTrue(otp.relations.get(1L).hasMember(7L, OSMElement.NODE));
+    }
+
     private class OsmTestParser extends OsmParser {
 
         public OsmTestParser() {
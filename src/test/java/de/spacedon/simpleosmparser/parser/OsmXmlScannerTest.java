@@ -0,0 +1,124 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class OsmXmlScannerTest {
+    @Test
+    public void testSameAsStax() throws IOException, XMLStreamException {
+        for (String name : new String[]{"apb-outdoor.osm", "map1.osm", "map2.osm"}) {
+            File file = new File("./src/test/resources/" + name);
+            List<OSMElement> expected = new ArrayList<>();
+            List<OSMElement> actual = new ArrayList<>();
+            try (InputStream in = new FileInputStream(file)) {
+                readAll(new OsmXmlReader(in, null), expected);
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                readAll(new OsmXmlScanner(in, null), actual);
+            }
+            assertEquals(name, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++)
+                assertSameElement(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testSyntax() throws IOException {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<!-- a > comment -->\n"
+                + "<osm version=\"0.6\">\n"
+                + "  <bounds minlat='1' />\n"
+                + "  <node id='-1' lat='1.5' lon=\"-2.25\" version='3' visible='TRUE'>"
+                + "<tag k='name' v='A &amp; B &lt;&#65;&#x42;&gt; &quot;x&apos;'/>"
+                + "<tag k=\"note\" v=\"a>b\tc\"></tag></node>\n"
+                + "  <node id='2' lat='1' />\n"
+                + "  <way id='5'><nd ref='-1'/><unknown><nested/></unknown><nd ref='7' /></way>\n"
+                + "  <relation id='9' user='Zo\u00eb'><member type='way' ref='5' role='outer'/>"
+                + "<member type='area' ref='1' role=''/></relation>\n"
+                + "</osm>";
+        OsmXmlScanner scanner = new OsmXmlScanner(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), null);
+        List<OSMElement> elements = new ArrayList<>();
+        readAll(scanner, elements);
+        assertEquals(3, elements.size());
+        assertEquals(1, scanner.getErrorCount());
+
+        OSMNode n = (OSMNode) elements.get(0);
+        assertEquals(-1, n.getId());
+        assertEquals(1.5, n.getLat(), 0);
+        assertEquals(-2.25, n.getLon(), 0);
+        assertEquals(3, n.getVersion());
+        assertTrue(n.isVisible());
+        assertEquals("A & B <AB> \"x'", n.getTag("name"));
+        assertEquals("a>b c", n.getTag("note"));
+
+        OSMWay w = (OSMWay) elements.get(1);
+        assertEquals(2, w.getRefCount());
+        assertEquals(7, w.getRef(1));
+
+        OSMRelation r = (OSMRelation) elements.get(2);
+        assertEquals("Zo\u00eb", r.getUser());
+        assertEquals(1, r.getMembersByElementType(OSMElement.WAY).size());
+    }
+
+    @Test
+    public void testBrokenEntity() {
+        for (String value : new String[]{"&bogus;", "&#xZZ;", "&#99999999;", "a &amp b"}) {
+            String xml = "<osm><node id='1' lat='1' lon='2'><tag k='a' v='" + value + "'/></node></osm>";
+            OsmXmlScanner scanner = new OsmXmlScanner(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), null);
+            try {
+                scanner.read();
+                fail("no exception for " + value);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith(" in tag"));
+            }
+        }
+    }
+
+    private static void readAll(ElementReader reader, List<OSMElement> elements) throws IOException {
+        try {
+            OSMElement ele;
+            while ((ele = reader.read()) != null)
+                elements.add(ele);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void assertSameElement(OSMElement e, OSMElement a) {
+        assertEquals(e.getClass(), a.getClass());
+        assertEquals(e.getId(), a.getId());
+        assertEquals(e.getVersion(), a.getVersion());
+        assertEquals(e.isVisible(), a.isVisible());
+        assertEquals(e.getUser(), a.getUser());
+        assertEquals(e.getTags(), a.getTags());
+        if (e instanceof OSMNode) {
+            assertEquals(((OSMNode) e).getLat(), ((OSMNode) a).getLat(), 0);
+            assertEquals(((OSMNode) e).getLon(), ((OSMNode) a).getLon(), 0);
+        } else if (e instanceof OSMWay) {
+            assertEquals(((OSMWay) e).getRefs(), ((OSMWay) a).getRefs());
+        } else {
+            OSMRelation r = (OSMRelation) e;
+            for (int type : new int[]{OSMElement.NODE, OSMElement.WAY, OSMElement.RELATION})
+                assertEquals(r.getMembersByElementType(type), ((OSMRelation) a).getMembersByElementType(type));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class OsmXmlWriterTest {
+
+    @Test
+    public void testFormatting() {
+        assertEquals("51.0245", format(new OsmXmlWriter.XmlBuffer(4).coordinate(51.0245)));
+        assertEquals("-0.0000001", format(new OsmXmlWriter.XmlBuffer(4).coordinate(-1e-7)));
+        assertEquals("13", format(new OsmXmlWriter.XmlBuffer(4).coordinate(13.00000001)));
+        assertEquals("-9223372036854775808", format(new OsmXmlWriter.XmlBuffer(4).number(Long.MIN_VALUE)));
+        assertEquals("1970-01-01T00:00:00Z", format(new OsmXmlWriter.XmlBuffer(4).timestamp(0)));
+        assertEquals("2016-02-29T23:59:59Z", format(new OsmXmlWriter.XmlBuffer(4).timestamp(1456790399999L)));
+        assertEquals("1969-12-31T23:59:59Z", format(new OsmXmlWriter.XmlBuffer(4).timestamp(-1)));
+        assertEquals(" v=\"a&amp;b&lt;&quot;&#10;\u00e4\u20ac\ud83d\ude00\"",
+                format(new OsmXmlWriter.XmlBuffer(4).attribute("v", "a&b<\"\n\u00e4\u20ac\ud83d\ude00\u0001")));
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        List<OSMElement> elements = new ArrayList<>();
+        for (int i = 1; i <= 500; i++) {
+            OSMNode n = new OSMNode(i, i / 100.0, -i / 100.0);
+            n.setTimestamp(new Date(1000L * i));
+            if (i % 7 == 0)
+                n.setTag("name", "n\u00f6de " + i);
+            elements.add(n);
+        }
+        OSMWay w = new OSMWay(1);
+        w.addRefToEnd(1);
+        w.addRefToEnd(2);
+        elements.add(w);
+        OSMRelation r = new OSMRelation(1, "");
+        r.addMember(OSMElement.WAY, 1, "outer");
+        elements.add(r);
+
+        byte[] plain = write(elements, 1, false);
+        assertArrayEquals(plain, write(elements, 3, false));
+        assertArrayEquals(plain, gunzip(write(elements, 3, true)));
+        String xml = new String(plain, StandardCharsets.UTF_8);
+        assertTrue(xml.contains("<node id=\"7\" timestamp=\"1970-01-01T00:00:07Z\" version=\"0\" lat=\"0.07\" lon=\"-0.07\">"));
+        assertTrue(xml.contains("<member type=\"way\" ref=\"1\" role=\"outer\"/>"));
+        assertTrue(xml.endsWith("</osm>\n"));
+    }
+
+    private static byte[] write(List<OSMElement> elements, int threads, boolean gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OsmXmlWriter writer = new OsmXmlWriter(out, threads)) {
+            writer.setChunkSize(64);
+            writer.setGzip(gzip);
+            for (OSMElement ele : elements)
+                writer.write(ele);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String format(OsmXmlWriter.XmlBuffer buffer) {
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
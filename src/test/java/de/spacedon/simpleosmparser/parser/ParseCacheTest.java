@@ -0,0 +1,144 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class ParseCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testHitAndMiss() throws IOException, XMLStreamException {
+        ParseCache cache = new ParseCache(this.tmp.newFolder("cache"), 1L << 30);
+        File pbf = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser expected = new PbfFileParser();
+        expected.setParseCache(cache);
+        expected.parsePbfFile(pbf);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getStores());
+
+        PbfFileParser actual = new PbfFileParser();
+        actual.setParseCache(cache);
+        actual.parsePbfFile(pbf);
+        assertEquals(1, cache.getHits());
+        PbfFileParserTest.assertSameElements(expected, actual);
+
+        // not empty any more, so parsed and not cached
+        actual.parsePbfFile(pbf);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        File osm = new File("./src/test/resources/apb-outdoor.osm");
+        OsmFileParser xml = new OsmFileParser();
+        xml.setParseCache(cache);
+        assertEquals(0, xml.parseOsmFile(osm));
+        OsmFileParser cached = new OsmFileParser();
+        cached.setParseCache(cache);
+        assertEquals(0, cached.parseOsmFile(osm));
+        assertEquals(2, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        PbfFileParserTest.assertSameElements(xml, cached);
+
+        OsmFileParser filtered = new OsmFileParser();
+        filtered.setParseCache(cache);
+        filtered.setElementFilter(TagFilter.hasKey("highway"));
+        filtered.parseOsmFile(osm);
+        assertEquals(4, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    public void testCompactNodes() throws IOException {
+        ParseCache cache = new ParseCache(this.tmp.newFolder("cache"), 1L << 30);
+        File pbf = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser compact = new PbfFileParser();
+        compact.setCompactNodes(true);
+        compact.setParseCache(cache);
+        compact.parsePbfFile(pbf);
+        assertEquals(0, cache.getStores());
+
+        // gets the complete nodes, not the degraded ones of compact mode
+        PbfFileParser expected = new PbfFileParser();
+        expected.parsePbfFile(pbf);
+        PbfFileParser normal = new PbfFileParser();
+        normal.setParseCache(cache);
+        normal.parsePbfFile(pbf);
+        assertEquals(0, cache.getHits());
+        PbfFileParser cached = new PbfFileParser();
+        cached.setParseCache(cache);
+        cached.parsePbfFile(pbf);
+        assertEquals(1, cache.getHits());
+        PbfFileParserTest.assertSameElements(expected, cached);
+        for (OSMNode n : expected.getNodes().values())
+            assertEquals(n.getBelongsToCount(), cached.getNode(n.getId()).getBelongsToCount());
+
+        // and a compact parser keeps its compact store
+        compact = new PbfFileParser();
+        compact.setCompactNodes(true);
+        compact.setParseCache(cache);
+        compact.parsePbfFile(pbf);
+        assertEquals(1, cache.getHits());
+        assertTrue(compact.getNodes() instanceof CompactNodeStore);
+    }
+
+    @Test
+    public void testEviction() throws IOException, XMLStreamException {
+        File dir = this.tmp.newFolder("cache");
+        File pbf = new File("./src/test/resources/apb-outdoor.pbf");
+        File osm = new File("./src/test/resources/map1.osm");
+        ParseCache cache = new ParseCache(dir, Long.MAX_VALUE);
+        PbfFileParser parser = new PbfFileParser();
+        parser.setParseCache(cache);
+        parser.parsePbfFile(pbf);
+        long pbfSize = cache.getSize();
+        assertTrue(pbfSize > 0);
+
+        // room for the small entry only, the older big one goes
+        cache = new ParseCache(dir, pbfSize);
+        OsmFileParser xml = new OsmFileParser();
+        xml.setParseCache(cache);
+        xml.parseOsmFile(osm);
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getSize() <= pbfSize);
+        assertNotNull(cache.lookup(cache.fingerprint(osm)));
+        assertNull(cache.lookup(cache.fingerprint(pbf)));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testFingerprint() throws IOException {
+        ParseCache cache = new ParseCache(this.tmp.newFolder("cache"), 1L << 30);
+        File original = new File("./src/test/resources/apb-outdoor.osm");
+        File copy = this.tmp.newFile("copy.osm");
+        Files.copy(original.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        copy.setLastModified(original.lastModified());
+        assertEquals(cache.fingerprint(original), cache.fingerprint(copy));
+
+        // a change in the last block, which is always sampled
+        try (RandomAccessFile raf = new RandomAccessFile(copy, "rw")) {
+            raf.seek(raf.length() - 2);
+            raf.write(' ');
+        }
+        copy.setLastModified(original.lastModified());
+        assertNotEquals(cache.fingerprint(original), cache.fingerprint(copy));
+    }
+}
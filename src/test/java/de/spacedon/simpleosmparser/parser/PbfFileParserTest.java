@@ -1,18 +1,41 @@
 package de.spacedon.simpleosmparser.parser;
 
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
 import de.spacedon.simpleosmparser.osm.OSMWay;
+import de.spacedon.simpleosmparser.store.CompactNodeStore;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * @author Philipp Thöricht
  */
 public class PbfFileParserTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void testReadPbfFile() throws FileNotFoundException {
         PbfFileParser pfp = new PbfFileParser();
@@ -32,4 +55,496 @@ public class PbfFileParserTest {
         assertEquals(295678631, w.getRefs().get(0).longValue());
         assertEquals(500061407, w.getRefs().get(1).longValue());
     }
+
+    @Test
+    public void testCompactNodes() throws FileNotFoundException {
+        PbfFileParser full = new PbfFileParser();
+        full.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setCompactNodes(true);
+        pfp.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+
+        assertEquals(full.getNodes().size(), pfp.getNodes().size());
+        CompactNodeStore store = (CompactNodeStore) pfp.getNodes();
+        assertTrue(store.compactSize() > 0);
+        for (OSMNode n : full.getNodes().values()) {
+            OSMNode c = pfp.getNode(n.getId());
+            assertEquals(n.getLat(), c.getLat(), 1e-7);
+            assertEquals(n.getLon(), c.getLon(), 1e-7);
+            assertEquals(n.getTags(), c.getTags());
+            assertEquals(n.getTags().isEmpty(), store.isCompact(n.getId()));
+        }
+    }
+
+    @Test
+    public void testStringDictionary() throws FileNotFoundException {
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+
+        assertTrue(pfp.getStringDictionary().getHits() > 0);
+        String highway = null;
+        for (OSMWay w : pfp.getWays().values()) {
+            for (String key : w.getTags().keySet()) {
+                if (!"highway".equals(key))
+                    continue;
+                if (highway == null)
+                    highway = key;
+                assertSame(highway, key);
+            }
+        }
+        assertNotNull(highway);
+
+        pfp = new PbfFileParser();
+        pfp.setStringDictionary(null);
+        pfp.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+        assertTrue(pfp.nodes.containsKey(534887L));
+    }
+
+    @Test
+    public void testHandler() throws FileNotFoundException {
+        PbfFileParser full = new PbfFileParser();
+        full.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+
+        final long[] counts = new long[4];
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"), new OsmHandler() {
+            @Override
+            public void onNode(OSMNode node) {
+                counts[0]++;
+            }
+
+            @Override
+            public void onWay(OSMWay way) {
+                counts[1]++;
+            }
+
+            @Override
+            public void onRelation(OSMRelation relation) {
+                counts[2]++;
+            }
+
+            @Override
+            public void onEnd() {
+                counts[3]++;
+            }
+        });
+
+        assertTrue(pfp.isEmpty());
+        assertEquals(full.getNodes().size(), counts[0]);
+        assertEquals(full.getWays().size(), counts[1]);
+        assertEquals(full.getRelations().size(), counts[2]);
+        assertEquals(1, counts[3]);
+        // ways are linked to their nodes
+        long ref = full.getWay(117500191L).getRef(0);
+        assertTrue(full.getNode(ref).getBelongsTo().contains(full.getWay(117500191L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHandlerException() throws FileNotFoundException {
+        new PbfFileParser().parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"), new OsmHandler() {
+            @Override
+            public void onWay(OSMWay way) {
+                throw new IllegalArgumentException();
+            }
+        });
+    }
+
+    @Test
+    public void testIterator() throws FileNotFoundException {
+        PbfFileParser full = new PbfFileParser();
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        full.parsePbfFile(file);
+
+        int count = 0;
+        OsmIterator it = full.iterator(file);
+        while (it.hasNext()) {
+            OSMElement ele = it.next();
+            assertNotNull(ele);
+            count++;
+        }
+        assertFalse(it.hasNext());
+        assertEquals(full.getNodes().size() + full.getWays().size() + full.getRelations().size(), count);
+
+        try (Stream<OSMElement> stream = full.stream(file)) {
+            List<Long> ids = stream.filter(e -> e instanceof OSMWay)
+                    .map(OSMElement::getId)
+                    .limit(3)
+                    .collect(Collectors.toList());
+            assertEquals(3, ids.size());
+            assertNotNull(full.getWay(ids.get(0)));
+        }
+    }
+
+    @Test
+    public void testParallel() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser single = new PbfFileParser();
+        List<OSMElement> expected = new ArrayList<>();
+        single.iterator(file).forEachRemaining(expected::add);
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setThreads(4);
+        List<OSMElement> actual = new ArrayList<>();
+        pfp.parsePbfFile(file, new OsmHandler() {
+            @Override
+            public void onNode(OSMNode node) {
+                actual.add(node);
+            }
+
+            @Override
+            public void onWay(OSMWay way) {
+                actual.add(way);
+            }
+
+            @Override
+            public void onRelation(OSMRelation relation) {
+                actual.add(relation);
+            }
+        });
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+        }
+
+        pfp.parsePbfFile(file);
+        single.parsePbfFile(file);
+        assertEquals(single.getNodes().size(), pfp.getNodes().size());
+        assertEquals(single.getWays().size(), pfp.getWays().size());
+        assertEquals(single.getWay(117500191L).getRefs(), pfp.getWay(117500191L).getRefs());
+        assertEquals(single.getNode(534887L).getTags(), pfp.getNode(534887L).getTags());
+
+        pfp = new PbfFileParser();
+        pfp.setThreads(3);
+        pfp.setOrdered(false);
+        try (Stream<OSMElement> stream = pfp.stream(file)) {
+            assertEquals(expected.size(), stream.count());
+        }
+    }
+
+    @Test
+    public void testPipeline() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        List<OSMElement> expected = new ArrayList<>();
+        new PbfFileParser().iterator(file).forEachRemaining(expected::add);
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setPipeline(3);
+        List<OSMElement> actual = new ArrayList<>();
+        pfp.iterator(file).forEachRemaining(actual::add);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+
+        pfp.parsePbfFile(file);
+        assertEquals(expected.size(), pfp.getNodes().size() + pfp.getWays().size() + pfp.getRelations().size());
+        assertEquals(295678631, pfp.getWay(117500191L).getRef(0));
+        PipelineStats stats = pfp.getPipelineStats();
+        assertNotNull(stats);
+        assertTrue(stats.getBatches() > 0);
+        // includes the bounding box entity
+        assertEquals(expected.size() + 1, stats.getElements());
+        assertTrue(stats.getMaxQueueDepth() <= stats.getQueueCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPipelineHandlerException() throws FileNotFoundException {
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setPipeline(2);
+        pfp.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"), new OsmHandler() {
+            @Override
+            public void onWay(OSMWay way) {
+                throw new IllegalArgumentException();
+            }
+        });
+    }
+
+    @Test
+    public void testNativeDecoding() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser osmosis = new PbfFileParser();
+        osmosis.setNativeDecoding(false);
+        List<OSMElement> expected = new ArrayList<>();
+        osmosis.iterator(file).forEachRemaining(expected::add);
+        List<OSMElement> actual = new ArrayList<>();
+        new PbfFileParser().iterator(file).forEachRemaining(actual::add);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            OSMElement e = expected.get(i);
+            OSMElement a = actual.get(i);
+            assertEquals(e.getClass(), a.getClass());
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getVersion(), a.getVersion());
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertEquals(e.getUser(), a.getUser());
+            assertEquals(e.getUid(), a.getUid());
+            assertEquals(e.getTags(), a.getTags());
+            if (e instanceof OSMNode) {
+                assertEquals(((OSMNode) e).getLat(), ((OSMNode) a).getLat(), 0);
+                assertEquals(((OSMNode) e).getLon(), ((OSMNode) a).getLon(), 0);
+            }
+        }
+
+        // untagged nodes go straight into the compact store
+        osmosis.setCompactNodes(true);
+        osmosis.parsePbfFile(file);
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setCompactNodes(true);
+        pfp.parsePbfFile(file);
+        CompactNodeStore store = (CompactNodeStore) pfp.getNodes();
+        assertEquals(osmosis.getNodes().size(), store.size());
+        assertEquals(((CompactNodeStore) osmosis.getNodes()).compactSize(), store.compactSize());
+        OSMNode n = pfp.getNode(295678631L);
+        assertEquals(osmosis.getNode(295678631L).getLat(), n.getLat(), 0);
+        assertEquals(295678631L, pfp.sameNode(n.getLat(), n.getLon()));
+    }
+
+    @Test
+    public void testReferenceClosure() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser full = new PbfFileParser();
+        full.parsePbfFile(file);
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setCompactNodes(true);
+        pfp.parsePbfFile(file, TagFilter.hasKey("highway"), ReferenceClosure.WAYS);
+        Set<Long> refs = new HashSet<>();
+        for (OSMWay w : full.findWays(TagFilter.hasKey("highway"))) {
+            assertEquals(w.getRefs(), pfp.getWay(w.getId()).getRefs());
+            refs.addAll(w.getRefs());
+        }
+        assertFalse(refs.isEmpty());
+        assertEquals(full.findWays(TagFilter.hasKey("highway")).size(), pfp.getWays().size());
+        assertEquals(refs.size(), pfp.getNodes().size());
+        assertTrue(pfp.getRelations().isEmpty());
+        for (long ref : refs) {
+            assertEquals(full.getNode(ref).getLat(), pfp.getNode(ref).getLat(), 1e-7);
+            assertEquals(full.getNode(ref).getTags(), pfp.getNode(ref).getTags());
+        }
+
+        // all relations, their member ways and the nodes of both
+        pfp = new PbfFileParser();
+        pfp.parsePbfFile(file, null, ReferenceClosure.RELATIONS);
+        assertEquals(full.getRelations().size(), pfp.getRelations().size());
+        Set<Long> ways = new HashSet<>();
+        Set<Long> nodes = new HashSet<>();
+        for (OSMRelation r : full.getRelations().values()) {
+            for (long ref : r.getMembersByElementType(OSMElement.WAY).keySet()) {
+                OSMWay member = full.getWay(ref);
+                if (member != null) {
+                    ways.add(ref);
+                    nodes.addAll(member.getRefs());
+                }
+            }
+            for (long ref : r.getMembersByElementType(OSMElement.NODE).keySet()) {
+                if (full.getNode(ref) != null)
+                    nodes.add(ref);
+            }
+        }
+        assertEquals(ways.size(), pfp.getWays().size());
+        assertEquals(nodes.size(), pfp.getNodes().size());
+        // the members are stored first, so they get linked
+        for (long id : ways)
+            assertTrue(pfp.getWay(id).getBelongsTo().size() > 0);
+    }
+
+    @Test
+    public void testExtract() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser full = new PbfFileParser();
+        full.parsePbfFile(file);
+        // the western half of the file
+        ArrayList<Double> bb = new ArrayList<>(Arrays.asList(51.0245, 13.7215, 51.0266, 13.723));
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setCompactNodes(true);
+        pfp.extractPbfFile(file, bb.get(0), bb.get(1), bb.get(2), bb.get(3), false);
+        Set<Long> inside = new HashSet<>();
+        for (OSMNode n : full.getNodes().values()) {
+            if (n.isInBB(bb))
+                inside.add(n.getId());
+        }
+        assertTrue(inside.size() > 0 && inside.size() < full.getNodes().size());
+        assertEquals(inside.size(), pfp.getNodes().size());
+        Set<Long> refs = new HashSet<>();
+        int ways = 0;
+        for (OSMWay w : full.getWays().values()) {
+            if (Collections.disjoint(w.getRefs(), inside))
+                continue;
+            ways++;
+            refs.addAll(w.getRefs());
+            assertEquals(w.getRefs(), pfp.getWay(w.getId()).getRefs());
+        }
+        assertEquals(ways, pfp.getWays().size());
+        int relations = 0;
+        for (OSMRelation r : full.getRelations().values()) {
+            boolean member = !Collections.disjoint(r.getMembersByElementType(OSMElement.NODE).keySet(), inside);
+            for (long ref : r.getMembersByElementType(OSMElement.WAY).keySet())
+                member |= pfp.getWay(ref) != null;
+            for (long ref : r.getMembersByElementType(OSMElement.RELATION).keySet())
+                member |= pfp.getRelation(ref) != null;
+            if (member)
+                relations++;
+        }
+        assertTrue(relations > 0);
+        assertEquals(relations, pfp.getRelations().size());
+
+        pfp = new PbfFileParser();
+        pfp.extractPbfFile(file, bb.get(0), bb.get(1), bb.get(2), bb.get(3), true);
+        assertEquals(ways, pfp.getWays().size());
+        refs.removeIf(ref -> full.getNode(ref) == null);
+        refs.addAll(inside);
+        assertEquals(refs.size(), pfp.getNodes().size());
+        for (long ref : refs)
+            assertNotNull(pfp.getNode(ref));
+    }
+
+    @Test
+    public void testReverseLinks() throws FileNotFoundException {
+        File file = new File("./src/test/resources/apb-outdoor.pbf");
+        PbfFileParser linked = new PbfFileParser();
+        linked.parsePbfFile(file);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (OSMWay w : linked.getWays().values()) {
+            for (long ref : w.getRefs())
+                expected.merge(ref, 1, Integer::sum);
+        }
+        for (OSMRelation r : linked.getRelations().values()) {
+            for (long ref : r.getMembersByElementType(OSMElement.NODE).keySet())
+                expected.merge(ref, 1, Integer::sum);
+        }
+        for (OSMNode n : linked.getNodes().values())
+            assertEquals(expected.getOrDefault(n.getId(), 0).intValue(), n.getBelongsTo().size());
+
+        PbfFileParser pfp = new PbfFileParser();
+        pfp.setReverseLinks(false);
+        pfp.parsePbfFile(file);
+        for (OSMWay w : pfp.getWays().values())
+            assertTrue(pfp.getNode(w.getRef(0)).getBelongsTo().isEmpty());
+        pfp.setLinkThreads(3);
+        pfp.linkElements();
+        assertSameLinks(linked, pfp);
+
+        // ways may arrive before their nodes, they are linked anyway
+        pfp = new PbfFileParser();
+        pfp.setThreads(3);
+        pfp.setOrdered(false);
+        pfp.parsePbfFile(file);
+        assertSameLinks(linked, pfp);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        PbfFileParser expected = new PbfFileParser();
+        expected.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+        File snapshot = this.tmp.newFile("apb-outdoor.snapshot");
+        expected.writeSnapshot(snapshot);
+
+        PbfFileParser actual = new PbfFileParser();
+        actual.openSnapshot(snapshot);
+        assertSameElements(expected, actual);
+        assertSameLinks(expected, actual);
+    }
+
+    private static void assertSameLinks(OsmParser expected, OsmParser actual) {
+        for (OSMNode n : expected.getNodes().values())
+            assertEquals(n.getBelongsTo().size(), actual.getNode(n.getId()).getBelongsTo().size());
+        for (OSMWay w : expected.getWays().values())
+            assertEquals(w.getBelongsTo().size(), actual.getWay(w.getId()).getBelongsTo().size());
+        for (OSMRelation r : expected.getRelations().values())
+            assertEquals(r.getBelongsTo().size(), actual.getRelation(r.getId()).getBelongsTo().size());
+    }
+
+    @Test
+    public void testWritePbfFile() throws IOException {
+        PbfFileParser expected = new PbfFileParser();
+        expected.parsePbfFile(new File("./src/test/resources/apb-outdoor.pbf"));
+        File out = this.tmp.newFile("out.pbf");
+        expected.writePbfFile(out, 3);
+
+        PbfFileParser actual = new PbfFileParser();
+        actual.parsePbfFile(out);
+        assertSameElements(expected, actual);
+        actual = new PbfFileParser();
+        actual.setNativeDecoding(false);
+        actual.parsePbfFile(out);
+        assertSameElements(expected, actual);
+    }
+
+    @Test
+    public void testPbfWriterHandler() throws IOException {
+        File pbf = new File("./src/test/resources/apb-outdoor.pbf");
+        File out = this.tmp.newFile("small-blocks.pbf");
+        try (PbfWriter writer = new PbfWriter(new FileOutputStream(out), 2)) {
+            writer.setBlockSize(100);
+            new PbfFileParser().parsePbfFile(pbf, writer);
+        }
+        PbfFileParser expected = new PbfFileParser();
+        expected.parsePbfFile(pbf);
+        PbfFileParser actual = new PbfFileParser();
+        actual.setThreads(2);
+        actual.parsePbfFile(out);
+        assertSameElements(expected, actual);
+    }
+
+    @Test
+    public void testPbfWriterEmptyStrings() throws IOException {
+        PbfFileParser expected = new PbfFileParser();
+        OSMNode n1 = new OSMNode(1, 50.1, 8.1);
+        n1.setTag("", "empty key");
+        n1.setTag("note", "");
+        expected.putNode(n1);
+        OSMNode n2 = new OSMNode(2, 50.2, 8.2);
+        n2.setTag("amenity", "bench");
+        expected.putNode(n2);
+        expected.putNode(new OSMNode(3, 50.3, 8.3));
+        File out = this.tmp.newFile("empty-strings.pbf");
+        expected.writePbfFile(out);
+
+        PbfFileParser actual = new PbfFileParser();
+        actual.parsePbfFile(out);
+        // 0 ends the tags of a node, a tag using it would shift the block
+        for (long id = 1; id <= 3; id++)
+            assertEquals(expected.getNode(id).getTags(), actual.getNode(id).getTags());
+        assertEquals("empty key", actual.getNode(1).getTag(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPbfWriterUnsorted() throws IOException {
+        PbfWriter writer = new PbfWriter(new ByteArrayOutputStream(), 1);
+        writer.setSorted(true);
+        writer.write(new OSMNode(2, 0, 0));
+        writer.write(new OSMNode(1, 0, 0));
+    }
+
+    static void assertSameElements(OsmParser expected, OsmParser actual) {
+        assertEquals(expected.getNodes().size(), actual.getNodes().size());
+        assertEquals(expected.getWays().size(), actual.getWays().size());
+        assertEquals(expected.getRelations().size(), actual.getRelations().size());
+        for (OSMNode n : expected.getNodes().values()) {
+            OSMNode other = actual.getNode(n.getId());
+            assertEquals(n.getLat(), other.getLat(), 1e-7);
+            assertEquals(n.getLon(), other.getLon(), 1e-7);
+            assertSameMeta(n, other);
+        }
+        for (OSMWay w : expected.getWays().values()) {
+            OSMWay other = actual.getWay(w.getId());
+            assertEquals(w.getRefs(), other.getRefs());
+            assertSameMeta(w, other);
+        }
+        for (OSMRelation r : expected.getRelations().values()) {
+            OSMRelation other = actual.getRelation(r.getId());
+            assertEquals(r.getAllMembers(), other.getAllMembers());
+            assertSameMeta(r, other);
+        }
+    }
+
+    private static void assertSameMeta(OSMElement expected, OSMElement actual) {
+        assertEquals(expected.getTags(), actual.getTags());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getUser(), actual.getUser());
+        assertEquals(expected.getUid(), actual.getUid());
+    }
 }
@@ -0,0 +1,105 @@
+package de.spacedon.simpleosmparser.parser;
+
+import de.spacedon.simpleosmparser.filter.TagFilter;
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static de.spacedon.simpleosmparser.parser.MultiPassTestSupport.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class ReferenceClosureTest {
+
+    @Test
+    public void testNestedRelations() {
+        List<OSMElement> file = new ArrayList<>();
+        for (long id = 1; id <= 6; id++)
+            file.add(new OSMNode(id, id, id));
+        file.add(way(10, 1, 2));
+        file.add(way(11, 3, 4));
+        file.add(way(12, 5, 6));
+        // 21 comes before its parent 22, which also references a missing relation
+        OSMRelation child = new OSMRelation(21, null);
+        child.addMember(OSMElement.WAY, 11, "");
+        child.addMember(OSMElement.NODE, 5, "");
+        file.add(child);
+        OSMRelation parent = new OSMRelation(22, null);
+        parent.setTag("type", "site");
+        parent.addMember(OSMElement.RELATION, 21, "");
+        parent.addMember(OSMElement.RELATION, 99, "");
+        file.add(parent);
+        file.add(new OSMRelation(23, null));
+
+        List<OSMElement> result = new ArrayList<>();
+        ReferenceClosure closure = new ReferenceClosure(TagFilter.hasKey("type"), ReferenceClosure.RELATIONS,
+                collector(result));
+        List<Integer> passes = read(closure, file);
+
+        // a second relation pass finds 21, but not 99
+        assertEquals(Arrays.asList(ReferenceClosure.RELATIONS, ReferenceClosure.RELATIONS,
+                ReferenceClosure.WAYS, ReferenceClosure.NODES), passes);
+        assertEquals(Arrays.asList(3L, 4L, 5L, 11L, 21L, 22L, -1L), ids(result));
+    }
+
+    @Test
+    public void testTypes() {
+        List<OSMElement> file = new ArrayList<>();
+        OSMNode tagged = new OSMNode(1, 0, 0);
+        tagged.setTag("highway", "crossing");
+        file.add(tagged);
+        file.add(new OSMNode(2, 0, 0));
+        file.add(new OSMNode(3, 0, 0));
+        OSMWay road = way(10, 2, 3);
+        road.setTag("highway", "residential");
+        file.add(road);
+        file.add(way(11, 1, 3));
+        file.add(new OSMRelation(20, null));
+
+        // the tagged node doesn't count, only ways are selected
+        List<OSMElement> result = new ArrayList<>();
+        List<Integer> passes = read(new ReferenceClosure(TagFilter.hasKey("highway"), ReferenceClosure.WAYS,
+                collector(result)), file);
+        assertEquals(Arrays.asList(ReferenceClosure.WAYS, ReferenceClosure.NODES), passes);
+        assertEquals(Arrays.asList(2L, 3L, 10L, -1L), ids(result));
+
+        result.clear();
+        passes = read(new ReferenceClosure(TagFilter.hasKey("highway"), ReferenceClosure.NODES | ReferenceClosure.WAYS,
+                collector(result)), file);
+        assertEquals(Arrays.asList(ReferenceClosure.WAYS, ReferenceClosure.NODES), passes);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 10L, -1L), ids(result));
+
+        // nothing references nodes, so there is no node pass
+        result.clear();
+        passes = read(new ReferenceClosure(null, ReferenceClosure.RELATIONS, collector(result)), file);
+        assertEquals(Arrays.asList(ReferenceClosure.RELATIONS), passes);
+        assertEquals(Arrays.asList(20L, -1L), ids(result));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoTypes() {
+        new ReferenceClosure(null, 0, new OsmHandler() {
+        });
+    }
+
+    /**
+     * Like MultiPassTestSupport.read(), checking the pass count of the
+     * closure too.
+     *
+     * @return the passes
+     */
+    private static List<Integer> read(ReferenceClosure closure, List<OSMElement> file) {
+        List<Integer> passes = MultiPassTestSupport.read(closure, file);
+        assertEquals(passes.size(), closure.getPasses());
+        return passes;
+    }
+}
@@ -0,0 +1,71 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMNode;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class LongHashStoreTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongHashStore<OSMNode> store = new LongHashStore<>();
+        OSMNode n0 = new OSMNode(0L, 1.0, 1.0);
+        OSMNode n1 = new OSMNode(-1L, 2.0, 2.0);
+        store.put(n0.getId(), n0);
+        store.put(n1.getId(), n1);
+
+        assertEquals(2, store.size());
+        assertSame(n0, store.get(0L));
+        assertSame(n1, store.get(-1L));
+        assertNull(store.get(1L));
+        assertEquals(-1L, store.minId());
+        assertEquals(0L, store.maxId());
+
+        OSMNode n2 = new OSMNode(0L, 3.0, 3.0);
+        assertSame(n0, store.put(n2.getId(), n2));
+        assertEquals(2, store.size());
+
+        assertSame(n2, store.remove(0L));
+        assertFalse(store.containsKey(0L));
+        assertTrue(store.containsKey(-1L));
+        assertNull(store.remove(0L));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        LongHashStore<OSMNode> store = new LongHashStore<>();
+        HashMap<Long, OSMNode> map = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // small id range to force collisions and removal of probed entries
+            long id = random.nextInt(5000) - 2500;
+            if (random.nextInt(3) == 0) {
+                assertSame(map.remove(id), store.remove(id));
+            } else {
+                OSMNode n = new OSMNode(id, 0, 0);
+                assertSame(map.put(id, n), store.put(id, n));
+            }
+        }
+        assertEquals(map.size(), store.size());
+        for (Long id : map.keySet())
+            assertSame(map.get(id), store.get(id));
+
+        HashSet<Long> ids = new HashSet<>();
+        for (PrimitiveIterator.OfLong iter = store.idIterator(); iter.hasNext(); )
+            ids.add(iter.nextLong());
+        assertEquals(map.keySet(), ids);
+        assertEquals(map.size(), store.values().size());
+        assertTrue(store.values().containsAll(map.values()));
+    }
+}
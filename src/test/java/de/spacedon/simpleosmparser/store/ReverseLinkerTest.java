@@ -0,0 +1,76 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class ReverseLinkerTest {
+
+    @Test
+    public void testParallel() {
+        // enough ways for several batches
+        int nodeCount = 1000;
+        int[] expected = new int[nodeCount];
+        ElementStore<OSMNode> nodes = new LongHashStore<>();
+        ElementStore<OSMWay> ways = new LongHashStore<>();
+        ElementStore<OSMRelation> relations = new LongHashStore<>();
+        for (int i = 0; i < nodeCount; i++)
+            nodes.put(i, new OSMNode(i, 0, 0));
+        Random random = new Random(7);
+        for (int i = 0; i < 30000; i++) {
+            OSMWay w = new OSMWay(i);
+            for (int j = 0; j < 3; j++) {
+                int ref = random.nextInt(nodeCount + 10);
+                w.addRefToEnd(ref);
+                if (ref < nodeCount)
+                    expected[ref]++;
+            }
+            ways.put(i, w);
+        }
+        OSMRelation r = new OSMRelation(1, "route");
+        r.addMember(OSMElement.WAY, 5, "");
+        r.addMember(OSMElement.NODE, 6, "");
+        r.addMember(OSMElement.RELATION, 2, "");
+        relations.put(1, r);
+        relations.put(2, new OSMRelation(2, null));
+        expected[6]++;
+
+        ReverseLinker linker = new ReverseLinker(nodes, ways, relations);
+        linker.setThreads(4);
+        linker.linkAll();
+        for (int i = 0; i < nodeCount; i++)
+            assertEquals(expected[i], nodes.get(i).getBelongsTo().size());
+        assertTrue(ways.get(5).getBelongsTo().contains(r));
+        assertTrue(relations.get(2).getBelongsTo().contains(r));
+        assertTrue(ways.get(4).getBelongsTo().isEmpty());
+    }
+
+    @Test
+    public void testCompactNodes() {
+        CompactNodeStore nodes = new CompactNodeStore(new LongHashStore<>());
+        nodes.putCoordinate(1, 1, 1);
+        OSMNode tagged = new OSMNode(2, 2, 2);
+        tagged.setTag("amenity", "bench");
+        nodes.put(2, tagged);
+        ElementStore<OSMWay> ways = new LongHashStore<>();
+        OSMWay w = new OSMWay(10);
+        w.addRefToEnd(1);
+        w.addRefToEnd(2);
+        ways.put(10, w);
+
+        new ReverseLinker(nodes, ways, new LongHashStore<>()).linkAll();
+        assertTrue(tagged.getBelongsTo().contains(w));
+        // still a coordinate, nothing was materialized and put back
+        assertTrue(nodes.isCompact(1));
+    }
+}
@@ -0,0 +1,127 @@
+package de.spacedon.simpleosmparser.store;
+
+import de.spacedon.simpleosmparser.osm.OSMElement;
+import de.spacedon.simpleosmparser.osm.OSMNode;
+import de.spacedon.simpleosmparser.osm.OSMRelation;
+import de.spacedon.simpleosmparser.osm.OSMWay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class SnapshotTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testLazy() throws IOException {
+        Snapshot snapshot = Snapshot.open(this.write());
+        SnapshotStore<OSMNode> nodes = (SnapshotStore<OSMNode>) snapshot.getNodes();
+        SnapshotStore<OSMWay> ways = (SnapshotStore<OSMWay>) snapshot.getWays();
+        SnapshotStore<OSMRelation> relations = (SnapshotStore<OSMRelation>) snapshot.getRelations();
+        assertEquals(3, nodes.size());
+        assertEquals(0, nodes.materializedSize() + ways.materializedSize() + relations.materializedSize());
+
+        OSMNode n = nodes.get(2);
+        assertEquals(51.0245123, n.getLat(), 1e-9);
+        assertEquals(-13.5, n.getLon(), 1e-9);
+        assertEquals("bench", n.getTag("amenity"));
+        assertEquals("me", n.getUser());
+        assertEquals(42, n.getUid());
+        assertEquals(new Date(1234567000L), n.getTimestamp());
+        assertEquals(3, n.getVersion());
+        assertSame(n, nodes.get(2));
+        // the way and both relations came along with the back-references
+        OSMWay w = (OSMWay) n.getBelongsTo().get(0);
+        assertSame(w, ways.get(10));
+        assertEquals(Arrays.asList(1L, 2L, 3L), w.getRefs());
+        assertEquals(2, relations.materializedSize());
+        OSMRelation r20 = relations.get(20);
+        OSMRelation r21 = relations.get(21);
+        assertTrue(r20.getBelongsTo().contains(r21));
+        assertTrue(r21.getBelongsTo().contains(r20));
+        assertEquals("outer", r20.getMembersByElementType(OSMElement.WAY).get(10L));
+        assertEquals("multipolygon", r20.getType());
+        assertNull(r21.getType());
+        assertEquals(1, nodes.materializedSize());
+        assertNull(nodes.get(4));
+    }
+
+    @Test
+    public void testChanges() throws IOException {
+        ElementStore<OSMNode> nodes = Snapshot.open(this.write()).getNodes();
+        assertEquals(1, nodes.minId());
+        assertEquals(3, nodes.maxId());
+        assertNotNull(nodes.remove(1));
+        assertNull(nodes.remove(1));
+        assertFalse(nodes.containsKey(1));
+        nodes.put(-5, new OSMNode(-5, 0, 0));
+        nodes.put(1, new OSMNode(1, 1, 1));
+        nodes.put(1, new OSMNode(1, 2, 2));
+        assertEquals(4, nodes.size());
+        assertEquals(2, nodes.get(1).getLat(), 0);
+        assertEquals(-5, nodes.minId());
+        assertEquals(Arrays.asList(1L, 2L, 3L, -5L), ids(nodes));
+        int modCount = nodes.modCount();
+        nodes.clear();
+        assertTrue(nodes.isEmpty());
+        assertFalse(nodes.containsKey(2));
+        assertTrue(nodes.modCount() > modCount);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoSnapshot() throws IOException {
+        Snapshot.open(new File("./src/test/resources/map1.osm"));
+    }
+
+    private File write() throws IOException {
+        ElementStore<OSMNode> nodes = new LongHashStore<>();
+        ElementStore<OSMWay> ways = new LongHashStore<>();
+        ElementStore<OSMRelation> relations = new LongHashStore<>();
+        for (int i = 3; i >= 1; i--)
+            nodes.put(i, new OSMNode(i, i, i));
+        OSMNode n = new OSMNode(2, 51.0245123, -13.5);
+        n.setTag("amenity", "bench");
+        n.setUser("me");
+        n.setUid(42);
+        n.setTimestamp(new Date(1234567000L));
+        n.setVersion(3);
+        nodes.put(2, n);
+        OSMWay w = new OSMWay(10);
+        w.setRefs(new long[]{1, 2, 3});
+        ways.put(10, w);
+        OSMRelation r20 = new OSMRelation(20, "multipolygon");
+        r20.addMember(OSMElement.WAY, 10, "outer");
+        r20.addMember(OSMElement.RELATION, 21, "");
+        relations.put(20, r20);
+        OSMRelation r21 = new OSMRelation(21, null);
+        r21.addMember(OSMElement.RELATION, 20, "");
+        relations.put(21, r21);
+        new ReverseLinker(nodes, ways, relations).linkAll();
+
+        File file = this.tmp.newFile("test.snapshot");
+        Snapshot.write(file, nodes, ways, relations);
+        return file;
+    }
+
+    private static List<Long> ids(ElementStore<?> store) {
+        List<Long> ids = new ArrayList<>();
+        PrimitiveIterator.OfLong iter = store.idIterator();
+        while (iter.hasNext())
+            ids.add(iter.nextLong());
+        return ids;
+    }
+}
@@ -0,0 +1,35 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void testAddContains() {
+        LongHashSet set = new LongHashSet(2);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextInt(5000) - 2500;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        assertTrue(set.contains(0));
+        for (long value = -3000; value < 3000; value++)
+            assertEquals(expected.contains(value), set.contains(value));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(1));
+    }
+}
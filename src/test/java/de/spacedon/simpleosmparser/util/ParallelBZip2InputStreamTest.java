@@ -0,0 +1,93 @@
+package de.spacedon.simpleosmparser.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class ParallelBZip2InputStreamTest {
+
+    @Test
+    public void testBlocks() throws IOException {
+        byte[] xml = Files.readAllBytes(Paths.get("./src/test/resources/apb-outdoor.osm"));
+        // 100 kB blocks, so the file has several
+        byte[] bz2 = compress(xml, 1);
+        assertArrayEquals(xml, readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(bz2), 3)));
+
+        // incompressible data moves the block boundaries to other bit offsets
+        byte[] random = new byte[700 * 1000];
+        new Random(42).nextBytes(random);
+        assertArrayEquals(random, readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(compress(random, 2)), 2)));
+
+        // concatenated streams, as written by pbzip2
+        ByteArrayOutputStream multi = new ByteArrayOutputStream();
+        multi.write(compress(random, 1));
+        multi.write(bz2);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(random);
+        expected.write(xml);
+        assertArrayEquals(expected.toByteArray(),
+                readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(multi.toByteArray()), 4)));
+
+        // small reads
+        try (InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bz2), 1)) {
+            for (byte b : xml)
+                assertEquals(b & 0xff, in.read());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoBzip2() throws IOException {
+        readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(new byte[]{'<', 'o', 's', 'm', '>'}), 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoBlockBoundary() throws IOException {
+        // a header followed by more data than any block can hold
+        byte[] data = new byte[3 << 20];
+        data[0] = 'B';
+        data[1] = 'Z';
+        data[2] = 'h';
+        data[3] = '9';
+        readAll(new ParallelBZip2InputStream(new ByteArrayInputStream(data), 2));
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        byte[] random = new byte[300 * 1000];
+        new Random(7).nextBytes(random);
+        assertArrayEquals(random, readAll(new ReadAheadInputStream(new ByteArrayInputStream(random), 1000, 3)));
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream bz = new BZip2CompressorOutputStream(out, blockSize)) {
+            bz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream i = in) {
+            byte[] buf = new byte[5000];
+            int n;
+            while ((n = i.read(buf)) >= 0)
+                out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
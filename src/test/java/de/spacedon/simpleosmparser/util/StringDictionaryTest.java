@@ -0,0 +1,35 @@
+package de.spacedon.simpleosmparser.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Philipp Thöricht
+ */
+public class StringDictionaryTest {
+
+    @Test
+    public void testIntern() {
+        StringDictionary dict = new StringDictionary(2);
+        String highway = dict.intern(new String("highway"));
+        assertSame(highway, dict.intern(new String("highway")));
+        assertNull(dict.intern(null));
+        dict.intern("yes");
+
+        // full, unknown strings pass through
+        String name = new String("Neumarkt");
+        assertSame(name, dict.intern(name));
+        assertNotSame(dict.intern(new String("Neumarkt")), name);
+
+        assertEquals(2, dict.size());
+        assertEquals(1, dict.getHits());
+        assertEquals(4, dict.getMisses());
+        assertEquals(0.2, dict.getHitRate(), 1e-9);
+        assertTrue(dict.getSavedBytes() > 0);
+
+        dict.clear();
+        assertEquals(0, dict.size());
+        assertEquals(0, dict.getHits());
+    }
+}